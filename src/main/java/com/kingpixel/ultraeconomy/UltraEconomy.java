@@ -3,26 +3,43 @@ package com.kingpixel.ultraeconomy;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.util.Utils;
+import com.kingpixel.ultraeconomy.api.BalanceSnapshots;
 import com.kingpixel.ultraeconomy.commands.Register;
 import com.kingpixel.ultraeconomy.config.Config;
 import com.kingpixel.ultraeconomy.config.Currencies;
 import com.kingpixel.ultraeconomy.config.Lang;
+import com.kingpixel.ultraeconomy.database.AccountLoader;
 import com.kingpixel.ultraeconomy.database.DatabaseFactory;
-import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.database.DepositCoalescer;
+import com.kingpixel.ultraeconomy.database.Idempotency;
+import com.kingpixel.ultraeconomy.database.Invalidations;
+import com.kingpixel.ultraeconomy.database.Journal;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
+import com.kingpixel.ultraeconomy.database.ShutdownDrain;
+import com.kingpixel.ultraeconomy.leaderboard.BaltopPages;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
+import com.kingpixel.ultraeconomy.leaderboard.SharedRanks;
+import com.kingpixel.ultraeconomy.mixins.ServerLoginNetworkHandlerAccessor;
+import com.mojang.authlib.GameProfile;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.entity.event.v1.ServerPlayerEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerLoginConnectionEvents;
 import net.minecraft.server.MinecraftServer;
 
 import java.io.File;
-import java.util.concurrent.CompletableFuture;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class UltraEconomy implements ModInitializer {
   public static final String MOD_ID = "ultraeconomy";
   public static final String PATH = "/config/ultraeconomy";
+  /**
+   * Identifies this server among the ones sharing a database
+   */
+  public static final String NODE_ID = UUID.randomUUID().toString();
   public static MinecraftServer server;
   public static Config config = new Config();
   public static Lang lang = new Lang();
@@ -32,6 +49,15 @@ public class UltraEconomy implements ModInitializer {
       .setDaemon(true)
       .build()
   );
+  /**
+   * Seeds the leaderboards and renders baltop pages and ranks, so a long seed never holds up joins and commands
+   */
+  public static final ExecutorService LEADERBOARD_EXECUTOR = Executors.newFixedThreadPool(2,
+    new ThreadFactoryBuilder()
+      .setNameFormat("UltraEconomy-Leaderboards-%d")
+      .setDaemon(true)
+      .build()
+  );
   public static boolean migrationDone;
 
   @Override
@@ -45,18 +71,57 @@ public class UltraEconomy implements ModInitializer {
   }
 
   public static void load() {
+    loadConfig();
+    loadServices(true);
+  }
+
+  /**
+   * Read the configuration, the language and the currencies. Each one is swapped in once it is built, so this can run
+   * off the server thread.
+   */
+  public static void loadConfig() {
     config.init();
     lang.init();
     Currencies.init();
-    DatabaseFactory.init(config.getDatabase());
+  }
+
+  /**
+   * Restart the services built on the configuration
+   *
+   * @param database whether the database is reconnected and the journals are replayed
+   */
+  public static void loadServices(boolean database) {
+    if (database) {
+      DatabaseFactory.init(config.getDatabase());
+      // Drain snapshots are only written while the journal is off, so they are always older than its segments
+      ShutdownDrain.replay();
+      Journal.init();
+    }
+    PlayerNames.init();
+    Idempotency.init();
+    BaltopPages.init();
+    Leaderboards.init();
+    SharedRanks.init();
+    Invalidations.init();
+    BalanceSnapshots.reload();
   }
 
   public void events() {
     ServerPlayerEvents.JOIN.register((player) -> {
-      CompletableFuture.runAsync(() -> {
-          Account account = DatabaseFactory.INSTANCE.getAccount(player.getUuid());
-          account.fix();
-          DatabaseFactory.INSTANCE.saveOrUpdateAccount(account);
+      PlayerNames.update(player.getUuid(), player.getGameProfile().getName());
+      AccountLoader.load(player.getUuid())
+        .thenAcceptAsync(account -> {
+          String name = player.getGameProfile().getName();
+          if (account == null) {
+            // The account did not exist during login, now that the player is online it is created and saved
+            account = DatabaseFactory.INSTANCE.getAccount(player.getUuid());
+            if (account == null) return;
+          } else if (!name.equals(account.getPlayerName())) {
+            account.setPlayerName(name);
+          }
+          account.pinDefaults();
+          if (account.isDirty()) DatabaseFactory.INSTANCE.saveOrUpdateAccount(account);
+          BalanceSnapshots.track(account);
         }, ULTRA_ECONOMY_EXECUTOR)
         .exceptionally(e -> {
           e.printStackTrace();
@@ -64,7 +129,16 @@ public class UltraEconomy implements ModInitializer {
         });
     });
 
-    ServerPlayerEvents.LEAVE.register((player) -> DatabaseFactory.INSTANCE.invalidate(player.getUuid()));
+    // Start loading the account as soon as the login handshake knows who is joining
+    ServerLoginConnectionEvents.QUERY_START.register((handler, server, sender, synchronizer) -> {
+      GameProfile profile = ((ServerLoginNetworkHandlerAccessor) handler).getProfile();
+      if (profile != null && profile.getId() != null) AccountLoader.load(profile.getId());
+    });
+
+    ServerPlayerEvents.LEAVE.register((player) -> {
+      BalanceSnapshots.untrack(player.getUuid());
+      DatabaseFactory.INSTANCE.invalidate(player.getUuid());
+    });
 
     ServerLifecycleEvents.SERVER_STARTED.register((server) -> {
       UltraEconomy.server = server;
@@ -73,12 +147,20 @@ public class UltraEconomy implements ModInitializer {
     });
 
     ServerLifecycleEvents.SERVER_STOPPING.register((server) -> {
+      // Open deposit windows are closed first so the drain below writes their balances
+      DepositCoalescer.flushAll();
+      // Dirty accounts are written in bulk first, so evicting the cache afterwards has nothing left to save
+      ShutdownDrain.drain();
       DatabaseFactory.INSTANCE.flushCache();
     });
 
     ServerLifecycleEvents.SERVER_STOPPED.register((server) -> {
+      SharedRanks.stop();
+      Invalidations.stop();
       DatabaseFactory.INSTANCE.disconnect();
+      Journal.close();
       CobbleUtils.shutdownAndAwait(ULTRA_ECONOMY_EXECUTOR);
+      CobbleUtils.shutdownAndAwait(LEADERBOARD_EXECUTOR);
     });
 
     CommandRegistrationCallback.EVENT.register(Register::register);
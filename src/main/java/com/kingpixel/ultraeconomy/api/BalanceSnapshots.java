@@ -0,0 +1,220 @@
+package com.kingpixel.ultraeconomy.api;
+
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only balances of online players for scoreboards, tab lists, holograms and placeholders.
+ * Every player has an immutable snapshot with the balance, the formatted balance and the rank of each currency.
+ * A snapshot is replaced only when one of its values changes, so a read is a map lookup and never allocates,
+ * touches the database or formats a number.
+ */
+public class BalanceSnapshots {
+  private static final Map<UUID, Snapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+  private static final Map<String, Placeholder> PLACEHOLDERS = new ConcurrentHashMap<>();
+
+  /**
+   * Get the snapshot of an online player
+   *
+   * @param playerUUID the player's UUID
+   *
+   * @return the snapshot, or null if the player is not tracked
+   */
+  public static @Nullable Snapshot get(@NotNull UUID playerUUID) {
+    return SNAPSHOTS.get(playerUUID);
+  }
+
+  /**
+   * Resolve a placeholder for a player. Supported keys are {@code balance_<currency>},
+   * {@code formatted_<currency>} and {@code rank_<currency>}.
+   *
+   * @param playerUUID the player's UUID
+   * @param key        the placeholder key, without delimiters
+   *
+   * @return the value, or null if the key or the player is unknown
+   */
+  public static @Nullable String placeholder(@NotNull UUID playerUUID, @NotNull String key) {
+    Snapshot snapshot = SNAPSHOTS.get(playerUUID);
+    if (snapshot == null) return null;
+    Placeholder placeholder = PLACEHOLDERS.computeIfAbsent(key, Placeholder::parse);
+    if (placeholder == Placeholder.UNKNOWN) return null;
+    Entry entry = snapshot.entry(placeholder.ordinal());
+    if (entry == null) return null;
+    return switch (placeholder.type()) {
+      case BALANCE -> entry.plain();
+      case FORMATTED -> entry.formatted();
+      case RANK -> entry.rankText();
+    };
+  }
+
+  /**
+   * Start tracking a player, building the full snapshot from its account
+   *
+   * @param account the account
+   */
+  public static void track(@NotNull Account account) {
+    String[] ids = Currencies.getCurrencyIds();
+    Entry[] entries = new Entry[Currencies.ordinalCount()];
+    for (String id : ids) {
+      int ordinal = Currencies.ordinal(id);
+      if (ordinal >= entries.length) entries = Arrays.copyOf(entries, ordinal + 1);
+      BigDecimal balance = account.getBalance(id);
+      entries[ordinal] = entry(id, balance, rank(account.getPlayerUUID(), id));
+    }
+    SNAPSHOTS.put(account.getPlayerUUID(), new Snapshot(account.getPlayerUUID(), account.getPlayerName(), entries));
+  }
+
+  public static void untrack(@NotNull UUID playerUUID) {
+    SNAPSHOTS.remove(playerUUID);
+  }
+
+  /**
+   * Republish the snapshot of a tracked player after one of its balances changed
+   *
+   * @param playerUUID the player's UUID
+   * @param currency   the currency that changed
+   * @param balance    the new balance
+   */
+  public static void changed(UUID playerUUID, String currency, BigDecimal balance) {
+    if (balance == null) return;
+    SNAPSHOTS.computeIfPresent(playerUUID, (uuid, snapshot) -> {
+      int ordinal = Currencies.knownOrdinal(currency);
+      if (ordinal < 0) return snapshot;
+      Entry previous = snapshot.entry(ordinal);
+      if (previous != null && previous.balance().compareTo(balance) == 0) return snapshot;
+      // The player's own rank is cheap to read from memory, with shared ranks it waits for the next refresh
+      long rank = UltraEconomy.config.isSharedRanks() || !Leaderboards.isSeeded()
+        ? (previous != null ? previous.rank() : -1)
+        : Leaderboards.getRank(uuid, currency);
+      return snapshot.with(ordinal, entry(currency, balance, rank));
+    });
+  }
+
+  /**
+   * Refresh the ranks of every tracked player in a currency, in the background
+   *
+   * @param currency the currency
+   */
+  public static void refreshRanks(String currency) {
+    if (SNAPSHOTS.isEmpty()) return;
+    CompletableFuture.runAsync(() -> {
+        int ordinal = Currencies.knownOrdinal(currency);
+        if (ordinal < 0) return;
+        // Shared ranks of every tracked player are read in one query
+        Map<UUID, Long> shared = UltraEconomy.config.isSharedRanks()
+          ? DatabaseFactory.INSTANCE.getRanks(SNAPSHOTS.keySet(), currency)
+          : null;
+        for (UUID uuid : SNAPSHOTS.keySet()) {
+          long rank = shared != null ? shared.getOrDefault(uuid, -1L) : rank(uuid, currency);
+          SNAPSHOTS.computeIfPresent(uuid, (k, snapshot) -> {
+            Entry entry = snapshot.entry(ordinal);
+            if (entry == null || entry.rank() == rank) return snapshot;
+            return snapshot.with(ordinal, new Entry(entry.balance(), entry.plain(), entry.formatted(), rank, Long.toString(rank)));
+          });
+        }
+      }, UltraEconomy.LEADERBOARD_EXECUTOR)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
+  /**
+   * Rebuild every snapshot after a reload, currencies and formats may have changed
+   */
+  public static void reload() {
+    PLACEHOLDERS.clear();
+    if (SNAPSHOTS.isEmpty()) return;
+    CompletableFuture.runAsync(() -> {
+        for (UUID uuid : SNAPSHOTS.keySet()) {
+          Account account = DatabaseFactory.INSTANCE.getAccount(uuid);
+          if (account != null) track(account);
+        }
+      }, UltraEconomy.LEADERBOARD_EXECUTOR)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
+  private static long rank(UUID uuid, String currency) {
+    if (UltraEconomy.config.isSharedRanks()) return DatabaseFactory.INSTANCE.getRank(uuid, currency);
+    return Leaderboards.isSeeded() ? Leaderboards.getRank(uuid, currency) : -1;
+  }
+
+  private static Entry entry(String currencyId, BigDecimal balance, long rank) {
+    Currency currency = Currencies.getCurrency(currencyId);
+    String formatted = currency != null ? currency.format(balance) : balance.toPlainString();
+    return new Entry(balance, balance.toPlainString(), formatted, rank, Long.toString(rank));
+  }
+
+  /**
+   * The balances of one player. Never modified, a change publishes a new snapshot.
+   *
+   * @param playerUUID the player's UUID
+   * @param playerName the player's name
+   * @param entries    the entries indexed by {@link Currencies#ordinal(String)}
+   */
+  public record Snapshot(UUID playerUUID, String playerName, Entry[] entries) {
+    public @Nullable Entry entry(String currency) {
+      return entry(Currencies.knownOrdinal(currency));
+    }
+
+    private Entry entry(int ordinal) {
+      return ordinal >= 0 && ordinal < entries.length ? entries[ordinal] : null;
+    }
+
+    private Snapshot with(int ordinal, Entry entry) {
+      Entry[] copy = Arrays.copyOf(entries, Math.max(entries.length, ordinal + 1));
+      copy[ordinal] = entry;
+      return new Snapshot(playerUUID, playerName, copy);
+    }
+  }
+
+  /**
+   * One currency of a snapshot, with its strings already built
+   *
+   * @param balance   the balance
+   * @param plain     the balance as a plain string
+   * @param formatted the balance formatted by its currency
+   * @param rank      the 1-based rank, or -1 if not ranked
+   * @param rankText  the rank as a string
+   */
+  public record Entry(BigDecimal balance, String plain, String formatted, long rank, String rankText) {
+  }
+
+  private enum PlaceholderType {
+    BALANCE, FORMATTED, RANK
+  }
+
+  private record Placeholder(PlaceholderType type, int ordinal) {
+    private static final Placeholder UNKNOWN = new Placeholder(PlaceholderType.BALANCE, -1);
+
+    private static Placeholder parse(String key) {
+      int split = key.indexOf('_');
+      if (split < 0) return UNKNOWN;
+      String currency = key.substring(split + 1);
+      if (Currencies.getCurrency(currency) == null) return UNKNOWN;
+      PlaceholderType type = switch (key.substring(0, split)) {
+        case "balance" -> PlaceholderType.BALANCE;
+        case "formatted" -> PlaceholderType.FORMATTED;
+        case "rank" -> PlaceholderType.RANK;
+        default -> null;
+      };
+      return type == null ? UNKNOWN : new Placeholder(type, Currencies.ordinal(currency));
+    }
+  }
+}
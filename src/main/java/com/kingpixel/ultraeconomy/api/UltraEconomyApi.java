@@ -2,16 +2,21 @@ package com.kingpixel.ultraeconomy.api;
 
 import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.event.EconomyEvents;
 import com.kingpixel.ultraeconomy.config.Currencies;
 import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
 import com.kingpixel.ultraeconomy.models.Account;
 import com.kingpixel.ultraeconomy.models.Currency;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
 import net.minecraft.server.network.ServerPlayerEntity;
-import net.minecraft.util.UserCache;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nullable;
 import java.math.BigDecimal;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -43,10 +48,8 @@ public class UltraEconomyApi {
    * @return the account
    */
   public static Account getAccount(@NotNull String playerName) {
-    UserCache userCache = CobbleUtils.server.getUserCache();
-    if (userCache == null) return null;
-    var profile = userCache.findByName(playerName);
-    return profile.map(gameProfile -> getAccount(gameProfile.getId())).orElse(null);
+    UUID uuid = PlayerNames.resolve(playerName);
+    return uuid == null ? null : getAccount(uuid);
   }
 
   public static boolean withdraw(@NotNull UUID uuid, @NotNull String currency, @NotNull BigDecimal amount) {
@@ -60,6 +63,24 @@ public class UltraEconomyApi {
     return result;
   }
 
+  /**
+   * Withdraw an amount from a target's account at most once per idempotency key. Retrying with the same key after a
+   * timeout or a crash never charges twice.
+   *
+   * @param uuid           the target's UUID
+   * @param currency       the currency
+   * @param amount         the amount
+   * @param idempotencyKey a key unique to this withdraw, or null to always apply
+   *
+   * @return true if the withdraw was applied now or by an earlier call with the key
+   */
+  public static boolean withdraw(@NotNull UUID uuid, @NotNull String currency, @NotNull BigDecimal amount,
+                                 @Nullable String idempotencyKey) {
+    if (idempotencyKey == null) return withdraw(uuid, currency, amount);
+    if (getCurrency(currency) == null) return false;
+    return executeBatch(List.of(TransactionLeg.withdraw(uuid, currency, amount)), idempotencyKey);
+  }
+
   /**
    * Get a currency by its ID
    *
@@ -91,6 +112,24 @@ public class UltraEconomyApi {
     return result;
   }
 
+  /**
+   * Deposit an amount to a target's account at most once per idempotency key. Retrying with the same key after a
+   * timeout or a crash never pays twice.
+   *
+   * @param uuid           the target's UUID
+   * @param currency       the currency
+   * @param amount         the amount
+   * @param idempotencyKey a key unique to this deposit, or null to always apply
+   *
+   * @return true if the deposit was applied now or by an earlier call with the key
+   */
+  public static boolean deposit(@NotNull UUID uuid, @NotNull String currency, @NotNull BigDecimal amount,
+                                @Nullable String idempotencyKey) {
+    if (idempotencyKey == null) return deposit(uuid, currency, amount);
+    if (getCurrency(currency) == null) return false;
+    return executeBatch(List.of(TransactionLeg.deposit(uuid, currency, amount)), idempotencyKey);
+  }
+
   /**
    * Set a target's balance
    *
@@ -163,23 +202,149 @@ public class UltraEconomyApi {
   }
 
 
+  /**
+   * Transfer an amount from one account to another. Both sides are applied as a single batch,
+   * so the executor is never charged without the target being paid.
+   *
+   * @param executor the payer's UUID
+   * @param target   the receiver's UUID
+   * @param currency the currency
+   * @param amount   the amount
+   *
+   * @return true if the transfer was applied
+   */
   public static boolean transfer(UUID executor, UUID target, String currency, BigDecimal amount) {
+    return transfer(executor, target, currency, amount, null);
+  }
+
+  /**
+   * Transfer an amount from one account to another at most once per idempotency key
+   *
+   * @param executor       the payer's UUID
+   * @param target         the receiver's UUID
+   * @param currency       the currency
+   * @param amount         the amount
+   * @param idempotencyKey a key unique to this transfer, or null to always apply
+   *
+   * @return true if the transfer was applied now or by an earlier call with the key
+   */
+  public static boolean transfer(UUID executor, UUID target, String currency, BigDecimal amount,
+                                 @Nullable String idempotencyKey) {
     long start = System.currentTimeMillis();
     Currency curr = getCurrency(currency);
-    if (!curr.isTransferable()) return false;
-    Account account = UltraEconomyApi.getAccount(executor);
-    Account targetAccount = UltraEconomyApi.getAccount(target);
-    if (account == null || targetAccount == null) return false;
-    if (!hasEnoughBalance(executor, currency, amount)) return false;
-    if (!withdraw(target, currency, amount)) return false;
-    if (!deposit(target, currency, amount)) {
-      deposit(executor, currency, amount);
-    }
+    if (curr == null || !curr.isTransferable()) return false;
+    boolean result = EconomyEvents.transfer(executor, target, () -> DatabaseFactory.INSTANCE.applyBatch(List.of(
+      TransactionLeg.withdraw(executor, currency, amount),
+      TransactionLeg.deposit(target, currency, amount)
+    ), idempotencyKey));
     long end = System.currentTimeMillis();
     if (UltraEconomy.config.isDebug()) {
       CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Pay took " + (end - start) + "ms");
     }
-    return true;
+    return result;
+  }
+
+  /**
+   * Apply several deposits and withdraws, over any accounts and currencies, as one unit.
+   * All legs are validated before anything changes and are persisted together,
+   * so a purchase charging several currencies and paying several sellers is a single write.
+   *
+   * @param legs the legs to apply, in order
+   *
+   * @return true if every leg was applied, false if the batch was rejected and nothing changed
+   */
+  public static boolean executeBatch(@NotNull List<TransactionLeg> legs) {
+    return executeBatch(legs, null);
+  }
+
+  /**
+   * Apply several deposits and withdraws as one unit, at most once per idempotency key. A retry with the same key
+   * changes nothing and reports success, whether the first call ran on this server or another one.
+   *
+   * @param legs           the legs to apply, in order
+   * @param idempotencyKey a key unique to this batch, or null to always apply
+   *
+   * @return true if every leg was applied now or by an earlier call with the key, false if the batch was rejected
+   */
+  public static boolean executeBatch(@NotNull List<TransactionLeg> legs, @Nullable String idempotencyKey) {
+    long start = System.currentTimeMillis();
+    boolean result = DatabaseFactory.INSTANCE.applyBatch(legs, idempotencyKey);
+    long end = System.currentTimeMillis();
+    if (UltraEconomy.config.isDebug()) {
+      CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Batch of " + legs.size() + " legs took " + (end - start) + "ms");
+    }
+    return result;
+  }
+
+  /**
+   * Get a page of the top balances of a currency. Served from the in-memory leaderboard once it is seeded,
+   * from storage before that. With shared ranks enabled it always comes from the rank table every server agrees on.
+   *
+   * @param currency the currency
+   * @param page     the page number (starting from 1)
+   *
+   * @return the accounts of the page, with their rank set when served from memory
+   */
+  public static List<Account> getTopBalances(@NotNull String currency, int page) {
+    long start = System.currentTimeMillis();
+    List<Account> result = Leaderboards.isSeeded() && !UltraEconomy.config.isSharedRanks()
+      ? Leaderboards.getTopBalances(currency, page, UltraEconomy.config.getLimitTopPlayers())
+      : DatabaseFactory.INSTANCE.getTopBalances(currency, page);
+    if (UltraEconomy.config.isDebug()) {
+      CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Get top balances took " + (System.currentTimeMillis() - start) + "ms");
+    }
+    return result;
+  }
+
+  /**
+   * Get the rank of a player in a currency's leaderboard
+   *
+   * @param uuid     the player's UUID
+   * @param currency the currency
+   *
+   * @return the 1-based rank, or -1 if the player is not ranked or the leaderboard is still loading
+   */
+  public static long getRank(@NotNull UUID uuid, @NotNull String currency) {
+    if (UltraEconomy.config.isSharedRanks()) return DatabaseFactory.INSTANCE.getRank(uuid, currency);
+    if (!Leaderboards.isSeeded()) return -1;
+    return Leaderboards.getRank(uuid, currency);
+  }
+
+  /**
+   * Get a page of a player's transactions, newest first. Pass the last entry of a page as the cursor of the next one.
+   *
+   * @param uuid     the player's UUID
+   * @param currency the currency, or null for every currency
+   * @param cursor   the last entry of the previous page, or null for the first page
+   * @param limit    the page size
+   *
+   * @return the entries after the cursor, empty with the JSON storage which keeps no transaction log
+   */
+  public static List<HistoryEntry> getHistory(@NotNull UUID uuid, @Nullable String currency, @Nullable HistoryEntry cursor,
+                                              int limit) {
+    long start = System.currentTimeMillis();
+    if (limit <= 0 || (currency != null && getCurrency(currency) == null)) return List.of();
+    List<HistoryEntry> result = DatabaseFactory.INSTANCE.getHistory(uuid, currency, cursor, limit);
+    if (UltraEconomy.config.isDebug()) {
+      CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "History took " + (System.currentTimeMillis() - start) + "ms");
+    }
+    return result;
+  }
+
+  /**
+   * Get a page of a player's transactions by position, newest first. Prefer {@link #getHistory} with a cursor when the
+   * previous page is known, an offset read scans every entry it skips.
+   *
+   * @param uuid     the player's UUID
+   * @param currency the currency, or null for every currency
+   * @param offset   the number of entries to skip
+   * @param limit    the page size
+   *
+   * @return the entries from the offset, empty with the JSON storage which keeps no transaction log
+   */
+  public static List<HistoryEntry> getHistoryAt(@NotNull UUID uuid, @Nullable String currency, long offset, int limit) {
+    if (limit <= 0 || offset < 0 || (currency != null && getCurrency(currency) == null)) return List.of();
+    return DatabaseFactory.INSTANCE.getHistoryAt(uuid, currency, offset, limit);
   }
 
   /**
@@ -0,0 +1,35 @@
+package com.kingpixel.ultraeconomy.api.event;
+
+import com.kingpixel.ultraeconomy.database.TransactionType;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A change of one player's balance in one currency. Changes that happen within the coalescing window are merged
+ * into a single event, from the balance before the first one to the balance after the last one.
+ *
+ * @param playerUUID   the player whose balance changed
+ * @param currency     the currency
+ * @param type         the kind of change, the last one when several were merged
+ * @param previous     the balance before the change
+ * @param current      the balance after the change
+ * @param changes      how many changes were merged into this event
+ * @param counterparty the other player of a {@link TransactionType#TRANSFER}, null otherwise
+ */
+public record BalanceChangeEvent(UUID playerUUID, String currency, TransactionType type, BigDecimal previous,
+                                 BigDecimal current, int changes, @Nullable UUID counterparty) {
+
+  /**
+   * @return the net change, positive for money in
+   */
+  public BigDecimal delta() {
+    return current.subtract(previous);
+  }
+
+  BalanceChangeEvent merge(BalanceChangeEvent next) {
+    return new BalanceChangeEvent(playerUUID, currency, next.type, previous, next.current, changes + next.changes,
+      next.counterparty);
+  }
+}
@@ -0,0 +1,9 @@
+package com.kingpixel.ultraeconomy.api.event;
+
+/**
+ * Called with the balance changes published by {@link EconomyEvents}
+ */
+@FunctionalInterface
+public interface BalanceListener {
+  void onBalanceChange(BalanceChangeEvent event);
+}
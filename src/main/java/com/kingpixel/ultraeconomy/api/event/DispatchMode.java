@@ -0,0 +1,15 @@
+package com.kingpixel.ultraeconomy.api.event;
+
+/**
+ * Where a listener is called
+ */
+public enum DispatchMode {
+  /**
+   * On the economy event thread, never blocking the change itself
+   */
+  ASYNC,
+  /**
+   * On the server thread, for listeners that touch the world or players
+   */
+  SERVER_THREAD
+}
@@ -0,0 +1,141 @@
+package com.kingpixel.ultraeconomy.api.event;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.database.TransactionType;
+import net.minecraft.server.MinecraftServer;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Balance change events. Publishing only merges the change into a pending map, the listeners are called later from
+ * the event thread, or the server thread if they asked for it, so a slow listener never slows down a balance change.
+ */
+public class EconomyEvents {
+  private static final List<Registration> LISTENERS = new CopyOnWriteArrayList<>();
+  private static final ThreadLocal<UUID[]> TRANSFER = new ThreadLocal<>();
+  private static final Map<Key, BalanceChangeEvent> PENDING = new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "UltraEconomy-Events");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Register a listener called off the server thread
+   *
+   * @param listener the listener
+   */
+  public static void register(@NotNull BalanceListener listener) {
+    register(listener, DispatchMode.ASYNC);
+  }
+
+  public static void register(@NotNull BalanceListener listener, @NotNull DispatchMode mode) {
+    LISTENERS.add(new Registration(listener, mode));
+  }
+
+  public static void unregister(@NotNull BalanceListener listener) {
+    LISTENERS.removeIf(registration -> registration.listener() == listener);
+  }
+
+  public static boolean hasListeners() {
+    return !LISTENERS.isEmpty();
+  }
+
+  /**
+   * Run a transfer, the balance changes it makes are published as {@link TransactionType#TRANSFER} with the other
+   * player as counterparty
+   *
+   * @param from   the payer
+   * @param to     the receiver
+   * @param action the transfer
+   *
+   * @return the result of the action
+   */
+  public static <T> T transfer(UUID from, UUID to, Supplier<T> action) {
+    if (LISTENERS.isEmpty()) return action.get();
+    TRANSFER.set(new UUID[]{from, to});
+    try {
+      return action.get();
+    } finally {
+      TRANSFER.remove();
+    }
+  }
+
+  /**
+   * Publish a balance change, merging it with the pending change of the same player and currency
+   *
+   * @param playerUUID   the player
+   * @param currency     the currency
+   * @param type         the kind of change
+   * @param previous     the balance before the change
+   * @param current      the balance after the change
+   * @param counterparty the other player of a transfer, or null
+   */
+  public static void publish(UUID playerUUID, String currency, TransactionType type, BigDecimal previous,
+                             BigDecimal current, @Nullable UUID counterparty) {
+    if (LISTENERS.isEmpty() || current == null) return;
+    UUID[] transfer = TRANSFER.get();
+    if (transfer != null && counterparty == null) {
+      if (playerUUID.equals(transfer[0])) counterparty = transfer[1];
+      else if (playerUUID.equals(transfer[1])) counterparty = transfer[0];
+      if (counterparty != null) type = TransactionType.TRANSFER;
+    }
+    BalanceChangeEvent event = new BalanceChangeEvent(playerUUID, currency, type,
+      previous == null ? BigDecimal.ZERO : previous, current, 1, counterparty);
+    long window = UltraEconomy.config.getEventCoalesceWindow().toMillis();
+    if (window <= 0) {
+      EXECUTOR.execute(() -> dispatch(event));
+      return;
+    }
+    Key key = new Key(playerUUID, currency);
+    // Only the change that opens the window schedules the flush, later ones just merge into it
+    if (PENDING.merge(key, event, BalanceChangeEvent::merge) == event) {
+      EXECUTOR.schedule(() -> flush(key), window, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static void flush(Key key) {
+    BalanceChangeEvent event = PENDING.remove(key);
+    if (event != null) dispatch(event);
+  }
+
+  private static void dispatch(BalanceChangeEvent event) {
+    for (Registration registration : LISTENERS) {
+      if (registration.mode() == DispatchMode.SERVER_THREAD) {
+        MinecraftServer server = UltraEconomy.server;
+        if (server != null) {
+          server.execute(() -> call(registration.listener(), event));
+          continue;
+        }
+      }
+      call(registration.listener(), event);
+    }
+  }
+
+  private static void call(BalanceListener listener, BalanceChangeEvent event) {
+    try {
+      listener.onBalanceChange(event);
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error in balance listener " + listener.getClass().getName());
+      e.printStackTrace();
+    }
+  }
+
+  private record Key(UUID playerUUID, String currency) {
+  }
+
+  private record Registration(BalanceListener listener, DispatchMode mode) {
+  }
+}
@@ -0,0 +1,161 @@
+package com.kingpixel.ultraeconomy.bridge;
+
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.BalanceSnapshots;
+import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
+import com.kingpixel.ultraeconomy.api.event.EconomyEvents;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
+import net.impactdev.impactor.api.economy.currency.Currency;
+import net.impactdev.impactor.api.economy.transactions.details.EconomyResultType;
+import net.kyori.adventure.key.Key;
+import net.minecraft.server.MinecraftServer;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point of the Impactor mixins. Impactor calls accounts from the server thread, so reads are served from memory:
+ * the online players' snapshots, then the account cache, then the leaderboard mirror, while a miss is loaded in the
+ * background. Writes go through the batch path so they report whether they really happened; on the server thread they
+ * only use cached accounts and save in the background, storage is never waited on there.
+ */
+public class ImpactorBridge {
+  private static final Map<Key, String> CURRENCY_IDS = new ConcurrentHashMap<>();
+  private static final Set<UUID> LOADING = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Get the UltraEconomy currency id of an Impactor currency
+   *
+   * @param currency the Impactor currency
+   *
+   * @return the currency id
+   */
+  public static String currencyId(Currency currency) {
+    return CURRENCY_IDS.computeIfAbsent(currency.key(), key -> key.value().replace("impactor:", ""));
+  }
+
+  /**
+   * Get a balance without blocking the server thread on storage
+   *
+   * @param playerUUID the player's UUID
+   * @param currency   the currency id
+   *
+   * @return the balance
+   */
+  public static BigDecimal balance(UUID playerUUID, String currency) {
+    BalanceSnapshots.Snapshot snapshot = BalanceSnapshots.get(playerUUID);
+    if (snapshot != null) {
+      BalanceSnapshots.Entry entry = snapshot.entry(currency);
+      if (entry != null) return entry.balance();
+    }
+    Account account = DatabaseFactory.INSTANCE.getCachedAccount(playerUUID);
+    if (account != null) return account.getBalance(currency);
+    if (!onServerThread()) return UltraEconomyApi.getBalance(playerUUID, currency);
+
+    prefetch(playerUUID);
+    BigDecimal mirrored = Leaderboards.getBalance(playerUUID, currency);
+    if (mirrored != null) return mirrored;
+    var definition = Currencies.getCurrency(currency);
+    return definition != null ? definition.getDefaultBalance() : BigDecimal.ZERO;
+  }
+
+  /**
+   * Deposit into an account. On the server thread a cached account is changed in memory and saved in the background;
+   * any other account is handed to the executor and reported as a success, a deposit of a valid currency is only
+   * rejected for an account that does not exist.
+   */
+  public static EconomyResultType deposit(UUID playerUUID, String currency, BigDecimal amount) {
+    if (Currencies.getCurrency(currency) == null) return EconomyResultType.INVALID;
+    List<TransactionLeg> legs = List.of(TransactionLeg.deposit(playerUUID, currency, amount));
+    if (!onServerThread()) return result(UltraEconomyApi.executeBatch(legs));
+    Boolean applied = DatabaseFactory.INSTANCE.applyCachedBatch(legs);
+    if (applied != null) return result(applied);
+    CompletableFuture.runAsync(() -> UltraEconomyApi.executeBatch(legs), UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+    return EconomyResultType.SUCCESS;
+  }
+
+  /**
+   * Withdraw from an account. On the server thread only a cached account can be checked for funds without blocking,
+   * an account that is not cached yet fails without changing anything and is loaded for the next call.
+   */
+  public static EconomyResultType withdraw(UUID playerUUID, String currency, BigDecimal amount) {
+    if (Currencies.getCurrency(currency) == null) return EconomyResultType.INVALID;
+    List<TransactionLeg> legs = List.of(TransactionLeg.withdraw(playerUUID, currency, amount));
+    if (!onServerThread()) {
+      if (UltraEconomyApi.executeBatch(legs)) return EconomyResultType.SUCCESS;
+      return hasAccount(playerUUID) ? EconomyResultType.NOT_ENOUGH_FUNDS : EconomyResultType.FAILED;
+    }
+    Boolean applied = DatabaseFactory.INSTANCE.applyCachedBatch(legs);
+    if (applied == null) {
+      prefetch(playerUUID);
+      return EconomyResultType.FAILED;
+    }
+    return applied ? EconomyResultType.SUCCESS : EconomyResultType.NOT_ENOUGH_FUNDS;
+  }
+
+  /**
+   * Transfer between two accounts, served like {@link #withdraw} on the server thread
+   */
+  public static EconomyResultType transfer(UUID from, UUID to, String currency, BigDecimal amount) {
+    var definition = Currencies.getCurrency(currency);
+    if (definition == null) return EconomyResultType.INVALID;
+    if (!onServerThread()) {
+      if (UltraEconomyApi.transfer(from, to, currency, amount)) return EconomyResultType.SUCCESS;
+      return hasAccount(from) ? EconomyResultType.NOT_ENOUGH_FUNDS : EconomyResultType.FAILED;
+    }
+    if (!definition.isTransferable()) return EconomyResultType.FAILED;
+    Boolean applied = EconomyEvents.transfer(from, to, () -> DatabaseFactory.INSTANCE.applyCachedBatch(List.of(
+      TransactionLeg.withdraw(from, currency, amount),
+      TransactionLeg.deposit(to, currency, amount))));
+    if (applied == null) {
+      prefetch(from);
+      prefetch(to);
+      return EconomyResultType.FAILED;
+    }
+    return applied ? EconomyResultType.SUCCESS : EconomyResultType.NOT_ENOUGH_FUNDS;
+  }
+
+  public static EconomyResultType set(UUID playerUUID, String currency, BigDecimal amount) {
+    if (Currencies.getCurrency(currency) == null) return EconomyResultType.INVALID;
+    UltraEconomyApi.setBalance(playerUUID, currency, amount);
+    return EconomyResultType.SUCCESS;
+  }
+
+  private static EconomyResultType result(boolean success) {
+    return success ? EconomyResultType.SUCCESS : EconomyResultType.FAILED;
+  }
+
+  private static boolean hasAccount(UUID playerUUID) {
+    return DatabaseFactory.INSTANCE.getCachedAccount(playerUUID) != null;
+  }
+
+  /**
+   * Load an account in the background so the next read is served from the cache
+   */
+  private static void prefetch(UUID playerUUID) {
+    if (!LOADING.add(playerUUID)) return;
+    CompletableFuture.runAsync(() -> DatabaseFactory.INSTANCE.getAccount(playerUUID), UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
+      .whenComplete((v, e) -> {
+        LOADING.remove(playerUUID);
+        if (e != null) e.printStackTrace();
+      });
+  }
+
+  private static boolean onServerThread() {
+    MinecraftServer server = UltraEconomy.server;
+    return server != null && server.isOnThread();
+  }
+}
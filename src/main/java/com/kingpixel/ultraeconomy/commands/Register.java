@@ -17,7 +17,7 @@ public class Register {
     for (String command : UltraEconomy.config.getCommands()) {
       var base = CommandManager.literal(command);
       base.executes(context -> {
-        BalanceCommand.run(context.getSource().getPlayer(), context.getSource(), Currencies.DEFAULT_CURRENCY.getId());
+        BalanceCommand.run(context.getSource().getPlayer(), context.getSource(), Currencies.getDefaultCurrency().getId());
         return 1;
       });
 
@@ -26,6 +26,7 @@ public class Register {
       ReloadCommand.put(dispatcher, base);
       DepositCommand.put(dispatcher, base);
       BaltopCommand.put(dispatcher, base);
+      HistoryCommand.put(dispatcher, base);
 
       dispatcher.register(base);
     }
@@ -1,9 +1,11 @@
 package com.kingpixel.ultraeconomy.commands.admin;
 
-import com.kingpixel.cobbleutils.command.suggests.CobbleUtilsSuggests;
+import com.kingpixel.cobbleutils.Model.messages.MessageType;
+import com.kingpixel.cobbleutils.api.PermissionApi;
 import com.kingpixel.ultraeconomy.UltraEconomy;
 import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
 import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
@@ -14,6 +16,7 @@ import net.minecraft.text.Text;
 
 import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -28,32 +31,33 @@ public class BalanceCommand {
   private static LiteralArgumentBuilder<ServerCommandSource> get() {
     return CommandManager.literal("balance")
       .executes(context -> {
-        run(context.getSource().getPlayer(), context.getSource(), Currencies.DEFAULT_CURRENCY.getId());
+        run(context.getSource().getPlayer(), context.getSource(), Currencies.getDefaultCurrency().getId());
         return 1;
       }).then(
         CommandManager.argument("currency", StringArgumentType.string())
           .suggests((context, builder) -> {
-            var size = Currencies.CURRENCY_IDS.length;
-            for (int i = 0; i < size; i++) {
-              builder.suggest(Currencies.CURRENCY_IDS[i]);
+            var ids = Currencies.getCurrencyIds();
+            for (int i = 0; i < ids.length; i++) {
+              builder.suggest(ids[i]);
             }
             return builder.buildFuture();
           }).executes(context -> {
             run(context.getSource().getPlayer(), context.getSource(), StringArgumentType.getString(context, "currency"));
             return 1;
           }).then(
-            CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.suggestPlayerName("player", List.of(
-                "ultraeconomy.admin.balance"
-              ), 0)
+            CommandManager.argument("player", StringArgumentType.string())
+              .requires(source -> PermissionApi.hasPermission(source, List.of("ultraeconomy.admin.balance"), 0))
+              .suggests(PlayerNames::suggest)
               .executes(context -> {
                 CompletableFuture.runAsync(() -> {
                   var target = StringArgumentType.getString(context, "player");
                   var currencyId = StringArgumentType.getString(context, "currency");
-                  var data = CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.getPlayer(target);
-                  data.ifPresentOrElse(
-                    d -> run(d.player(), context.getSource(), currencyId),
-                    () -> context.getSource().sendError(Text.literal("§cPlayer not found"))
-                  );
+                  UUID uuid = PlayerNames.resolve(target);
+                  if (uuid == null) {
+                    context.getSource().sendError(Text.literal("§cPlayer not found"));
+                    return;
+                  }
+                  run(uuid, context.getSource(), currencyId);
                 }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR).exceptionally(e -> {
                   e.printStackTrace();
                   return null;
@@ -65,13 +69,16 @@ public class BalanceCommand {
   }
 
   public static void run(ServerPlayerEntity target, ServerCommandSource source, String currencyId) {
-    CompletableFuture.runAsync(() -> {
-      if (target == null) {
-        source.sendError(Text.literal("§cYou must be a player to use this command"));
-        return;
-      }
+    if (target == null) {
+      source.sendError(Text.literal("§cYou must be a player to use this command"));
+      return;
+    }
+    run(target.getUuid(), source, currencyId);
+  }
 
-      var account = UltraEconomyApi.getAccount(target.getUuid());
+  public static void run(UUID target, ServerCommandSource source, String currencyId) {
+    CompletableFuture.runAsync(() -> {
+      var account = UltraEconomyApi.getAccount(target);
       if (account == null) {
         source.sendError(Text.literal("§cAccount not found"));
         return;
@@ -80,7 +87,7 @@ public class BalanceCommand {
       var currency = Currencies.getCurrency(currencyId);
       if (currency == null) {
         source.sendError(Text.literal("§cCurrency not found: " + currencyId + ". Available: " + String.join(", ",
-          Currencies.CURRENCY_IDS)));
+          Currencies.getCurrencyIds())));
         return;
       }
 
@@ -89,15 +96,16 @@ public class BalanceCommand {
         source.sendError(Text.literal("§cBalance not found"));
         return;
       }
-      ServerPlayerEntity player = source.getPlayer();
-
       var lang = UltraEconomy.lang;
-      String modifiedContent = lang.getMessageBalance().getRawMessage().replace("%balance%", currency.format(balance,
-        Locale.US));
       var message = lang.getMessageBalance();
+      String formatted = currency.format(balance, Locale.US);
+      if (message.getType() == MessageType.CHAT) {
+        source.sendMessage(lang.getBalanceTemplate().toText(formatted));
+        return;
+      }
       message.sendMessage(
-        player,
-        modifiedContent,
+        source.getPlayer(),
+        lang.getBalanceTemplate().render(formatted),
         UltraEconomy.MOD_ID,
         false
       );
@@ -1,11 +1,11 @@
 package com.kingpixel.ultraeconomy.commands.admin;
 
 import com.kingpixel.cobbleutils.api.PermissionApi;
-import com.kingpixel.cobbleutils.command.suggests.CobbleUtilsSuggests;
 import com.kingpixel.cobbleutils.util.AdventureTranslator;
 import com.kingpixel.ultraeconomy.UltraEconomy;
 import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
 import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
@@ -15,6 +15,7 @@ import net.minecraft.text.Text;
 
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -30,28 +31,30 @@ public class DepositCommand {
             .then(
               CommandManager.argument("currency", StringArgumentType.string())
                 .suggests((context, builder) -> {
-                  var size = Currencies.CURRENCY_IDS.length;
-                  for (int i = 0; i < size; i++) {
-                    builder.suggest(Currencies.CURRENCY_IDS[i]);
+                  var ids = Currencies.getCurrencyIds();
+                  for (int i = 0; i < ids.length; i++) {
+                    builder.suggest(ids[i]);
                   }
                   return builder.buildFuture();
                 }).then(
-                  CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.suggestPlayerName("player", List.of("ultraeconomy.admin.deposit"), 2)
+                  CommandManager.argument("player", StringArgumentType.string())
+                    .requires(source -> PermissionApi.hasPermission(source, List.of("ultraeconomy.admin.deposit"), 2))
+                    .suggests(PlayerNames::suggest)
                     .executes(context -> {
                       CompletableFuture.runAsync(() -> {
                           var target = StringArgumentType.getString(context, "player");
                           var currency = Currencies.getCurrency(StringArgumentType.getString(context, "currency"));
                           var amountStr = StringArgumentType.getString(context, "amount");
-                          var data = CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.getPlayer(target);
-                          data.ifPresentOrElse(
-                            d -> {
-                              BigDecimal value = BigDecimal.valueOf(Double.parseDouble(amountStr));
-                              UltraEconomyApi.deposit(d.player().getUuid(), currency.getId(), value);
-                              context.getSource().sendMessage(AdventureTranslator.toNative("§aDeposited " + currency.format(value) + " " +
-                                "to " + d.player().getGameProfile().getName()));
-                            },
-                            () -> context.getSource().sendError(Text.literal("§cPlayer not found"))
-                          );
+                          UUID uuid = PlayerNames.resolve(target);
+                          if (uuid == null) {
+                            context.getSource().sendError(Text.literal("§cPlayer not found"));
+                            return;
+                          }
+                          BigDecimal value = BigDecimal.valueOf(Double.parseDouble(amountStr));
+                          UltraEconomyApi.deposit(uuid, currency.getId(), value);
+                          String name = PlayerNames.nameOf(uuid);
+                          context.getSource().sendMessage(AdventureTranslator.toNative("§aDeposited " + currency.format(value) + " " +
+                            "to " + (name != null ? name : target)));
                         }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
                         .exceptionally(e -> {
                           e.printStackTrace();
@@ -0,0 +1,171 @@
+package com.kingpixel.ultraeconomy.commands.admin;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kingpixel.cobbleutils.api.PermissionApi;
+import com.kingpixel.cobbleutils.util.AdventureTranslator;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
+import com.kingpixel.ultraeconomy.models.Currency;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the stored transactions of a player, page by page
+ */
+public class HistoryCommand {
+  private static final int PAGE_SIZE = 10;
+  private static final int MAX_PAGE_WALK = 3;
+  private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+  /**
+   * Last entry of every page a player already read, so the next page starts right after it
+   */
+  private static final Cache<CursorKey, NavigableMap<Integer, HistoryEntry>> CURSORS = Caffeine.newBuilder()
+    .expireAfterAccess(5, TimeUnit.MINUTES)
+    .maximumSize(1_000)
+    .build();
+
+  public static void put(CommandDispatcher<ServerCommandSource> dispatcher, LiteralArgumentBuilder<ServerCommandSource> base) {
+    base.then(get());
+    dispatcher.register(get());
+  }
+
+  private static LiteralArgumentBuilder<ServerCommandSource> get() {
+    return CommandManager.literal("history")
+      .requires(source -> PermissionApi.hasPermission(source, "ultraeconomy.command.history", 0))
+      .executes(context -> {
+        run(context.getSource().getPlayer(), context.getSource(), Currencies.getDefaultCurrency().getId(), 1);
+        return 1;
+      }).then(
+        CommandManager.argument("currency", StringArgumentType.string())
+          .suggests((context, builder) -> {
+            var ids = Currencies.getCurrencyIds();
+            for (int i = 0; i < ids.length; i++) {
+              builder.suggest(ids[i]);
+            }
+            return builder.buildFuture();
+          }).executes(context -> {
+            run(context.getSource().getPlayer(), context.getSource(), StringArgumentType.getString(context, "currency"), 1);
+            return 1;
+          }).then(
+            CommandManager.argument("page", IntegerArgumentType.integer(1, 1000))
+              .executes(context -> {
+                run(context.getSource().getPlayer(), context.getSource(), StringArgumentType.getString(context, "currency"),
+                  IntegerArgumentType.getInteger(context, "page"));
+                return 1;
+              }).then(
+                CommandManager.argument("player", StringArgumentType.string())
+                  .requires(source -> PermissionApi.hasPermission(source, List.of("ultraeconomy.admin.history"), 2))
+                  .suggests(PlayerNames::suggest)
+                  .executes(context -> {
+                    CompletableFuture.runAsync(() -> {
+                      var target = StringArgumentType.getString(context, "player");
+                      UUID uuid = PlayerNames.resolve(target);
+                      if (uuid == null) {
+                        context.getSource().sendError(AdventureTranslator.toNative(UltraEconomy.lang.getMessagePlayerNotFound()));
+                        return;
+                      }
+                      run(uuid, target, context.getSource(), StringArgumentType.getString(context, "currency"),
+                        IntegerArgumentType.getInteger(context, "page"));
+                    }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR).exceptionally(e -> {
+                      e.printStackTrace();
+                      return null;
+                    });
+                    return 1;
+                  })
+              )
+          )
+      );
+  }
+
+  public static void run(ServerPlayerEntity target, ServerCommandSource source, String currencyId, int page) {
+    if (target == null) {
+      source.sendError(Text.literal("§cYou must be a player to use this command"));
+      return;
+    }
+    run(target.getUuid(), target.getGameProfile().getName(), source, currencyId, page);
+  }
+
+  public static void run(UUID target, String targetName, ServerCommandSource source, String currencyId, int page) {
+    CompletableFuture.runAsync(() -> {
+      Currency currency = Currencies.getCurrency(currencyId);
+      if (currency == null) {
+        source.sendError(AdventureTranslator.toNative(UltraEconomy.lang.getMessageCurrencyNotFound()));
+        return;
+      }
+      List<HistoryEntry> entries = fetchPage(target, currency.getId(), page);
+
+      var lang = UltraEconomy.lang;
+      StringBuilder sb = new StringBuilder(256);
+      lang.getHistoryHeaderTemplate().render(sb, targetName, currency.getId());
+      if (entries.isEmpty()) {
+        lang.getHistoryEmptyTemplate().render(sb.append('\n'));
+      } else {
+        for (HistoryEntry entry : entries) {
+          lang.getHistoryLineTemplate().render(sb.append('\n'), DATE.format(entry.timestamp()), entry.type().name(),
+            currency.format(entry.amount()), entry.currency());
+        }
+      }
+      // The next page command names the player unless the source is reading its own history
+      ServerPlayerEntity viewer = source.getPlayer();
+      String player = viewer != null && viewer.getUuid().equals(target) ? "" : targetName;
+      lang.getHistoryFooterTemplate().render(sb.append('\n'), page, currency.getId(), Math.max(1, page - 1), page + 1,
+        player);
+      Text output = AdventureTranslator.toNative(sb.toString());
+      source.sendFeedback(() -> output, false);
+    }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR).exceptionally(e -> {
+      e.printStackTrace();
+      return null;
+    });
+  }
+
+  /**
+   * Read a page by keyset, walking forward from the closest page whose end is known. A page further away than a few
+   * pages is read with one offset query instead.
+   */
+  private static List<HistoryEntry> fetchPage(UUID target, String currency, int page) {
+    NavigableMap<Integer, HistoryEntry> cursors = CURSORS.get(new CursorKey(target, currency),
+      k -> new ConcurrentSkipListMap<>());
+    // Reading the first page starts a new listing, so the next pages follow on from what the player just saw
+    if (page == 1) cursors.clear();
+    Map.Entry<Integer, HistoryEntry> floor = cursors.floorEntry(page - 1);
+    int known = floor == null ? 0 : floor.getKey();
+    HistoryEntry after = floor == null ? null : floor.getValue();
+    List<HistoryEntry> rows = List.of();
+    if (page - known > MAX_PAGE_WALK) {
+      rows = UltraEconomyApi.getHistoryAt(target, currency, (long) (page - 1) * PAGE_SIZE, PAGE_SIZE);
+      if (rows.size() == PAGE_SIZE) cursors.put(page, rows.get(rows.size() - 1));
+      return rows;
+    }
+    for (int current = known + 1; current <= page; current++) {
+      rows = UltraEconomyApi.getHistory(target, currency, after, PAGE_SIZE);
+      if (rows.size() < PAGE_SIZE && current < page) return List.of();
+      if (rows.isEmpty()) break;
+      after = rows.get(rows.size() - 1);
+      if (rows.size() == PAGE_SIZE) cursors.put(current, after);
+    }
+    return rows;
+  }
+
+  private record CursorKey(UUID playerUUID, String currency) {
+  }
+}
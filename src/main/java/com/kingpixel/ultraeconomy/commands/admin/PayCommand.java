@@ -1,10 +1,10 @@
 package com.kingpixel.ultraeconomy.commands.admin;
 
 import com.kingpixel.cobbleutils.api.PermissionApi;
-import com.kingpixel.cobbleutils.command.suggests.CobbleUtilsSuggests;
 import com.kingpixel.ultraeconomy.UltraEconomy;
 import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
 import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.PlayerNames;
 import com.kingpixel.ultraeconomy.models.Currency;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.FloatArgumentType;
@@ -13,9 +13,11 @@ import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
 
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -37,19 +39,17 @@ public class PayCommand {
       .then(
         CommandManager.argument("currency", StringArgumentType.string())
           .suggests((context, builder) -> {
-            var size = Currencies.CURRENCY_IDS.length;
-            for (int i = 0; i < size; i++) {
-              builder.suggest(Currencies.CURRENCY_IDS[i]);
+            var ids = Currencies.getCurrencyIds();
+            for (int i = 0; i < ids.length; i++) {
+              builder.suggest(ids[i]);
             }
             return builder.buildFuture();
           }).then(
             CommandManager.argument("amount", FloatArgumentType.floatArg())
               .then(
-                CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.suggestPlayerName(
-                    "player",
-                    List.of("ultraeconomy.command.pay"),
-                    2
-                  )
+                CommandManager.argument("player", StringArgumentType.string())
+                  .requires(source -> PermissionApi.hasPermission(source, List.of("ultraeconomy.command.pay"), 2))
+                  .suggests(PlayerNames::suggest)
                   .executes(context -> {
                     var executor = context.getSource().getPlayer();
                     var target = StringArgumentType.getString(context, "player");
@@ -66,18 +66,20 @@ public class PayCommand {
   private static void run(ServerPlayerEntity executor, String target, String currencyId, BigDecimal amount) {
     CompletableFuture.runAsync(() -> {
         Currency currency = Currencies.getCurrency(currencyId);
-        var player = CobbleUtilsSuggests.SUGGESTS_PLAYER_OFFLINE_AND_ONLINE.getPlayer(target);
-        player.ifPresent(dataResultPlayer -> {
-          if (executor.getUuid().equals(dataResultPlayer.player().getUuid())) {
-            UltraEconomy.lang.getMessagePayYourself().sendMessage(
-              executor,
-              UltraEconomy.lang.getPrefix(),
-              false
-            );
-            return;
-          }
-          UltraEconomyApi.transfer(executor.getUuid(), dataResultPlayer.player().getUuid(), currency.getId(), amount);
-        });
+        UUID uuid = PlayerNames.resolve(target);
+        if (uuid == null) {
+          executor.sendMessage(Text.literal("§cPlayer not found"));
+          return;
+        }
+        if (executor.getUuid().equals(uuid)) {
+          UltraEconomy.lang.getMessagePayYourself().sendMessage(
+            executor,
+            UltraEconomy.lang.getPrefix(),
+            false
+          );
+          return;
+        }
+        UltraEconomyApi.transfer(executor.getUuid(), uuid, currency.getId(), amount);
       }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
       .exceptionally(e -> {
         e.printStackTrace();
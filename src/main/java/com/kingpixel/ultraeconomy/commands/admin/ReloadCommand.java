@@ -1,12 +1,16 @@
 package com.kingpixel.ultraeconomy.commands.admin;
 
+import com.kingpixel.cobbleutils.util.Utils;
 import com.kingpixel.ultraeconomy.UltraEconomy;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.text.Text;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author Carlos Varas Alonso - 23/09/2025 21:32
  */
@@ -19,7 +23,18 @@ public class ReloadCommand {
           context.getSource().sendMessage(
             Text.literal("§a[UltraEconomy] Reloading configuration...")
           );
-          UltraEconomy.load();
+          MinecraftServer server = context.getSource().getServer();
+          String database = Utils.newGson().toJson(UltraEconomy.config.getDatabase());
+          // Build the new configuration and currency registry off the server thread, it is swapped in once complete
+          CompletableFuture.runAsync(UltraEconomy::loadConfig, UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
+            // Services restart on the server thread, the database only when its settings changed
+            .thenRunAsync(() -> UltraEconomy.loadServices(
+              !database.equals(Utils.newGson().toJson(UltraEconomy.config.getDatabase()))), server)
+            .thenRun(() -> context.getSource().sendMessage(Text.literal("§a[UltraEconomy] Configuration reloaded.")))
+            .exceptionally(e -> {
+              e.printStackTrace();
+              return null;
+            });
           return 1;
         })
     );
@@ -25,7 +25,21 @@ public class Config {
   private MigrationConfig migration;
   private int limitTopPlayers;
   private int adjustmentShortName;
-  private DurationValue balTopCooldown;
+  private DurationValue balTopRefresh;
+  private int balTopRefreshChanges;
+  private boolean sharedRanks;
+  private DurationValue sharedRanksInterval;
+  private DurationValue eventCoalesceWindow;
+  private DurationValue shutdownFlushTimeout;
+  private int shutdownFlushThreads;
+  private boolean journal;
+  private DurationValue journalCommitInterval;
+  private boolean invalidations;
+  private DurationValue invalidationPollInterval;
+  private DurationValue idempotencyWindow;
+  private boolean depositCoalescing;
+  private boolean implicitDefaultBalances;
+  private DurationValue depositCoalesceWindow;
 
   public Config() {
     lang = "en_us";
@@ -36,7 +50,21 @@ public class Config {
     migration = new MigrationConfig();
     limitTopPlayers = 10;
     adjustmentShortName = 3;
-    balTopCooldown = DurationValue.parse("10s");
+    balTopRefresh = DurationValue.parse("30s");
+    balTopRefreshChanges = 100;
+    sharedRanks = false;
+    sharedRanksInterval = DurationValue.parse("1m");
+    eventCoalesceWindow = DurationValue.parse("250ms");
+    shutdownFlushTimeout = DurationValue.parse("10s");
+    shutdownFlushThreads = 4;
+    journal = true;
+    journalCommitInterval = DurationValue.parse("10ms");
+    invalidations = true;
+    invalidationPollInterval = DurationValue.parse("1s");
+    idempotencyWindow = DurationValue.parse("10m");
+    depositCoalescing = false;
+    implicitDefaultBalances = true;
+    depositCoalesceWindow = DurationValue.parse("1s");
   }
 
   public void init() {
@@ -5,31 +5,32 @@ import com.kingpixel.ultraeconomy.UltraEconomy;
 import com.kingpixel.ultraeconomy.models.Currency;
 
 import javax.annotation.Nullable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
+ * Currencies are published as an immutable {@link Registry} snapshot through a single volatile field.
+ * {@link #init()} builds the next snapshot completely before swapping it in, so readers never see a half-loaded registry
+ * and hot-path lookups need no locking.
+ *
  * @author Carlos Varas Alonso - 23/09/2025 21:37
  */
 public class Currencies {
   private static String PATH = UltraEconomy.PATH + "/currencys/";
-  public static final Map<String, Currency> CURRENCIES = new HashMap<>();
-  public static String[] CURRENCY_IDS = new String[0];
-  public static Currency DEFAULT_CURRENCY;
+  private static volatile Registry REGISTRY = Registry.EMPTY;
 
   public static void init() {
-    CURRENCIES.clear();
+    Map<String, Currency> currencies = new LinkedHashMap<>();
     var folder = Utils.getAbsolutePath(PATH);
     folder.mkdirs();
     var files = Utils.getFiles(folder);
     if (files.isEmpty()) {
       Currency currency = new Currency(true, (byte) 2, "$");
       currency.setId("dollar");
-      CURRENCIES.put(currency.getId(), currency);
+      currencies.put(currency.getId(), currency);
       writeCurrency(currency);
       Currency currency2 = new Currency(false, (byte) 2, "€");
       currency2.setId("euro");
-      CURRENCIES.put(currency2.getId(), currency2);
+      currencies.put(currency2.getId(), currency2);
       writeCurrency(currency2);
     } else {
       for (var file : files) {
@@ -38,19 +39,29 @@ public class Currencies {
             Utils.readFileSync(file), Currency.class
           );
           currency.setId(file.getName().replace(".json", ""));
-          CURRENCIES.put(currency.getId(), currency);
+          currencies.put(currency.getId(), currency);
         } catch (Exception e) {
           e.printStackTrace();
         }
       }
     }
-    CURRENCIES.forEach((k, v) -> {
-      v.init();
-      if (v.isPrimary()) {
-        DEFAULT_CURRENCY = v;
-      }
-    });
-    CURRENCY_IDS = CURRENCIES.keySet().toArray(new String[0]);
+    load(currencies.values());
+  }
+
+  /**
+   * Publish a set of currencies in place of the configured ones. Ordinals already assigned are kept.
+   *
+   * @param currencies the currencies, with their ids set
+   */
+  public static void load(Collection<Currency> currencies) {
+    Map<String, Currency> byId = new LinkedHashMap<>();
+    for (Currency currency : currencies) {
+      currency.init();
+      byId.put(currency.getId(), currency);
+    }
+    synchronized (Currencies.class) {
+      REGISTRY = REGISTRY.withCurrencies(byId);
+    }
   }
 
   private static void writeCurrency(Currency currency) {
@@ -59,6 +70,181 @@ public class Currencies {
   }
 
   public static @Nullable Currency getCurrency(String currency) {
-    return CURRENCIES.get(currency);
+    return REGISTRY.byId.get(currency);
+  }
+
+  /**
+   * Get the configured currencies
+   *
+   * @return an immutable view of the currencies
+   */
+  public static Collection<Currency> getCurrencies() {
+    return REGISTRY.byId.values();
+  }
+
+  /**
+   * Get the ids of the configured currencies. The array is shared, do not modify it.
+   *
+   * @return the currency ids
+   */
+  public static String[] getCurrencyIds() {
+    return REGISTRY.ids;
+  }
+
+  /**
+   * Get the primary currency
+   *
+   * @return the primary currency, or null if none is marked as primary
+   */
+  public static @Nullable Currency getDefaultCurrency() {
+    return REGISTRY.defaultCurrency;
+  }
+
+  /**
+   * Get the dense ordinal of a currency, assigning a new one the first time an id is seen.
+   * Ordinals are never reused or reassigned while the server runs, so reloading the currencies cannot make a cached
+   * account read another currency's slot. Ids loaded from storage that are not configured anymore also get an ordinal,
+   * so their balances are kept. Only writes call this, reads use {@link #knownOrdinal(String)}.
+   *
+   * @param currency the currency ID
+   *
+   * @return the ordinal
+   */
+  public static int ordinal(String currency) {
+    Integer ordinal = REGISTRY.ordinals.get(currency);
+    if (ordinal != null) return ordinal;
+    return assignOrdinal(currency);
+  }
+
+  /**
+   * Get the ordinal of a currency without assigning one, for reads that must not grow the registry with ids nothing
+   * ever stored
+   *
+   * @param currency the currency ID
+   *
+   * @return the ordinal, or -1 if the id has none
+   */
+  public static int knownOrdinal(String currency) {
+    Integer ordinal = REGISTRY.ordinals.get(currency);
+    return ordinal != null ? ordinal : -1;
+  }
+
+  private static synchronized int assignOrdinal(String currency) {
+    Registry registry = REGISTRY;
+    Integer ordinal = registry.ordinals.get(currency);
+    if (ordinal != null) return ordinal;
+    REGISTRY = registry.withOrdinal(currency);
+    return REGISTRY.ordinals.get(currency);
+  }
+
+  /**
+   * Get the currency id of an ordinal
+   *
+   * @param ordinal the ordinal
+   *
+   * @return the currency ID
+   */
+  public static String idOf(int ordinal) {
+    return REGISTRY.ordinalIds[ordinal];
+  }
+
+  /**
+   * Get the configured currency of an ordinal
+   *
+   * @param ordinal the ordinal
+   *
+   * @return the currency, or null if the ordinal belongs to a currency that is not configured
+   */
+  public static @Nullable Currency byOrdinal(int ordinal) {
+    return REGISTRY.byOrdinal[ordinal];
+  }
+
+  /**
+   * Get the number of minor unit digits balances of this ordinal are stored with
+   *
+   * @param ordinal the ordinal
+   *
+   * @return the scale, or -1 if balances of this ordinal are always kept as BigDecimal
+   */
+  public static int minorScale(int ordinal) {
+    return REGISTRY.ordinalScales[ordinal];
+  }
+
+  /**
+   * Get the number of ordinals assigned so far
+   *
+   * @return the ordinal count
+   */
+  public static int ordinalCount() {
+    return REGISTRY.ordinalIds.length;
+  }
+
+  /**
+   * Immutable view of the currencies and their ordinals. A new instance is built for every change.
+   */
+  private static final class Registry {
+    private static final Registry EMPTY = new Registry(Map.of(), new String[0], null, Map.of(), new String[0],
+      new int[0], new Currency[0]);
+
+    private final Map<String, Currency> byId;
+    private final String[] ids;
+    private final Currency defaultCurrency;
+    private final Map<String, Integer> ordinals;
+    private final String[] ordinalIds;
+    private final int[] ordinalScales;
+    private final Currency[] byOrdinal;
+
+    private Registry(Map<String, Currency> byId, String[] ids, Currency defaultCurrency, Map<String, Integer> ordinals,
+                     String[] ordinalIds, int[] ordinalScales, Currency[] byOrdinal) {
+      this.byId = byId;
+      this.ids = ids;
+      this.defaultCurrency = defaultCurrency;
+      this.ordinals = ordinals;
+      this.ordinalIds = ordinalIds;
+      this.ordinalScales = ordinalScales;
+      this.byOrdinal = byOrdinal;
+    }
+
+    private Registry withCurrencies(Map<String, Currency> currencies) {
+      Map<String, Integer> nextOrdinals = new HashMap<>(ordinals);
+      List<String> nextIds = new ArrayList<>(Arrays.asList(ordinalIds));
+      int[] nextScales = Arrays.copyOf(ordinalScales, ordinalScales.length + currencies.size());
+      Currency defaultCurrency = null;
+      for (Currency currency : currencies.values()) {
+        if (currency.isPrimary()) defaultCurrency = currency;
+        if (nextOrdinals.containsKey(currency.getId())) continue;
+        int ordinal = nextIds.size();
+        nextOrdinals.put(currency.getId(), ordinal);
+        nextIds.add(currency.getId());
+        // The scale is frozen with the ordinal: changing decimals on reload must not reinterpret stored minor units
+        nextScales[ordinal] = currency.getDecimals();
+      }
+      String[] ordinalIds = nextIds.toArray(new String[0]);
+      Currency[] byOrdinal = new Currency[ordinalIds.length];
+      for (int i = 0; i < ordinalIds.length; i++) {
+        byOrdinal[i] = currencies.get(ordinalIds[i]);
+      }
+      return new Registry(
+        Collections.unmodifiableMap(new LinkedHashMap<>(currencies)),
+        currencies.keySet().toArray(new String[0]),
+        defaultCurrency,
+        Map.copyOf(nextOrdinals),
+        ordinalIds,
+        Arrays.copyOf(nextScales, ordinalIds.length),
+        byOrdinal
+      );
+    }
+
+    private Registry withOrdinal(String currency) {
+      int ordinal = ordinalIds.length;
+      Map<String, Integer> nextOrdinals = new HashMap<>(ordinals);
+      nextOrdinals.put(currency, ordinal);
+      String[] nextIds = Arrays.copyOf(ordinalIds, ordinal + 1);
+      nextIds[ordinal] = currency;
+      int[] nextScales = Arrays.copyOf(ordinalScales, ordinal + 1);
+      nextScales[ordinal] = -1;
+      return new Registry(byId, ids, defaultCurrency, Map.copyOf(nextOrdinals), nextIds, nextScales,
+        Arrays.copyOf(byOrdinal, ordinal + 1));
+    }
   }
 }
@@ -3,6 +3,7 @@ package com.kingpixel.ultraeconomy.config;
 import com.google.gson.Gson;
 import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.Model.messages.HiperMessage;
+import com.kingpixel.cobbleutils.Model.messages.MessageType;
 import com.kingpixel.cobbleutils.util.Utils;
 import com.kingpixel.ultraeconomy.UltraEconomy;
 import lombok.Data;
@@ -31,6 +32,20 @@ public class Lang {
   private String messageOnlyNumbers = "&cYou can only use numbers.";
   private String messageSetBalance = "&aYou have set &6%player%'s &abalance to &6%amount%&a.";
   private String messageAddBalance = "&aYou have added &6%amount% &ato &6%player%'s &abalance.";
+  private String messageHistoryHeader = "&6--- &eTransactions of %player% &6(%currency%) &6---";
+  private String messageHistoryLine = "&7%date% &e%type% &a%amount%";
+  private String messageHistoryFooter = "&6--- &ePage %page% &6| &e/eco history %currency% %next_page% %player% &6---";
+  private String messageHistoryEmpty = "&cNo transactions found.";
+
+  private transient MessageTemplate balanceTemplate;
+  private transient MessageTemplate balTopHeaderTemplate;
+  private transient MessageTemplate balTopLineTemplate;
+  private transient MessageTemplate balTopFooterTemplate;
+  private transient MessageTemplate balTopEmptyTemplate;
+  private transient MessageTemplate historyHeaderTemplate;
+  private transient MessageTemplate historyLineTemplate;
+  private transient MessageTemplate historyFooterTemplate;
+  private transient MessageTemplate historyEmptyTemplate;
 
   public Lang() {
     prefix = "&6[&eUltraEconomy&6] &r";
@@ -52,5 +67,23 @@ public class Lang {
       String data = gson.toJson(UltraEconomy.lang);
       Utils.writeFileAsync(PATH, filename, data);
     }
+    UltraEconomy.lang.compile();
+  }
+
+  /**
+   * Compile the messages used by high traffic commands into templates
+   */
+  private void compile() {
+    String balance = messageBalance.getType() == MessageType.CHAT && messageBalance.getContent() != null
+      ? messageBalance.getContent() : messageBalance.getRawMessage();
+    balanceTemplate = MessageTemplate.compile(balance, "balance");
+    balTopHeaderTemplate = MessageTemplate.compile(messageBalTopHeader, "number");
+    balTopLineTemplate = MessageTemplate.compile(messageBalTopLine, "rank", "player", "balance");
+    balTopFooterTemplate = MessageTemplate.compile(messageBalTopFooter, "page", "currency", "previous_page", "next_page");
+    balTopEmptyTemplate = MessageTemplate.compile(messageBalTopEmpty);
+    historyHeaderTemplate = MessageTemplate.compile(messageHistoryHeader, "player", "currency");
+    historyLineTemplate = MessageTemplate.compile(messageHistoryLine, "date", "type", "amount", "currency");
+    historyFooterTemplate = MessageTemplate.compile(messageHistoryFooter, "page", "currency", "previous_page", "next_page", "player");
+    historyEmptyTemplate = MessageTemplate.compile(messageHistoryEmpty);
   }
 }
@@ -0,0 +1,143 @@
+package com.kingpixel.ultraeconomy.config;
+
+import com.kingpixel.cobbleutils.util.AdventureTranslator;
+import net.minecraft.text.MutableText;
+import net.minecraft.text.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lang message compiled once into literal parts and placeholder slots, so it renders in a single pass into one
+ * builder instead of a chain of {@link String#replace}.
+ * The literal text before the first placeholder and after the last one is parsed to a component once and reused,
+ * only the dynamic middle is parsed on every render.
+ */
+public class MessageTemplate {
+  private final String raw;
+  private final String[] literals;
+  private final int[] slots;
+  private final boolean split;
+  private final Text head;
+  private final String carry;
+  private final Text tail;
+
+  private MessageTemplate(String raw, String[] literals, int[] slots) {
+    this.raw = raw;
+    this.literals = literals;
+    this.slots = slots;
+    String first = literals[0];
+    String last = literals[literals.length - 1];
+    // MiniMessage tags may span the placeholders, those messages are always parsed whole
+    this.split = slots.length > 0 && first.indexOf('<') < 0;
+    this.head = split && !first.isEmpty() ? AdventureTranslator.toNative(first) : null;
+    this.carry = split ? activeCodes(first) : "";
+    // The tail only keeps its own style when it starts with a color code, otherwise it inherits from the values
+    this.tail = split && startsWithColor(last) && last.indexOf('<') < 0 ? AdventureTranslator.toNative(last) : null;
+  }
+
+  /**
+   * Compile a message
+   *
+   * @param raw          the message with %placeholder% tokens
+   * @param placeholders the placeholder names without '%', in the order their values are passed to render
+   *
+   * @return the compiled template
+   */
+  public static MessageTemplate compile(String raw, String... placeholders) {
+    if (raw == null) raw = "";
+    List<String> literals = new ArrayList<>();
+    List<Integer> slots = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    outer:
+    while (i < raw.length()) {
+      char c = raw.charAt(i);
+      if (c == '%') {
+        for (int p = 0; p < placeholders.length; p++) {
+          String name = placeholders[p];
+          int end = i + 1 + name.length();
+          if (raw.startsWith(name, i + 1) && end < raw.length() && raw.charAt(end) == '%') {
+            literals.add(literal.toString());
+            literal.setLength(0);
+            slots.add(p);
+            i = end + 1;
+            continue outer;
+          }
+        }
+      }
+      literal.append(c);
+      i++;
+    }
+    literals.add(literal.toString());
+    return new MessageTemplate(raw, literals.toArray(new String[0]), slots.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * Append the message to a builder
+   *
+   * @param sb     the builder
+   * @param values the placeholder values, in the order given to {@link #compile}
+   *
+   * @return the same builder
+   */
+  public StringBuilder render(StringBuilder sb, Object... values) {
+    for (int i = 0; i < slots.length; i++) {
+      sb.append(literals[i]).append(values[slots[i]]);
+    }
+    return sb.append(literals[literals.length - 1]);
+  }
+
+  public String render(Object... values) {
+    if (slots.length == 0) return raw;
+    return render(new StringBuilder(raw.length() + 32), values).toString();
+  }
+
+  /**
+   * Render the message as a component, reusing the parsed head and tail
+   *
+   * @param values the placeholder values
+   *
+   * @return the component
+   */
+  public Text toText(Object... values) {
+    if (!split) return AdventureTranslator.toNative(render(values));
+    StringBuilder sb = new StringBuilder(raw.length() + 32).append(carry);
+    for (int i = 0; i < slots.length; i++) {
+      if (i > 0) sb.append(literals[i]);
+      sb.append(values[slots[i]]);
+    }
+    if (tail == null) sb.append(literals[slots.length]);
+    MutableText text = Text.empty();
+    if (head != null) text.append(head);
+    text.append(AdventureTranslator.toNative(sb.toString()));
+    if (tail != null) text.append(tail);
+    return text;
+  }
+
+  /**
+   * Legacy color and format codes still active at the end of a literal, so the dynamic part keeps the same style
+   */
+  private static String activeCodes(String literal) {
+    StringBuilder codes = new StringBuilder();
+    for (int i = 0; i < literal.length() - 1; i++) {
+      char c = literal.charAt(i);
+      if (c != '&' && c != '§') continue;
+      char code = Character.toLowerCase(literal.charAt(i + 1));
+      if ((code >= '0' && code <= '9') || (code >= 'a' && code <= 'f') || code == 'r') {
+        codes.setLength(0);
+        if (code != 'r') codes.append(c).append(code);
+      } else if (code >= 'k' && code <= 'o') {
+        codes.append(c).append(code);
+      }
+    }
+    return codes.toString();
+  }
+
+  private static boolean startsWithColor(String literal) {
+    if (literal.length() < 2) return false;
+    char c = literal.charAt(0);
+    char code = Character.toLowerCase(literal.charAt(1));
+    return (c == '&' || c == '§') && ((code >= '0' && code <= '9') || (code >= 'a' && code <= 'f') || code == 'r');
+  }
+}
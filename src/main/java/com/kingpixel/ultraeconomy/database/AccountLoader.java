@@ -0,0 +1,95 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.models.Account;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Batches account loads. Every miss on the account cache goes through here: a UUID already being loaded joins the
+ * load in flight, and the misses of a short window are read together with one query per batch.
+ * Loaded accounts are only put in the cache if nobody cached that account in the meantime, so a load never replaces
+ * an account that is already being modified.
+ */
+public class AccountLoader {
+  private static final long WINDOW_MILLIS = 2;
+  private static final int MAX_BATCH = 500;
+  private static final Map<UUID, CompletableFuture<Account>> IN_FLIGHT = new ConcurrentHashMap<>();
+  private static final Queue<UUID> PENDING = new ConcurrentLinkedQueue<>();
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "UltraEconomy-Loader");
+    t.setDaemon(true);
+    return t;
+  });
+  private static volatile boolean scheduled;
+
+  /**
+   * Load an account from the cache or storage, without creating it
+   *
+   * @param uuid the account UUID
+   *
+   * @return the account, or null if it is not stored
+   */
+  public static CompletableFuture<Account> load(UUID uuid) {
+    Account cached = DatabaseFactory.INSTANCE.getCachedAccount(uuid);
+    if (cached != null) return CompletableFuture.completedFuture(cached);
+    CompletableFuture<Account> created = new CompletableFuture<>();
+    CompletableFuture<Account> future = IN_FLIGHT.putIfAbsent(uuid, created);
+    if (future != null) return future;
+    PENDING.add(uuid);
+    schedule();
+    return created;
+  }
+
+  private static synchronized void schedule() {
+    if (scheduled) return;
+    scheduled = true;
+    EXECUTOR.schedule(AccountLoader::dispatch, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void dispatch() {
+    synchronized (AccountLoader.class) {
+      scheduled = false;
+    }
+    List<UUID> batch = new ArrayList<>(Math.min(PENDING.size(), MAX_BATCH));
+    UUID next;
+    while ((next = PENDING.poll()) != null) {
+      batch.add(next);
+      if (batch.size() == MAX_BATCH) {
+        run(batch);
+        batch = new ArrayList<>(Math.min(PENDING.size(), MAX_BATCH));
+      }
+    }
+    if (!batch.isEmpty()) run(batch);
+  }
+
+  private static void run(List<UUID> batch) {
+    long start = System.currentTimeMillis();
+    DatabaseClient client = DatabaseFactory.INSTANCE;
+    try {
+      Map<UUID, Account> loaded = client.loadAccounts(batch);
+      for (UUID uuid : batch) {
+        Account account = loaded.get(uuid);
+        if (account != null) account = client.cacheIfAbsent(account);
+        complete(uuid, account, null);
+      }
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error loading " + batch.size() + " accounts: " + e.getMessage());
+      e.printStackTrace();
+      for (UUID uuid : batch) complete(uuid, null, e);
+    }
+    if (UltraEconomy.config.isDebug()) {
+      CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Loaded " + batch.size() + " accounts in "
+        + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+  private static void complete(UUID uuid, Account account, Exception error) {
+    CompletableFuture<Account> future = IN_FLIGHT.remove(uuid);
+    if (future == null) return;
+    if (error != null) future.completeExceptionally(error);
+    else future.complete(account);
+  }
+}
@@ -1,14 +1,30 @@
 package com.kingpixel.ultraeconomy.database;
 
+import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.Model.DataBaseConfig;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.leaderboard.LeaderboardEntry;
 import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.PersistencePolicy;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
 
 import javax.annotation.Nullable;
 import java.math.BigDecimal;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public abstract class DatabaseClient {
+  private static final int MAX_WRITE_ATTEMPTS = 5;
+
   /**
    * Connect to the database
    *
@@ -44,6 +60,400 @@ public abstract class DatabaseClient {
    */
   public abstract Account getAccount(UUID uuid);
 
+  /**
+   * Get an account only if it is already in memory, never touching storage
+   *
+   * @param uuid The UUID of the account
+   *
+   * @return The cached account, or null if it is not loaded
+   */
+  public abstract @Nullable Account getCachedAccount(UUID uuid);
+
+  /**
+   * Read several accounts from storage in one round trip. Does not create missing accounts nor touch the cache.
+   *
+   * @param uuids The UUIDs to read
+   *
+   * @return The stored accounts by UUID, missing UUIDs are absent
+   */
+  protected abstract Map<UUID, Account> loadAccounts(Collection<UUID> uuids) throws Exception;
+
+  /**
+   * Put a loaded account in the cache unless one is already there
+   *
+   * @param account The loaded account
+   *
+   * @return The account that ended up in the cache
+   */
+  protected abstract Account cacheIfAbsent(Account account);
+
+  /**
+   * Every account currently in memory
+   *
+   * @return A snapshot of the cached accounts
+   */
+  public abstract Collection<Account> getCachedAccounts();
+
+  /**
+   * Write the drained changes of several accounts on the calling thread, as one batch where the backend allows it
+   *
+   * @param changes The changes by account, as returned by {@link Account#drainChanges()}
+   *
+   * @throws Exception If the batch failed, in which case none of it should be considered saved
+   */
+  protected void writeAccounts(Map<Account, Account.Changes> changes) throws Exception {
+    writeAccounts(changes, List.of());
+  }
+
+  /**
+   * Write the drained changes of several accounts together with transaction legs.
+   * Every balance is written with a compare-and-set against the version this node last saw. A balance another node
+   * wrote in the meantime is reloaded, the local changes are rebased on top of it and the write is retried.
+   *
+   * @param changes The changes by account, as returned by {@link Account#drainChanges()}
+   * @param legs    The legs to record with the first attempt
+   *
+   * @throws Exception If the batch failed, in which case none of it should be considered saved
+   */
+  protected void writeAccounts(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) throws Exception {
+    // Writes of the same account are serialized, so each one compares against the version the previous one left
+    List<ReentrantLock> locks = lockForSave(changes.keySet());
+    try {
+      Map<Account, Account.Changes> pending = changes;
+      List<TransactionLeg> pendingLegs = legs;
+      for (int attempt = 1; ; attempt++) {
+        List<Conflict> conflicts = tryWrite(pending, pendingLegs);
+        if (pending != changes) saved(pending);
+        if (conflicts.isEmpty()) return;
+        Map<Conflict, Account.Stored> current = readStored(conflicts);
+        Set<Account> rebased = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Conflict conflict : conflicts) {
+          conflict.account().rebase(conflict.currency(), current.get(conflict));
+          rebased.add(conflict.account());
+        }
+        if (attempt == MAX_WRITE_ATTEMPTS) {
+          // Still contended, the rebased balances stay dirty and are written again a bit later
+          CobbleUtils.LOGGER.warn("Balances of " + rebased.size() + " accounts kept conflicting with other nodes, retrying later");
+          rebased.forEach(account -> WriteBehind.schedule(account, 1_000));
+          return;
+        }
+        pending = new IdentityHashMap<>();
+        for (Account account : rebased) pending.put(account, account.drainChanges());
+        pendingLegs = List.of();
+      }
+    } finally {
+      locks.forEach(ReentrantLock::unlock);
+    }
+  }
+
+  /**
+   * Reload balances another node wrote into the cached accounts, keeping the changes this node did not save yet
+   *
+   * @param stale The currencies to reload by account
+   */
+  public void refreshBalances(Map<Account, Set<String>> stale) throws Exception {
+    List<ReentrantLock> locks = lockForSave(stale.keySet());
+    try {
+      List<Conflict> conflicts = new ArrayList<>();
+      stale.forEach((account, currencies) -> currencies.forEach(currency -> conflicts.add(new Conflict(account, currency))));
+      Map<Conflict, Account.Stored> current = readStored(conflicts);
+      for (Conflict conflict : conflicts) {
+        Account.Stored stored = current.get(conflict);
+        Account.Stored known = conflict.account().getStored(conflict.currency());
+        // A write of this node may have caught up while the stream was read
+        if (stored == null || (known != null && known.version() >= stored.version())) continue;
+        conflict.account().rebase(conflict.currency(), stored);
+      }
+    } finally {
+      locks.forEach(ReentrantLock::unlock);
+    }
+  }
+
+  /**
+   * Read the balance writes other nodes made since the last poll. Entries may repeat, they are applied by version.
+   *
+   * @return The writes of other nodes, empty if storage is not shared
+   */
+  protected abstract List<Invalidation> pollInvalidations() throws Exception;
+
+  /**
+   * How long entries of the invalidation stream are kept, far longer than any poll interval
+   */
+  protected static final long INVALIDATION_RETENTION = 600_000;
+
+  /**
+   * Take the save locks of several accounts, always in the same order so two writers cannot deadlock
+   */
+  private static List<ReentrantLock> lockForSave(Collection<Account> accounts) {
+    List<Account> ordered = new ArrayList<>(accounts);
+    ordered.sort(Comparator.comparing(Account::getPlayerUUID));
+    List<ReentrantLock> locks = new ArrayList<>(ordered.size());
+    for (Account account : ordered) {
+      ReentrantLock lock = account.getSaveLock();
+      lock.lock();
+      locks.add(lock);
+    }
+    return locks;
+  }
+
+  /**
+   * One attempt at writing changes. Every balance is compared against {@link Account#getStored(String)}, balances
+   * superseded by a newer write of the same account are skipped, and the ones that were written are marked stored.
+   *
+   * @param changes The changes by account
+   * @param legs    The legs to record in the same write, may be empty
+   *
+   * @return The balances that another node changed since this node last saw them
+   */
+  protected abstract List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) throws Exception;
+
+  /**
+   * Read the current stored value of conflicting balances
+   *
+   * @param conflicts The balances to read
+   *
+   * @return The stored values, a balance without a stored value is absent
+   */
+  protected abstract Map<Conflict, Account.Stored> readStored(List<Conflict> conflicts) throws Exception;
+
+  /**
+   * Read the journal marks storage holds for accounts
+   *
+   * @param journalId The journal the marks were written by
+   * @param uuids     The accounts
+   *
+   * @return The marks by account and currency, accounts without marks are absent
+   */
+  protected abstract Map<UUID, Map<String, JournalMark>> readJournalMarks(String journalId, Collection<UUID> uuids) throws Exception;
+
+  /**
+   * Check if the balances of a write must store a {@link JournalMark} next to them
+   *
+   * @param changes The changes being written
+   */
+  protected static boolean tracksJournal(Account.Changes changes) {
+    return changes.version() > 0 && Journal.isTracking();
+  }
+
+  /**
+   * Write balances left in a local journal into storage. A sequenced balance whose {@link JournalMark} covers it
+   * already landed and is dropped; one computed from a base older than the marked write is moved onto the value that
+   * write stored. Each balance is then written against the version it was computed from; when storage moved on since,
+   * the journaled change is rebased on the current value instead of overwriting it. The writes carry the sequence of
+   * the records, so they leave marks of their own and replaying again changes nothing. Storage is written directly,
+   * nothing is cached or published. Used to replay local journals.
+   *
+   * @param balances The journaled balances, at most one per account and currency
+   * @param names    The player names known for the accounts, storage or the UUID fills in the others
+   *
+   * @throws Exception If storage failed or stayed contended, in which case the journal must be kept
+   */
+  protected void restoreBalances(Collection<JournaledBalance> balances, Map<UUID, String> names) throws Exception {
+    if (balances.isEmpty()) return;
+    Set<UUID> uuids = new HashSet<>();
+    balances.forEach(balance -> uuids.add(balance.playerUUID()));
+    Map<UUID, Map<String, JournalMark>> marks = balances.stream().anyMatch(balance -> balance.sequence() > 0)
+      ? readJournalMarks(Journal.id(), uuids)
+      : Map.of();
+    List<JournaledBalance> pending = new ArrayList<>(balances.size());
+    Map<UUID, Long> sequences = new HashMap<>();
+    for (JournaledBalance balance : balances) {
+      JournalMark mark = marks.getOrDefault(balance.playerUUID(), Map.of()).get(balance.currency());
+      if (mark != null) {
+        if (mark.sequence() >= balance.sequence()) continue;
+        // Written after a save that landed but was not seen by the record, the save holds its base
+        if (mark.version() > balance.baseVersion()) balance = balance.withBase(mark.version(), mark.amount());
+      }
+      pending.add(balance);
+      sequences.merge(balance.playerUUID(), balance.sequence(), Math::max);
+    }
+    if (pending.isEmpty()) return;
+    Map<UUID, Account> loaded = loadAccounts(sequences.keySet());
+    for (int attempt = 1; !pending.isEmpty(); attempt++) {
+      if (attempt > MAX_WRITE_ATTEMPTS) {
+        throw new IllegalStateException(pending.size() + " journaled balances kept conflicting with other nodes");
+      }
+      Map<Conflict, JournaledBalance> byConflict = new HashMap<>();
+      for (JournaledBalance balance : pending) {
+        UUID uuid = balance.playerUUID();
+        byConflict.put(new Conflict(detached(loaded.get(uuid), uuid, names.get(uuid), Map.of()), balance.currency()), balance);
+      }
+      // The first attempt compares against the accounts just loaded, retries read the balances that moved again
+      Map<Conflict, Account.Stored> current = new HashMap<>();
+      if (attempt == 1) {
+        byConflict.keySet().forEach(conflict -> {
+          Account.Stored stored = conflict.account().getStored(conflict.currency());
+          if (stored != null) current.put(conflict, stored);
+        });
+      } else {
+        current.putAll(readStored(List.copyOf(byConflict.keySet())));
+      }
+
+      Map<UUID, Map<String, BigDecimal>> values = new HashMap<>();
+      Map<UUID, Map<String, Account.Stored>> expected = new HashMap<>();
+      for (Map.Entry<Conflict, JournaledBalance> entry : byConflict.entrySet()) {
+        JournaledBalance balance = entry.getValue();
+        Account.Stored now = current.get(entry.getKey());
+        BigDecimal value;
+        if (now == null || now.version() == balance.baseVersion()) {
+          value = balance.amount();
+        } else if (balance.sequence() == 0 && attempt == 1 && now.version() == balance.landedVersion()
+          && now.amount().compareTo(balance.amount()) == 0) {
+          // Without a sequence there is no mark, a write that already landed is told by the value it left
+          continue;
+        } else {
+          value = now.amount().add(balance.delta());
+        }
+        values.computeIfAbsent(balance.playerUUID(), k -> new HashMap<>()).put(balance.currency(), value);
+        if (now != null) expected.computeIfAbsent(balance.playerUUID(), k -> new HashMap<>()).put(balance.currency(), now);
+      }
+      if (values.isEmpty()) return;
+
+      Map<Account, Account.Changes> changes = new IdentityHashMap<>();
+      values.forEach((uuid, accountValues) -> {
+        Account account = detached(loaded.get(uuid), uuid, names.get(uuid), accountValues);
+        expected.getOrDefault(uuid, Map.of()).forEach((currency, stored) ->
+          account.markStored(currency, stored.version(), stored.amount(), 0));
+        // An account storage never saw needs a name to be created, the UUID stands in until the player joins again
+        String name = account.getPlayerName() != null ? account.getPlayerName() : uuid.toString();
+        changes.put(account, new Account.Changes(sequences.get(uuid), name, accountValues));
+      });
+      List<JournaledBalance> conflicting = new ArrayList<>();
+      for (Conflict conflict : tryWrite(changes, List.of())) {
+        for (JournaledBalance balance : pending) {
+          if (balance.playerUUID().equals(conflict.account().getPlayerUUID()) && balance.currency().equals(conflict.currency())) {
+            conflicting.add(balance);
+          }
+        }
+      }
+      pending = conflicting;
+    }
+  }
+
+  /**
+   * A copy of a stored account that is never cached, so writing it publishes nothing
+   *
+   * @param stored The account as loaded from storage, or null if storage has none
+   * @param values Balances to hold instead of the stored ones
+   */
+  private static Account detached(@Nullable Account stored, UUID uuid, @Nullable String name, Map<String, BigDecimal> values) {
+    Map<String, BigDecimal> balances = new HashMap<>(stored != null ? stored.getBalances() : Map.of());
+    balances.putAll(values);
+    Account account = new Account(uuid, name != null || stored == null ? name : stored.getPlayerName(), balances);
+    if (stored == null) return account;
+    stored.getBalances().keySet().forEach(currency -> {
+      Account.Stored value = stored.getStored(currency);
+      if (value != null) account.markStored(currency, value.version(), value.amount(), 0);
+    });
+    if (stored.isPersisted()) account.markPersisted();
+    return account;
+  }
+
+  /**
+   * Skip a balance whose account already wrote a newer value of it
+   */
+  protected static boolean isSuperseded(Account account, String currency, Account.Changes changes) {
+    Account.Stored stored = account.getStored(currency);
+    return stored != null && stored.accountVersion() > changes.version();
+  }
+
+  /**
+   * A balance write that lost its compare-and-set against another node
+   *
+   * @param account  The account
+   * @param currency The currency
+   */
+  protected record Conflict(Account account, String currency) {
+  }
+
+  /**
+   * Called once changes reached storage, so the journal can drop the records they cover
+   *
+   * @param changes The saved changes by account
+   */
+  protected void saved(Map<Account, Account.Changes> changes) {
+    changes.forEach((account, accountChanges) -> Journal.confirm(account.getPlayerUUID(), accountChanges.version()));
+  }
+
+  /**
+   * Persist a change of a cached account as its currency's persistence policy asks for
+   *
+   * @param account  The changed account
+   * @param currency The currency that changed
+   * @param undo     Reverts the change in memory, run if a synchronous commit fails
+   *
+   * @return false if the currency commits synchronously and the write failed, the change is undone then
+   */
+  protected boolean persist(Account account, String currency, Runnable undo) {
+    Currency config = Currencies.getCurrency(currency);
+    switch (policyOf(config)) {
+      case SYNC_COMMIT -> {
+        if (commit(account)) return true;
+        undo.run();
+        return false;
+      }
+      case JOURNAL -> {
+        if (!Journal.isEnabled()) WriteBehind.schedule(account, writeBehindMillis(config));
+      }
+      case WRITE_BEHIND -> WriteBehind.schedule(account, writeBehindMillis(config));
+    }
+    return true;
+  }
+
+  static PersistencePolicy policyOf(@Nullable Currency config) {
+    return config != null && config.getPersistence() != null ? config.getPersistence() : PersistencePolicy.WRITE_BEHIND;
+  }
+
+  /**
+   * Log and persist the deposits an account got inside one coalescing window, already applied to its balance
+   *
+   * @param uuid     The UUID of the account
+   * @param currency The currency
+   * @param amount   The sum of the deposits
+   */
+  public void flushDeposit(UUID uuid, String currency, BigDecimal amount) {
+    recordDeposit(uuid, currency, amount);
+    // An account evicted in the meantime was saved by its eviction
+    Account account = getCachedAccount(uuid);
+    if (account != null) persist(account, currency, () -> account.removeBalance(currency, amount));
+  }
+
+  /**
+   * Store a processed deposit in the transaction log
+   *
+   * @param uuid     The UUID of the account
+   * @param currency The currency
+   * @param amount   The amount
+   */
+  protected abstract void recordDeposit(UUID uuid, String currency, BigDecimal amount);
+
+  /**
+   * Write an account's changes on the calling thread
+   *
+   * @return true if the changes reached storage
+   */
+  private boolean commit(Account account) {
+    Account.Changes changes = account.drainChanges();
+    if (changes.isEmpty()) return true;
+    Map<Account, Account.Changes> batch = Map.of(account, changes);
+    try {
+      writeAccounts(batch);
+      saved(batch);
+      return true;
+    } catch (Exception e) {
+      // Kept dirty, so changes of other callers drained with this one are still written by a later save
+      account.restoreChanges(changes);
+      CobbleUtils.LOGGER.error("Error saving account " + account.getPlayerUUID());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private static long writeBehindMillis(@Nullable Currency config) {
+    return config != null && config.getWriteBehindInterval() != null
+      ? Math.max(0, config.getWriteBehindInterval().toMillis()) : 10_000;
+  }
+
   /**
    * Save or update an account
    *
@@ -117,7 +527,7 @@ public abstract class DatabaseClient {
    * @param currency The currency to set
    * @param amount   The amount to set
    *
-   * @return The new balance, or null if not found
+   * @return The new balance, or null if not found or its synchronous commit failed
    */
   public abstract BigDecimal setBalance(UUID uuid, String currency, BigDecimal amount);
 
@@ -132,6 +542,13 @@ public abstract class DatabaseClient {
    */
   public abstract boolean hasEnoughBalance(UUID uuid, String currency, BigDecimal amount);
 
+  /**
+   * Last entry of every page already read, per currency. Page p starts right after the cursor of page p - 1, so any
+   * page is one index seek instead of an OFFSET scan over all the pages before it.
+   */
+  private static final int MAX_PAGE_WALK = 3;
+  private final Map<String, NavigableMap<Integer, PageCursor>> pageCursors = new ConcurrentHashMap<>();
+
   /**
    * Get the top balances for a currency
    *
@@ -140,7 +557,412 @@ public abstract class DatabaseClient {
    *
    * @return A list of accounts with the top balances
    */
-  public abstract List<Account> getTopBalances(String currency, int page);
+  public List<Account> getTopBalances(String currency, int page) {
+    int pageSize = UltraEconomy.config.getLimitTopPlayers();
+    if (page < 1 || pageSize <= 0) return List.of();
+    if (UltraEconomy.config.isSharedRanks()) {
+      List<LeaderboardEntry> ranked = fetchRankedPage(currency, (long) (page - 1) * pageSize + 1, pageSize);
+      // An empty page means the table was not computed yet for this currency, fall back to sorting
+      if (!ranked.isEmpty()) return toAccounts(currency, ranked);
+    }
+    NavigableMap<Integer, PageCursor> cursors = pageCursors.computeIfAbsent(currency, k -> new ConcurrentSkipListMap<>());
+    long maxAge = UltraEconomy.config.getBalTopRefresh().toMillis();
+    long now = System.currentTimeMillis();
+
+    // Start from the closest page we know the end of, dropping cursors that are too old to trust
+    int known = 0;
+    LeaderboardEntry after = null;
+    Map.Entry<Integer, PageCursor> floor = cursors.floorEntry(page - 1);
+    while (floor != null && now - floor.getValue().created() > maxAge) {
+      cursors.remove(floor.getKey());
+      floor = cursors.floorEntry(floor.getKey() - 1);
+    }
+    if (floor != null) {
+      known = floor.getKey();
+      after = floor.getValue().entry();
+    }
+
+    List<LeaderboardEntry> rows = List.of();
+    if (page - known > MAX_PAGE_WALK) {
+      // Too far from any known boundary, one OFFSET read is cheaper than a round trip for every page in between
+      rows = fetchTopPageAt(currency, (long) (page - 1) * pageSize, pageSize);
+      if (rows.size() == pageSize) cursors.put(page, new PageCursor(rows.get(rows.size() - 1), now));
+    } else {
+      for (int current = known + 1; current <= page; current++) {
+        rows = fetchTopPage(currency, after, pageSize);
+        if (rows.size() < pageSize && current < page) return List.of();
+        if (rows.isEmpty()) break;
+        after = rows.get(rows.size() - 1);
+        if (rows.size() == pageSize) cursors.put(current, new PageCursor(after, now));
+      }
+    }
+
+    long rank = (long) (page - 1) * pageSize + 1;
+    List<LeaderboardEntry> ranked = new ArrayList<>(rows.size());
+    for (LeaderboardEntry row : rows) {
+      ranked.add(new LeaderboardEntry(row.playerUUID(), row.playerName(), row.amount(), rank++));
+    }
+    return toAccounts(currency, ranked);
+  }
+
+  private static List<Account> toAccounts(String currency, List<LeaderboardEntry> rows) {
+    List<Account> accounts = new ArrayList<>(rows.size());
+    for (LeaderboardEntry row : rows) {
+      Account account = new Account(row.playerUUID(), row.playerName(), Map.of(currency, row.amount()));
+      account.setRank(row.rank());
+      accounts.add(account);
+    }
+    return accounts;
+  }
+
+  /**
+   * Read one page of the top balances, ordered by amount descending and UUID ascending
+   *
+   * @param currency The currency
+   * @param after    The last entry of the previous page, or null for the first page
+   * @param limit    The page size
+   *
+   * @return The entries after the cursor
+   */
+  protected abstract List<LeaderboardEntry> fetchTopPage(String currency, @Nullable LeaderboardEntry after, int limit);
+
+  /**
+   * Read one page of the top balances by position, for pages far from any remembered cursor
+   *
+   * @param currency The currency
+   * @param offset   The number of entries to skip
+   * @param limit    The page size
+   *
+   * @return The entries from the offset, in the order of {@link #fetchTopPage}
+   */
+  protected abstract List<LeaderboardEntry> fetchTopPageAt(String currency, long offset, int limit);
+
+  /**
+   * Forget the remembered page boundaries of a currency, the next read walks again from the first page
+   *
+   * @param currency The currency
+   */
+  public void clearPageCursors(String currency) {
+    pageCursors.remove(currency);
+  }
+
+  private record PageCursor(LeaderboardEntry entry, long created) {
+  }
+
+  /**
+   * Rebuild the materialized ranks of a currency. The balances are read in sorted chunks and written rank by rank,
+   * each chunk in its own write, so the table stays readable and no lock is held for the whole run.
+   *
+   * @param currency The currency
+   * @param renew    Extends the rebuild lock before every chunk is written, false if it was lost
+   *
+   * @return true if the ranks were rebuilt, false if the lock was lost and the rebuild stopped
+   */
+  public boolean recomputeRanks(String currency, BooleanSupplier renew) {
+    LeaderboardEntry after = null;
+    long rank = 1;
+    while (true) {
+      List<LeaderboardEntry> chunk = fetchTopPage(currency, after, RANK_CHUNK_SIZE);
+      if (chunk.isEmpty()) break;
+      // Another server may have taken over after the lock expired, two writers would interleave their ranks
+      if (!renew.getAsBoolean()) return false;
+      writeRanks(currency, rank, chunk);
+      rank += chunk.size();
+      after = chunk.get(chunk.size() - 1);
+      if (chunk.size() < RANK_CHUNK_SIZE) break;
+    }
+    trimRanks(currency, rank);
+    return true;
+  }
+
+  private static final int RANK_CHUNK_SIZE = 1_000;
+
+  /**
+   * Get the rank of a player from the materialized rank table
+   *
+   * @param uuid     The UUID of the player
+   * @param currency The currency
+   *
+   * @return The 1-based rank, or -1 if the player is not ranked
+   */
+  public abstract long getRank(UUID uuid, String currency);
+
+  /**
+   * Get the ranks of several players from the materialized rank table in one read
+   *
+   * @param uuids    The UUIDs of the players
+   * @param currency The currency
+   *
+   * @return The 1-based ranks, players that are not ranked are absent
+   */
+  public abstract Map<UUID, Long> getRanks(Collection<UUID> uuids, String currency);
+
+  /**
+   * Acquire or renew a named lock shared by every server using this database
+   *
+   * @param name  The lock name
+   * @param owner The id of this server
+   * @param ttl   How long the lock is held without being renewed, in milliseconds
+   *
+   * @return true if this server holds the lock
+   */
+  public abstract boolean tryLock(String name, String owner, long ttl);
+
+  /**
+   * Read a page of the materialized rank table
+   *
+   * @param currency The currency
+   * @param fromRank The first rank of the page
+   * @param limit    The page size
+   *
+   * @return The ranked entries, empty if the table has none in that range
+   */
+  protected abstract List<LeaderboardEntry> fetchRankedPage(String currency, long fromRank, int limit);
+
+  /**
+   * Store a chunk of consecutive ranks, replacing whatever held those ranks before
+   *
+   * @param currency  The currency
+   * @param firstRank The rank of the first entry
+   * @param chunk     The entries in rank order
+   */
+  protected abstract void writeRanks(String currency, long firstRank, List<LeaderboardEntry> chunk);
+
+  /**
+   * Remove the ranks at or after the given one, left over from players that are no longer ranked
+   *
+   * @param currency The currency
+   * @param fromRank The first rank to remove
+   */
+  protected abstract void trimRanks(String currency, long fromRank);
+
+  /**
+   * Stream every stored balance of a currency, used to seed the in-memory leaderboards
+   *
+   * @param currency The currency to read
+   * @param consumer Receives one unranked entry per stored balance
+   */
+  public abstract void forEachBalance(String currency, Consumer<LeaderboardEntry> consumer);
+
+  /**
+   * Find the UUID of a player by name, ignoring case, through the name index
+   *
+   * @param playerName The player's name
+   *
+   * @return The UUID, or null if no account has that name
+   */
+  public abstract @Nullable UUID findUUIDByName(String playerName);
+
+  /**
+   * Stream the name of every stored account, used to seed the in-memory name index
+   *
+   * @param consumer Receives the UUID and name of each account
+   */
+  public abstract void forEachPlayerName(BiConsumer<UUID, String> consumer);
 
   public abstract void flushCache();
+
+  /**
+   * Get a page of the stored transactions of an account, newest first. Pages are read by keyset, starting right after
+   * the cursor, so any page is one index seek on (account, timestamp, id).
+   *
+   * @param uuid     The UUID of the account
+   * @param currency The currency, or null for every currency
+   * @param cursor   The last entry of the previous page, or null for the first page
+   * @param limit    The page size
+   *
+   * @return The entries after the cursor, empty if the backend keeps no transaction log
+   */
+  public abstract List<HistoryEntry> getHistory(UUID uuid, @Nullable String currency, @Nullable HistoryEntry cursor, int limit);
+
+  /**
+   * Get a page of the stored transactions of an account by position, for pages far from any known cursor
+   *
+   * @param uuid     The UUID of the account
+   * @param currency The currency, or null for every currency
+   * @param offset   The number of entries to skip
+   * @param limit    The page size
+   *
+   * @return The entries from the offset, in the order of {@link #getHistory}
+   */
+  public abstract List<HistoryEntry> getHistoryAt(UUID uuid, @Nullable String currency, long offset, int limit);
+
+  /**
+   * Apply several deposits and withdraws as one unit.
+   * Every leg is validated in memory against the cached accounts before any balance changes,
+   * so either all legs are applied or none of them.
+   *
+   * @param legs The legs to apply, in order
+   *
+   * @return true if every leg was applied, false if any leg was rejected
+   */
+  public boolean applyBatch(List<TransactionLeg> legs) {
+    return applyBatch(legs, null);
+  }
+
+  /**
+   * Apply several deposits and withdraws as one unit, at most once per idempotency key.
+   * A call repeating a key that was already applied changes nothing and reports success, a call repeating a key
+   * that is still running waits for it and reports its result.
+   *
+   * @param legs The legs to apply, in order
+   * @param key  The idempotency key, or null to always apply
+   *
+   * @return true if every leg was applied now or by an earlier call with the key, false if any leg was rejected
+   */
+  public boolean applyBatch(List<TransactionLeg> legs, @Nullable String key) {
+    if (legs.isEmpty()) return true;
+    if (key == null) return applyOnce(legs, null) != Outcome.REJECTED;
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    CompletableFuture<Boolean> running = Idempotency.claim(key, result);
+    // A duplicate reports what the first call ended with, not just that it started
+    if (running != null) return running.join();
+    boolean applied = false;
+    try {
+      applied = applyOnce(legs, key) != Outcome.REJECTED;
+    } finally {
+      if (!applied) Idempotency.release(key);
+      result.complete(applied);
+    }
+    return applied;
+  }
+
+  /**
+   * Apply several deposits and withdraws as one unit without waiting on storage, for callers that must not block.
+   * Only accounts already in the cache are used, and the batch is saved in the background, so even a currency that
+   * commits synchronously returns before its write landed.
+   *
+   * @param legs The legs to apply, in order
+   *
+   * @return true if every leg was applied, false if any leg was rejected, null if an account is not cached and
+   * nothing was tried
+   */
+  public @Nullable Boolean applyCachedBatch(List<TransactionLeg> legs) {
+    if (legs.isEmpty()) return true;
+    Map<UUID, Account> accounts = new HashMap<>();
+    for (TransactionLeg leg : legs) {
+      if (!isValid(leg)) return false;
+      if (accounts.computeIfAbsent(leg.getPlayerUUID(), this::getCachedAccount) == null) return null;
+    }
+    List<Account> ordered = new ArrayList<>(accounts.values());
+    ordered.sort(Comparator.comparing(Account::getPlayerUUID));
+    if (lockAndApply(ordered, 0, legs, accounts) != Outcome.APPLIED) return false;
+    UltraEconomy.ULTRA_ECONOMY_EXECUTOR.execute(() -> saveBatch(legs, ordered));
+    return true;
+  }
+
+  private static boolean isValid(TransactionLeg leg) {
+    if (Currencies.getCurrency(leg.getCurrency()) == null) return false;
+    if (leg.getAmount() == null || leg.getAmount().signum() < 0) return false;
+    return leg.getType() == TransactionType.DEPOSIT || leg.getType() == TransactionType.WITHDRAW;
+  }
+
+  private Outcome applyOnce(List<TransactionLeg> legs, @Nullable String key) {
+    Map<UUID, Account> accounts = new HashMap<>();
+    for (TransactionLeg leg : legs) {
+      if (!isValid(leg)) return Outcome.REJECTED;
+      if (!accounts.containsKey(leg.getPlayerUUID())) {
+        Account account = getAccount(leg.getPlayerUUID());
+        if (account == null) return Outcome.REJECTED;
+        accounts.put(leg.getPlayerUUID(), account);
+      }
+    }
+    if (key != null) {
+      // Checked once without the locks, so a call that is bound to be rejected never claims its key
+      if (!fits(legs, accounts)) return Outcome.REJECTED;
+      // Claimed before the accounts are locked, storage is never waited on while holding them. Another server, or
+      // this one before a restart, that already stored the key makes this call a repeat.
+      try {
+        if (!claimKey(key, legs.get(0))) return Outcome.REPEATED;
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error recording idempotency key " + key);
+        e.printStackTrace();
+        return Outcome.REJECTED;
+      }
+    }
+    // Always lock in the same order so two batches touching the same accounts cannot deadlock
+    List<Account> ordered = new ArrayList<>(accounts.values());
+    ordered.sort(Comparator.comparing(Account::getPlayerUUID));
+    Outcome outcome = lockAndApply(ordered, 0, legs, accounts);
+    if (outcome == Outcome.REJECTED && key != null) {
+      // A balance moved since the check, the key is given back so a retry is applied
+      try {
+        releaseKey(key);
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error releasing idempotency key " + key + ", a retry with it will not be applied");
+        e.printStackTrace();
+      }
+    }
+    // The first keyed leg was stored with the key
+    if (outcome == Outcome.APPLIED) saveBatch(key == null ? legs : legs.subList(1, legs.size()), ordered);
+    return outcome;
+  }
+
+  private Outcome lockAndApply(List<Account> ordered, int index, List<TransactionLeg> legs, Map<UUID, Account> accounts) {
+    if (index < ordered.size()) {
+      synchronized (ordered.get(index)) {
+        return lockAndApply(ordered, index + 1, legs, accounts);
+      }
+    }
+    if (!fits(legs, accounts)) return Outcome.REJECTED;
+    for (TransactionLeg leg : legs) {
+      Account account = accounts.get(leg.getPlayerUUID());
+      if (leg.getType() == TransactionType.WITHDRAW) {
+        account.removeBalance(leg.getCurrency(), leg.getAmount());
+      } else {
+        account.addBalance(leg.getCurrency(), leg.getAmount());
+      }
+    }
+    return Outcome.APPLIED;
+  }
+
+  /**
+   * Check that no withdraw of the legs takes a balance below zero, applying them in order
+   */
+  private static boolean fits(List<TransactionLeg> legs, Map<UUID, Account> accounts) {
+    Map<String, BigDecimal> running = new HashMap<>();
+    for (TransactionLeg leg : legs) {
+      Account account = accounts.get(leg.getPlayerUUID());
+      String balanceKey = leg.getPlayerUUID() + ":" + leg.getCurrency();
+      BigDecimal current = running.get(balanceKey);
+      if (current == null) {
+        current = Objects.requireNonNullElse(account.getBalance(leg.getCurrency()), BigDecimal.ZERO);
+      }
+      BigDecimal next = current.add(leg.delta());
+      if (leg.getType() == TransactionType.WITHDRAW && next.signum() < 0) return false;
+      running.put(balanceKey, next);
+    }
+    return true;
+  }
+
+  /**
+   * Store the first leg of a keyed call as a processed transaction carrying the key under a unique index
+   *
+   * @param key   The idempotency key
+   * @param first The first leg of the call
+   *
+   * @return true if the key was stored, false if a transaction with the key already exists and nothing was stored
+   */
+  protected abstract boolean claimKey(String key, TransactionLeg first) throws Exception;
+
+  /**
+   * Delete the transaction stored by {@link #claimKey} for a call that was rejected after all
+   *
+   * @param key The idempotency key
+   */
+  protected abstract void releaseKey(String key) throws Exception;
+
+  private enum Outcome {
+    APPLIED,
+    REJECTED,
+    REPEATED
+  }
+
+  /**
+   * Persist an already applied batch as a single unit (one round trip where the backend allows it)
+   *
+   * @param legs     The applied legs, used for the transaction log
+   * @param accounts The accounts touched by the batch
+   */
+  protected abstract void saveBatch(List<TransactionLeg> legs, Collection<Account> accounts);
 }
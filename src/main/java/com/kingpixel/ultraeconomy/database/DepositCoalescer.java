@@ -0,0 +1,72 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.models.PersistencePolicy;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the deposits of one account and currency made inside a short window, for mods that pay tiny rewards many
+ * times per second. The cached balance changes on every deposit, only the transaction row and the write to storage
+ * wait for the window to close and then cover the sum of every deposit in it.
+ */
+public class DepositCoalescer {
+  private static final Map<Key, BigDecimal> PENDING = new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "UltraEconomy-Deposits");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Take a deposit already applied to a cached account, if coalescing is enabled. Currencies that commit every change
+   * synchronously are never coalesced, their callers must learn whether the write reached storage.
+   *
+   * @param uuid     the account UUID
+   * @param currency the currency
+   * @param amount   the deposited amount
+   *
+   * @return true if the deposit will be logged and persisted with the rest of its window, false to do it now
+   */
+  public static boolean offer(UUID uuid, String currency, BigDecimal amount) {
+    if (!UltraEconomy.config.isDepositCoalescing()) return false;
+    if (DatabaseClient.policyOf(Currencies.getCurrency(currency)) == PersistencePolicy.SYNC_COMMIT) return false;
+    Key key = new Key(uuid, currency);
+    boolean[] opened = new boolean[1];
+    PENDING.compute(key, (k, pending) -> {
+      if (pending != null) return pending.add(amount);
+      opened[0] = true;
+      return amount;
+    });
+    // The first deposit of a window schedules its flush, the rest only add to the sum
+    if (opened[0]) {
+      long window = Math.max(1, UltraEconomy.config.getDepositCoalesceWindow().toMillis());
+      EXECUTOR.schedule(() -> flush(key), window, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+  /**
+   * Log and persist every open window now, used when the server stops
+   */
+  public static void flushAll() {
+    for (Key key : List.copyOf(PENDING.keySet())) flush(key);
+  }
+
+  private static void flush(Key key) {
+    BigDecimal amount = PENDING.remove(key);
+    if (amount == null || DatabaseFactory.INSTANCE == null) return;
+    DatabaseFactory.INSTANCE.flushDeposit(key.playerUUID(), key.currency(), amount);
+  }
+
+  private record Key(UUID playerUUID, String currency) {
+  }
+}
@@ -0,0 +1,63 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Window of the idempotency keys this server applied recently. A retry of a recent call is answered from memory,
+ * waiting for the first call if it is still running, older keys are checked against the transactions stored with
+ * their key.
+ */
+public class Idempotency {
+  private static final long MAX_KEYS = 100_000;
+  private static volatile Cache<String, CompletableFuture<Boolean>> window = build(windowMillis());
+  private static long millis = windowMillis();
+
+  /**
+   * Rebuild the window when its configured length changed. The keys it holds move over and start a full new window.
+   */
+  public static synchronized void init() {
+    long configured = windowMillis();
+    if (configured == millis) return;
+    Cache<String, CompletableFuture<Boolean>> rebuilt = build(configured);
+    rebuilt.putAll(window.asMap());
+    window = rebuilt;
+    millis = configured;
+  }
+
+  private static long windowMillis() {
+    return Math.max(1, UltraEconomy.config.getIdempotencyWindow().toMillis());
+  }
+
+  private static Cache<String, CompletableFuture<Boolean>> build(long expiry) {
+    return Caffeine.newBuilder()
+      .maximumSize(MAX_KEYS)
+      .expireAfterWrite(expiry, TimeUnit.MILLISECONDS)
+      .build();
+  }
+
+  /**
+   * Take a key for a call about to run
+   *
+   * @param key     the idempotency key
+   * @param outcome completed with the call's result once it finishes
+   *
+   * @return null if the key is new, otherwise the outcome of the call that ran or is running with it in the window
+   */
+  public static CompletableFuture<Boolean> claim(String key, CompletableFuture<Boolean> outcome) {
+    return window.asMap().putIfAbsent(key, outcome);
+  }
+
+  /**
+   * Give a key back after its call was rejected, so a retry is applied
+   *
+   * @param key the idempotency key
+   */
+  public static void release(String key) {
+    window.invalidate(key);
+  }
+}
@@ -0,0 +1,13 @@
+package com.kingpixel.ultraeconomy.database;
+
+import java.util.UUID;
+
+/**
+ * A balance another node wrote, read from the shared invalidation stream
+ *
+ * @param playerUUID the account UUID
+ * @param currency   the currency
+ * @param version    the stored version the write left
+ */
+public record Invalidation(UUID playerUUID, String currency, long version) {
+}
@@ -0,0 +1,61 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.models.Account;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps cached accounts coherent when several servers share one database. Every balance write also appends a row to
+ * a small invalidation stream, and each server tails the stream and patches the cached accounts whose balances another
+ * server wrote. Accounts that are not cached here are skipped, they are read fresh when they are loaded.
+ */
+public class Invalidations {
+  private static ScheduledExecutorService scheduler;
+
+  public static synchronized void init() {
+    stop();
+    if (!UltraEconomy.config.isInvalidations()) return;
+    long interval = Math.max(50, UltraEconomy.config.getInvalidationPollInterval().toMillis());
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "UltraEconomy-Invalidations");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(Invalidations::poll, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public static synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private static void poll() {
+    try {
+      DatabaseClient client = DatabaseFactory.INSTANCE;
+      Map<Account, Set<String>> stale = new IdentityHashMap<>();
+      for (Invalidation invalidation : client.pollInvalidations()) {
+        Account account = client.getCachedAccount(invalidation.playerUUID());
+        if (account == null) continue;
+        Account.Stored stored = account.getStored(invalidation.currency());
+        // Already at that version or newer, re-read entries and our own writes end here
+        if (stored != null && stored.version() >= invalidation.version()) continue;
+        stale.computeIfAbsent(account, k -> new HashSet<>()).add(invalidation.currency());
+      }
+      if (stale.isEmpty()) return;
+      client.refreshBalances(stale);
+      if (UltraEconomy.config.isDebug()) {
+        CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Refreshed balances of " + stale.size() + " accounts written by other servers");
+      }
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error reading cache invalidations");
+      e.printStackTrace();
+    }
+  }
+}
@@ -1,28 +1,51 @@
 package com.kingpixel.ultraeconomy.database;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.Model.DataBaseConfig;
 import com.kingpixel.cobbleutils.util.Utils;
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.leaderboard.LeaderboardEntry;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
 import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.List;
-import java.util.UUID;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class JSONClient extends DatabaseClient {
   private static final String PATH = UltraEconomy.PATH + "/accounts/";
+  // Every account file is written under this lock, whichever path the write comes from
+  private static final Object WRITE_LOCK = new Object();
+  private ExecutorService writer;
 
   @Override
   public void connect(DataBaseConfig config) {
     Utils.getAbsolutePath(PATH).mkdirs();
+    writer = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "UltraEconomy-JSON");
+      t.setDaemon(true);
+      return t;
+    });
     CobbleUtils.LOGGER.info("Using JSON database at " + PATH);
   }
 
   @Override
   public void disconnect() {
+    // Saves still queued are written before the files are left alone
+    if (writer != null) CobbleUtils.shutdownAndAwait(writer);
     CobbleUtils.LOGGER.info("JSON database does not require disconnection.");
   }
 
@@ -30,6 +53,11 @@ public class JSONClient extends DatabaseClient {
     DatabaseFactory.accounts.invalidate(playerUUID);
   }
 
+  @Override
+  public Account getCachedAccount(UUID uuid) {
+    return DatabaseFactory.accounts.getIfPresent(uuid);
+  }
+
   @Override
   public boolean isConnected() {
     return false;
@@ -39,44 +67,163 @@ public class JSONClient extends DatabaseClient {
   public Account getAccount(UUID uuid) {
     Account account = DatabaseFactory.accounts.getIfPresent(uuid);
     if (account != null) return account;
-    File accountFile = Utils.getAbsolutePath(PATH + uuid.toString() + ".json");
-    if (accountFile.exists()) {
+    account = AccountLoader.load(uuid).join();
+    if (account != null) return account;
+
+    var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
+    if (player != null) {
+      CobbleUtils.LOGGER.info("Creating new account for " + player.getName().getString());
+    } else {
+      CobbleUtils.LOGGER.warn("Could not find player with UUID " + uuid + ", account creation failed.");
+      return null;
+    }
+    account = new Account(player);
+    Account winner = cacheIfAbsent(account);
+    if (winner == account) saveOrUpdateAccount(account);
+    return winner;
+  }
+
+  @Override
+  protected Map<UUID, Account> loadAccounts(Collection<UUID> uuids) throws IOException {
+    // Every account is its own file, there is nothing to batch, but loads are still deduplicated by the loader
+    Map<UUID, Account> accounts = new HashMap<>(uuids.size());
+    for (UUID uuid : uuids) {
+      File accountFile = Utils.getAbsolutePath(PATH + uuid.toString() + ".json");
+      if (!accountFile.exists()) continue;
+      accounts.put(uuid, fromJson(JsonParser.parseString(Utils.readFileSync(accountFile)).getAsJsonObject()));
+    }
+    return accounts;
+  }
+
+  @Override
+  protected Account cacheIfAbsent(Account account) {
+    Account existing = DatabaseFactory.accounts.asMap().putIfAbsent(account.getPlayerUUID(), account);
+    return existing != null ? existing : account;
+  }
+
+  @Override
+  public void saveOrUpdateAccount(Account account) {
+    // One file holds the whole account, so a dirty account is rewritten whole and a clean one is not written at all
+    Account.Changes changes = account.drainChanges();
+    if (changes.isEmpty()) return;
+    writer.execute(() -> {
       try {
-        String data = Utils.readFileSync(accountFile);
-        account = Utils.newWithoutSpacingGson().fromJson(data, Account.class);
+        write(account);
+        saved(Map.of(account, changes));
       } catch (IOException e) {
-        throw new RuntimeException(e);
+        account.restoreChanges(changes);
+        CobbleUtils.LOGGER.error("Error saving account " + account.getPlayerUUID());
+        e.printStackTrace();
       }
-    } else {
-      var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
-      if (player != null) {
-        CobbleUtils.LOGGER.info("Creating new account for " + player.getName().getString());
-      } else {
-        CobbleUtils.LOGGER.warn("Could not find player with UUID " + uuid + ", account creation failed.");
-        return null;
-      }
-      account = new Account(player);
-      saveOrUpdateAccount(account);
+    });
+  }
+
+  /**
+   * Write the whole account to its file. Writes are serialized and the account is read under the same lock, so the
+   * last write to land always holds the newest state. The file is replaced in one move, a crash never leaves half of it.
+   */
+  private static void write(Account account) throws IOException {
+    synchronized (WRITE_LOCK) {
+      File accountFile = Utils.getAbsolutePath(PATH + account.getPlayerUUID().toString() + ".json");
+      Path temp = accountFile.toPath().resolveSibling(accountFile.getName() + ".tmp");
+      Files.writeString(temp, Utils.newWithoutSpacingGson().toJson(toJson(account)));
+      Files.move(temp, accountFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
-    DatabaseFactory.accounts.put(uuid, account);
-    return account;
   }
 
   @Override
-  public void saveOrUpdateAccount(Account account) {
-    String data = Utils.newWithoutSpacingGson().toJson(account, Account.class);
-    File accountFile = Utils.getAbsolutePath(PATH + account.getPlayerUUID().toString() + ".json");
-    Utils.writeFileAsync(accountFile, data);
+  public Collection<Account> getCachedAccounts() {
+    return List.copyOf(DatabaseFactory.accounts.asMap().values());
+  }
+
+  @Override
+  protected List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) throws IOException {
+    // Files are never shared between servers, so there is nothing to compare against
+    for (Account account : changes.keySet()) write(account);
+    return List.of();
+  }
+
+  @Override
+  protected Map<Conflict, Account.Stored> readStored(List<Conflict> conflicts) {
+    return Map.of();
+  }
+
+  @Override
+  protected Map<UUID, Map<String, JournalMark>> readJournalMarks(String journalId, Collection<UUID> uuids) {
+    // Replays write whole balances over the files, repeating one changes nothing
+    return Map.of();
+  }
+
+  @Override
+  public List<HistoryEntry> getHistory(UUID uuid, String currency, HistoryEntry cursor, int limit) {
+    // Files only hold balances
+    return List.of();
+  }
+
+  @Override
+  public List<HistoryEntry> getHistoryAt(UUID uuid, String currency, long offset, int limit) {
+    return List.of();
+  }
+
+  @Override
+  protected void recordDeposit(UUID uuid, String currency, BigDecimal amount) {
+    // Files keep no transaction log
+  }
+
+  @Override
+  protected boolean claimKey(String key, TransactionLeg first) {
+    // No transaction log to hold the key, so JSON only deduplicates inside the in-memory idempotency window. A repeat
+    // that arrives after the window or after a restart is applied again.
+    return true;
+  }
+
+  @Override
+  protected void releaseKey(String key) {
+    // Nothing was stored for the key
+  }
+
+  @Override
+  protected List<Invalidation> pollInvalidations() {
+    // Files are local to this server, nothing else writes them
+    return List.of();
+  }
+
+  private static JsonObject toJson(Account account) {
+    JsonObject json = new JsonObject();
+    json.addProperty("playerUUID", account.getPlayerUUID().toString());
+    json.addProperty("playerName", account.getPlayerName());
+    JsonObject balances = new JsonObject();
+    account.getBalances().forEach(balances::addProperty);
+    json.add("balances", balances);
+    return json;
+  }
+
+  private static Account fromJson(JsonObject json) {
+    UUID uuid = UUID.fromString(json.get("playerUUID").getAsString());
+    JsonElement name = json.get("playerName");
+    String playerName = name != null && !name.isJsonNull() ? name.getAsString() : null;
+    Map<String, BigDecimal> balances = new HashMap<>();
+    if (json.has("balances")) {
+      json.getAsJsonObject("balances").entrySet()
+        .forEach(entry -> balances.put(entry.getKey(), entry.getValue().getAsBigDecimal()));
+    }
+    return new Account(uuid, playerName, balances);
   }
 
   @Override
   public boolean addBalance(UUID uuid, String currency, BigDecimal amount) {
-    return getAccount(uuid).addBalance(currency, amount);
+    Account account = getAccount(uuid);
+    boolean result = account.addBalance(currency, amount);
+    if (result && !DepositCoalescer.offer(uuid, currency, amount)) {
+      result = persist(account, currency, () -> account.removeBalance(currency, amount));
+    }
+    return result;
   }
 
   @Override
   public boolean removeBalance(UUID uuid, String currency, BigDecimal amount) {
-    return getAccount(uuid).removeBalance(currency, amount);
+    Account account = getAccount(uuid);
+    return account.removeBalance(currency, amount) && persist(account, currency, () -> account.addBalance(currency, amount));
   }
 
   @Override
@@ -86,7 +233,10 @@ public class JSONClient extends DatabaseClient {
 
   @Override
   public BigDecimal setBalance(UUID uuid, String currency, BigDecimal amount) {
-    return getAccount(uuid).setBalance(currency, amount);
+    Account account = getAccount(uuid);
+    BigDecimal previous = account.getBalance(currency);
+    BigDecimal result = account.setBalance(currency, amount);
+    return persist(account, currency, () -> account.setBalance(currency, previous)) ? result : null;
   }
 
   @Override
@@ -94,13 +244,103 @@ public class JSONClient extends DatabaseClient {
     return getAccount(uuid).hasEnoughBalance(currency, amount);
   }
 
-  @Override public List<Account> getTopBalances(String currency, int page) {
+  @Override
+  protected List<LeaderboardEntry> fetchTopPage(String currency, LeaderboardEntry after, int limit) {
+    CobbleUtils.LOGGER.warn("getTopBalances is not supported in JSON database.");
+    return List.of();
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchTopPageAt(String currency, long offset, int limit) {
     CobbleUtils.LOGGER.warn("getTopBalances is not supported in JSON database.");
     return List.of();
   }
 
+  @Override
+  public long getRank(UUID uuid, String currency) {
+    // Account files are local to one server, the in-memory leaderboard is already the shared answer
+    return Leaderboards.getRank(uuid, currency);
+  }
+
+  @Override
+  public Map<UUID, Long> getRanks(Collection<UUID> uuids, String currency) {
+    Map<UUID, Long> ranks = new HashMap<>();
+    for (UUID uuid : uuids) {
+      long rank = Leaderboards.getRank(uuid, currency);
+      if (rank > 0) ranks.put(uuid, rank);
+    }
+    return ranks;
+  }
+
+  @Override
+  public boolean tryLock(String name, String owner, long ttl) {
+    return false;
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchRankedPage(String currency, long fromRank, int limit) {
+    return List.of();
+  }
+
+  @Override
+  protected void writeRanks(String currency, long firstRank, List<LeaderboardEntry> chunk) {
+  }
+
+  @Override
+  protected void trimRanks(String currency, long fromRank) {
+  }
+
+  @Override
+  public UUID findUUIDByName(String playerName) {
+    UUID[] found = new UUID[1];
+    forEachPlayerName((uuid, name) -> {
+      if (found[0] == null && playerName.equalsIgnoreCase(name)) found[0] = uuid;
+    });
+    return found[0];
+  }
+
+  @Override
+  public void forEachPlayerName(BiConsumer<UUID, String> consumer) {
+    for (File file : Utils.getFiles(Utils.getAbsolutePath(PATH))) {
+      // A write a crash interrupted leaves its temporary file behind
+      if (!file.getName().endsWith(".json")) continue;
+      try {
+        UUID uuid = UUID.fromString(file.getName().replace(".json", ""));
+        Account account = DatabaseFactory.accounts.getIfPresent(uuid);
+        if (account == null) account = fromJson(JsonParser.parseString(Utils.readFileSync(file)).getAsJsonObject());
+        if (account.getPlayerName() != null) consumer.accept(uuid, account.getPlayerName());
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error reading account file " + file.getName());
+        e.printStackTrace();
+      }
+    }
+  }
+
+  @Override
+  public void forEachBalance(String currency, Consumer<LeaderboardEntry> consumer) {
+    for (File file : Utils.getFiles(Utils.getAbsolutePath(PATH))) {
+      // A write a crash interrupted leaves its temporary file behind
+      if (!file.getName().endsWith(".json")) continue;
+      try {
+        UUID uuid = UUID.fromString(file.getName().replace(".json", ""));
+        Account account = DatabaseFactory.accounts.getIfPresent(uuid);
+        if (account == null) account = fromJson(JsonParser.parseString(Utils.readFileSync(file)).getAsJsonObject());
+        BigDecimal amount = account.getBalances().get(currency);
+        if (amount != null) consumer.accept(new LeaderboardEntry(uuid, account.getPlayerName(), amount, 0));
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error reading account file " + file.getName());
+        e.printStackTrace();
+      }
+    }
+  }
+
   @Override public void flushCache() {
     DatabaseFactory.accounts.invalidateAll();
   }
 
+  @Override
+  protected void saveBatch(List<TransactionLeg> legs, Collection<Account> accounts) {
+    accounts.forEach(this::saveOrUpdateAccount);
+  }
+
 }
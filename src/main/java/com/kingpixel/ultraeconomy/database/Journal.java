@@ -0,0 +1,412 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.cobbleutils.util.Utils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal of balance changes. Every change of a cached account appends its new balance to an
+ * in-memory buffer, and a single thread writes and fsyncs the buffer every commit interval, so many changes share one
+ * sequential write. Appending does not wait for that write: a crash loses the changes of up to one journalCommitInterval,
+ * the same window a change of a JOURNAL currency may be lost in. Records hold whole balances together with the stored
+ * value they were computed from and the player name, so a replay keeps the change on top of whatever other servers
+ * wrote since and can create accounts storage never saw.
+ * <p>
+ * The journal is split in segments. A segment is deleted once storage confirmed the saves of every account it holds a
+ * record of, and the segments left behind by a crash are replayed into storage on the next start. Confirmations are
+ * durable: every balance write made while journaling also stores a {@link JournalMark} with the sequence it covers,
+ * so a replay drops the records that already landed instead of applying them twice.
+ */
+public class Journal {
+  private static final String PATH = UltraEconomy.PATH + "/journal/";
+  private static final String PREFIX = "wal-";
+  private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+  private static final long SEGMENT_MILLIS = 60_000;
+  // Seeded from the clock, so sequences keep growing across restarts and the marks of a previous run in storage never
+  // cover the records of this one
+  private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() * 1_000);
+  private static final Object LOCK = new Object();
+  private static final Deque<Segment> SEGMENTS = new ArrayDeque<>();
+  private static ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+  private static ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+  private static ScheduledExecutorService committer;
+  private static volatile boolean enabled;
+  private static volatile boolean replaying;
+  private static String id;
+
+  /**
+   * Replay what a previous run left behind and start journaling, if the journal is enabled
+   */
+  public static void init() {
+    synchronized (LOCK) {
+      if (committer != null || !UltraEconomy.config.isJournal()) return;
+    }
+    replay();
+    synchronized (LOCK) {
+      try {
+        SEGMENTS.add(Segment.open());
+      } catch (IOException e) {
+        CobbleUtils.LOGGER.error("Error opening the journal, balance changes will not be journaled");
+        e.printStackTrace();
+        return;
+      }
+      committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "UltraEconomy-Journal");
+        t.setDaemon(true);
+        return t;
+      });
+      long interval = Math.max(1, UltraEconomy.config.getJournalCommitInterval().toMillis());
+      committer.scheduleWithFixedDelay(Journal::commit, interval, interval, TimeUnit.MILLISECONDS);
+      enabled = true;
+    }
+  }
+
+  /**
+   * Write what is still buffered and stop journaling. Segments that storage did not confirm stay for the next start.
+   */
+  public static void close() {
+    ScheduledExecutorService executor;
+    synchronized (LOCK) {
+      executor = committer;
+      if (executor == null) return;
+      committer = null;
+      enabled = false;
+    }
+    CobbleUtils.shutdownAndAwait(executor);
+    commit();
+    synchronized (LOCK) {
+      for (Segment segment : SEGMENTS) {
+        segment.close();
+        if (segment.pending.isEmpty()) segment.delete();
+      }
+      SEGMENTS.clear();
+    }
+  }
+
+  /**
+   * Check if balance changes are being journaled
+   *
+   * @return true if the journal is running
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Check if balance writes must store a {@link JournalMark}, which is while journaling and while replaying
+   *
+   * @return true if writes are tracked
+   */
+  public static boolean isTracking() {
+    return enabled || replaying;
+  }
+
+  /**
+   * The id of this server's journal, kept in the journal folder so it survives restarts. Marks in storage are kept by
+   * it, so servers sharing a database never read each other's.
+   *
+   * @return the journal id
+   */
+  public static synchronized String id() {
+    if (id != null) return id;
+    File file = new File(Utils.getAbsolutePath(PATH), "id");
+    try {
+      if (file.exists()) {
+        id = Files.readString(file.toPath()).trim();
+      } else {
+        file.getParentFile().mkdirs();
+        id = UUID.randomUUID().toString();
+        Files.writeString(file.toPath(), id);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read the journal id", e);
+    }
+    return id;
+  }
+
+  /**
+   * Next version for an account change that is not journaled, such as a name change
+   *
+   * @return a sequence number higher than every one handed out before
+   */
+  public static long nextSequence() {
+    return SEQUENCE.incrementAndGet();
+  }
+
+  /**
+   * Record the new balance of an account. The record is buffered and reaches the disk with the next group commit, so
+   * it returns before the change is durable.
+   *
+   * @param uuid        the account UUID
+   * @param playerName  the player name, null if unknown
+   * @param currency    the currency
+   * @param amount      the new balance
+   * @param baseVersion the stored version the balance was computed from, -1 if storage had none
+   * @param baseAmount  the stored amount the balance was computed from
+   *
+   * @return the sequence number of the change, used as the account version
+   */
+  public static long append(UUID uuid, @Nullable String playerName, String currency, BigDecimal amount, long baseVersion,
+                            BigDecimal baseAmount) {
+    synchronized (LOCK) {
+      // Taken under the lock so records reach the file in sequence order
+      long sequence = SEQUENCE.incrementAndGet();
+      if (!enabled || amount == null) return sequence;
+      byte[] currencyBytes = currency.getBytes(StandardCharsets.UTF_8);
+      byte[] amountBytes = amount.toPlainString().getBytes(StandardCharsets.UTF_8);
+      byte[] baseBytes = baseAmount.toPlainString().getBytes(StandardCharsets.UTF_8);
+      // An empty name stands for none
+      byte[] nameBytes = playerName != null ? playerName.getBytes(StandardCharsets.UTF_8) : new byte[0];
+      int length = 8 + 16 + 2 + nameBytes.length + 2 + currencyBytes.length + 2 + amountBytes.length + 8 + 2
+        + baseBytes.length;
+      ensureCapacity(4 + length + 8);
+      int start = buffer.position() + 4;
+      buffer.putInt(length)
+        .putLong(sequence)
+        .putLong(uuid.getMostSignificantBits())
+        .putLong(uuid.getLeastSignificantBits())
+        .putShort((short) nameBytes.length)
+        .put(nameBytes)
+        .putShort((short) currencyBytes.length)
+        .put(currencyBytes)
+        .putShort((short) amountBytes.length)
+        .put(amountBytes)
+        .putLong(baseVersion)
+        .putShort((short) baseBytes.length)
+        .put(baseBytes);
+      CRC32 crc = new CRC32();
+      crc.update(buffer.array(), start, length);
+      buffer.putLong(crc.getValue());
+      SEGMENTS.getLast().pending.merge(uuid, sequence, Math::max);
+      return sequence;
+    }
+  }
+
+  /**
+   * Storage saved an account up to a version, so the records it covers are no longer needed
+   *
+   * @param uuid    the account UUID
+   * @param version the version of the saved changes
+   */
+  public static void confirm(UUID uuid, long version) {
+    if (!enabled) return;
+    synchronized (LOCK) {
+      for (Segment segment : SEGMENTS) {
+        Long sequence = segment.pending.get(uuid);
+        if (sequence != null && sequence <= version) segment.pending.remove(uuid);
+      }
+    }
+  }
+
+  private static void ensureCapacity(int bytes) {
+    if (buffer.remaining() >= bytes) return;
+    ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+    buffer.flip();
+    grown.put(buffer);
+    buffer = grown;
+  }
+
+  /**
+   * Group commit: write and fsync everything appended since the last commit, rotate and drop confirmed segments
+   */
+  private static void commit() {
+    ByteBuffer pending;
+    Segment segment;
+    synchronized (LOCK) {
+      if (SEGMENTS.isEmpty()) return;
+      segment = SEGMENTS.getLast();
+      // Appends go on in the spare buffer while this one is written
+      pending = buffer.flip();
+      buffer = spare;
+      if (enabled && (segment.size + pending.remaining() >= SEGMENT_BYTES
+        || System.currentTimeMillis() - segment.created >= SEGMENT_MILLIS)) {
+        try {
+          SEGMENTS.add(Segment.open());
+        } catch (IOException e) {
+          CobbleUtils.LOGGER.error("Error rotating the journal");
+          e.printStackTrace();
+        }
+      }
+    }
+    try {
+      if (pending.hasRemaining()) {
+        segment.size += pending.remaining();
+        while (pending.hasRemaining()) segment.channel.write(pending);
+        segment.channel.force(false);
+      }
+    } catch (IOException e) {
+      CobbleUtils.LOGGER.error("Error writing the journal");
+      e.printStackTrace();
+    }
+    synchronized (LOCK) {
+      spare = pending.clear();
+      Iterator<Segment> iterator = SEGMENTS.iterator();
+      while (iterator.hasNext()) {
+        Segment old = iterator.next();
+        if (old == SEGMENTS.getLast()) break;
+        // Only the last segment still receives writes
+        old.close();
+        if (!old.pending.isEmpty()) continue;
+        old.delete();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Write the balances found in the segments of a previous run into storage, then delete them. Only the last record of
+   * each balance counts, it carries the latest value and the base it was computed from. Records storage already
+   * marked as landed are dropped by {@link DatabaseClient#restoreBalances}. An account that fails to restore does not
+   * hold back the others, the segments are only kept for the next start then.
+   */
+  private static void replay() {
+    DatabaseClient client = DatabaseFactory.INSTANCE;
+    File[] files = Utils.getAbsolutePath(PATH).listFiles((dir, name) -> name.startsWith(PREFIX));
+    if (client == null || files == null || files.length == 0) return;
+    Arrays.sort(files, Comparator.comparing(File::getName));
+    Map<String, JournaledBalance> balances = new HashMap<>();
+    Map<UUID, String> names = new HashMap<>();
+    Set<UUID> accounts = new HashSet<>();
+    long last = 0;
+    int records = 0;
+    for (File file : files) {
+      try {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        while (data.remaining() >= 4) {
+          int length = data.getInt();
+          // A torn record at the end of a segment is the write the crash interrupted, nothing after it was confirmed
+          if (length <= 0 || data.remaining() < length + 8) break;
+          int start = data.position();
+          CRC32 crc = new CRC32();
+          crc.update(data.array(), start, length);
+          long sequence = data.getLong();
+          UUID uuid = new UUID(data.getLong(), data.getLong());
+          byte[] name = new byte[data.getShort()];
+          data.get(name);
+          byte[] currency = new byte[data.getShort()];
+          data.get(currency);
+          byte[] amount = new byte[data.getShort()];
+          data.get(amount);
+          long baseVersion = data.getLong();
+          byte[] baseAmount = new byte[data.getShort()];
+          data.get(baseAmount);
+          if (data.getLong() != crc.getValue()) break;
+          String currencyId = new String(currency, StandardCharsets.UTF_8);
+          // Segments and the records in them are in sequence order, so a later record replaces an earlier one
+          balances.put(uuid + ":" + currencyId, new JournaledBalance(uuid, currencyId,
+            new BigDecimal(new String(amount, StandardCharsets.UTF_8)), baseVersion,
+            new BigDecimal(new String(baseAmount, StandardCharsets.UTF_8)), sequence));
+          if (name.length > 0) names.put(uuid, new String(name, StandardCharsets.UTF_8));
+          accounts.add(uuid);
+          last = Math.max(last, sequence);
+          records++;
+        }
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error reading journal segment " + file.getName());
+        e.printStackTrace();
+      }
+    }
+    SEQUENCE.accumulateAndGet(last, Math::max);
+    if (!balances.isEmpty()) {
+      replaying = true;
+      int failed;
+      try {
+        failed = restore(client, balances.values(), names);
+      } finally {
+        replaying = false;
+      }
+      if (failed > 0) {
+        CobbleUtils.LOGGER.error("Could not replay the journal for " + failed + " accounts, it will be retried on the next start");
+        return;
+      }
+      CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Replayed " + records + " journaled changes of "
+        + accounts.size() + " accounts");
+    }
+    for (File file : files) {
+      if (!file.delete()) CobbleUtils.LOGGER.warn("Could not delete journal segment " + file.getName());
+    }
+  }
+
+  /**
+   * Restore the balances in one write, or account by account if that fails, so one bad account does not hold back the
+   * others. Restoring an account again later changes nothing, the marks of the first restore drop its records.
+   *
+   * @return the number of accounts that could not be restored
+   */
+  private static int restore(DatabaseClient client, Collection<JournaledBalance> balances, Map<UUID, String> names) {
+    try {
+      client.restoreBalances(balances, names);
+      return 0;
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error replaying the journal, restoring account by account");
+      e.printStackTrace();
+    }
+    Map<UUID, List<JournaledBalance>> byAccount = new HashMap<>();
+    balances.forEach(balance -> byAccount.computeIfAbsent(balance.playerUUID(), k -> new ArrayList<>()).add(balance));
+    int failed = 0;
+    for (Map.Entry<UUID, List<JournaledBalance>> entry : byAccount.entrySet()) {
+      try {
+        client.restoreBalances(entry.getValue(), names);
+      } catch (Exception e) {
+        failed++;
+        CobbleUtils.LOGGER.error("Error replaying the journal of account " + entry.getKey());
+        e.printStackTrace();
+      }
+    }
+    return failed;
+  }
+
+  private static final class Segment {
+    private final File file;
+    private final FileChannel channel;
+    private final long created = System.currentTimeMillis();
+    private final Map<UUID, Long> pending = new HashMap<>();
+    private long size;
+    private boolean closed;
+
+    private Segment(File file, FileChannel channel) {
+      this.file = file;
+      this.channel = channel;
+    }
+
+    private static Segment open() throws IOException {
+      File folder = Utils.getAbsolutePath(PATH);
+      folder.mkdirs();
+      // Zero padded so segments sort by name in the order they were written
+      File file = new File(folder, PREFIX + String.format("%019d", SEQUENCE.get()) + "-" + System.nanoTime() + ".log");
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+      return new Segment(file, channel);
+    }
+
+    private void close() {
+      if (closed) return;
+      closed = true;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private void delete() {
+      if (!file.delete()) CobbleUtils.LOGGER.warn("Could not delete journal segment " + file.getName());
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.kingpixel.ultraeconomy.database;
+
+import java.math.BigDecimal;
+
+/**
+ * The last journaled change of a balance that storage holds, written in the same write as the balance. Journal records
+ * at or below its sequence already landed, and a later record computed from an older base is replayed on top of the
+ * value this write left.
+ *
+ * @param sequence the account version of the write, every journal record up to it is in storage
+ * @param version  the stored version the write produced
+ * @param amount   the amount the write stored
+ */
+public record JournalMark(long sequence, long version, BigDecimal amount) {
+}
@@ -0,0 +1,39 @@
+package com.kingpixel.ultraeconomy.database;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A balance left unsaved in a local journal, with the stored value it was computed from. Replaying it keeps the
+ * change made on top of that base, so writes other servers made after it are not overwritten.
+ *
+ * @param playerUUID  the account UUID
+ * @param currency    the currency
+ * @param amount      the balance this server had
+ * @param baseVersion the stored version the balance was computed from, -1 if storage had none
+ * @param baseAmount  the stored amount the balance was computed from, the default balance if storage had none
+ * @param sequence    the journal sequence of the record, 0 for balances drained without one
+ */
+public record JournaledBalance(UUID playerUUID, String currency, BigDecimal amount, long baseVersion,
+                               BigDecimal baseAmount, long sequence) {
+  /**
+   * The change this server made on top of its base
+   */
+  public BigDecimal delta() {
+    return amount.subtract(baseAmount);
+  }
+
+  /**
+   * The same balance computed from another base
+   */
+  public JournaledBalance withBase(long version, BigDecimal amount) {
+    return new JournaledBalance(playerUUID, currency, this.amount, version, amount, sequence);
+  }
+
+  /**
+   * The version storage holds if the write of this balance already landed
+   */
+  public long landedVersion() {
+    return baseVersion < 0 ? 1 : baseVersion + 1;
+  }
+}
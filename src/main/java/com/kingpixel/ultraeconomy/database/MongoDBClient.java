@@ -6,21 +6,31 @@ import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.Model.DataBaseConfig;
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.leaderboard.LeaderboardEntry;
 import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.*;
-import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.ReplaceOptions;
-import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.*;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.bson.conversions.Bson;
+import org.bson.types.Decimal128;
 
+import javax.annotation.Nullable;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class MongoDBClient extends DatabaseClient {
 
@@ -28,6 +38,22 @@ public class MongoDBClient extends DatabaseClient {
   private MongoDatabase database;
   private MongoCollection<Document> accountsCollection;
   private MongoCollection<Document> transactionsCollection;
+  private MongoCollection<Document> ranksCollection;
+  private MongoCollection<Document> locksCollection;
+  private MongoCollection<Document> invalidationsCollection;
+  /**
+   * Whether the deployment is a replica set or sharded cluster, the only ones that run multi-document transactions
+   */
+  private boolean transactions;
+  private long invalidationSince = -1;
+  private static final long INVALIDATION_OVERLAP_MILLIS = 5_000;
+  /**
+   * Case-insensitive comparison, the name index and the name queries must use the same one
+   */
+  private static final Collation NAME_COLLATION = Collation.builder()
+    .locale("en")
+    .collationStrength(CollationStrength.SECONDARY)
+    .build();
 
   private ScheduledExecutorService transactionExecutor;
   private boolean runningTransactions = false;
@@ -59,9 +85,17 @@ public class MongoDBClient extends DatabaseClient {
 
       accountsCollection = database.getCollection("accounts");
       transactionsCollection = database.getCollection("transactions");
+      ranksCollection = database.getCollection("balance_ranks");
+      locksCollection = database.getCollection("locks");
+      invalidationsCollection = database.getCollection("cache_invalidations");
 
       // asegurar índices
       ensureIndexes();
+      migrateAmounts();
+      transactions = supportsTransactions();
+      if (!transactions) {
+        CobbleUtils.LOGGER.warn("MongoDB is a standalone server, batches are written document by document and are not atomic.");
+      }
 
       // iniciar executor
       transactionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
@@ -80,6 +114,43 @@ public class MongoDBClient extends DatabaseClient {
     }
   }
 
+  /**
+   * Balances are stored as Decimal128 so they sort by value, documents written before hold plain strings
+   */
+  private static BigDecimal amount(Object value) {
+    if (value instanceof Decimal128 decimal) return decimal.bigDecimalValue();
+    return new BigDecimal(value.toString());
+  }
+
+  /**
+   * Convert the string balances left by older versions, as strings they sort "9" above "10" in the top balances.
+   * Only documents still holding a string are rewritten, the value and its version stay the same.
+   */
+  private void migrateAmounts() {
+    Document entries = new Document("$objectToArray", "$balances");
+    Bson hasString = Filters.expr(new Document("$anyElementTrue", List.of(new Document("$map",
+      new Document("input", entries).append("in", new Document("$eq", List.of(new Document("$type", "$$this.v"), "string")))))));
+    Bson toDecimal = new Document("$set", new Document("balances", new Document("$arrayToObject", new Document("$map",
+      new Document("input", entries).append("in", new Document("k", "$$this.k").append("v", new Document("$toDecimal", "$$this.v")))))));
+    try {
+      long converted = accountsCollection.updateMany(Filters.and(Filters.type("balances", "object"), hasString), List.of(toDecimal))
+        .getModifiedCount();
+      if (converted > 0) CobbleUtils.LOGGER.info("Converted the balances of " + converted + " accounts to Decimal128.");
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error converting balances to Decimal128: " + e.getMessage());
+    }
+  }
+
+  private boolean supportsTransactions() {
+    try {
+      Document hello = database.runCommand(new Document("hello", 1));
+      return hello.containsKey("setName") || "isdbgrid".equals(hello.getString("msg"));
+    } catch (Exception e) {
+      // Servers older than the hello command predate transactions on most deployments anyway
+      return false;
+    }
+  }
+
   private void ensureIndexes() {
     try {
       Set<String> existingIndexes = new HashSet<>();
@@ -90,6 +161,9 @@ public class MongoDBClient extends DatabaseClient {
       if (!existingIndexes.contains("uuid_1")) {
         accountsCollection.createIndex(new Document("uuid", 1));
       }
+      if (!existingIndexes.contains("player_name_1")) {
+        accountsCollection.createIndex(Indexes.ascending("player_name"), new IndexOptions().collation(NAME_COLLATION));
+      }
 
       existingIndexes.clear();
       for (Document index : transactionsCollection.listIndexes()) {
@@ -105,6 +179,21 @@ public class MongoDBClient extends DatabaseClient {
       if (!existingIndexes.contains("processed_1")) {
         transactionsCollection.createIndex(new Document("processed", 1));
       }
+      if (!existingIndexes.contains("account_uuid_1_timestamp_-1__id_-1")) {
+        transactionsCollection.createIndex(Indexes.compoundIndex(Indexes.ascending("account_uuid"),
+          Indexes.descending("timestamp", "_id")));
+      }
+      if (!existingIndexes.contains("idempotency_key_1")) {
+        // Partial, so the transactions without a key are not indexed
+        transactionsCollection.createIndex(Indexes.ascending("idempotency_key"), new IndexOptions().unique(true)
+          .partialFilterExpression(Filters.exists("idempotency_key")));
+      }
+
+      ranksCollection.createIndex(Indexes.ascending("currency_id", "ranking"), new IndexOptions().unique(true));
+      ranksCollection.createIndex(Indexes.ascending("currency_id", "uuid"));
+
+      invalidationsCollection.createIndex(Indexes.ascending("created_at"),
+        new IndexOptions().expireAfter(INVALIDATION_RETENTION / 1000, TimeUnit.SECONDS));
 
       CobbleUtils.LOGGER.info("Indexes verified/created successfully.");
     } catch (Exception e) {
@@ -140,47 +229,278 @@ public class MongoDBClient extends DatabaseClient {
     Account cached = ACCOUNT_CACHE.getIfPresent(uuid);
     if (cached != null) return cached;
 
-    Document doc = accountsCollection.find(Filters.eq("uuid", uuid.toString())).first();
-    Account account;
-    if (doc != null) {
-      String playerName = doc.getString("player_name");
+    Account account = AccountLoader.load(uuid).join();
+    if (account != null) return account;
+    var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
+    if (player == null) {
+      CobbleUtils.LOGGER.warn("Could not find player with UUID " + uuid);
+      return null;
+    }
+    account = new Account(player);
+    Account winner = cacheIfAbsent(account);
+    if (winner == account) saveOrUpdateAccount(account);
+    return winner;
+  }
+
+  @Override
+  protected Map<UUID, Account> loadAccounts(Collection<UUID> uuids) {
+    List<String> ids = new ArrayList<>(uuids.size());
+    for (UUID uuid : uuids) ids.add(uuid.toString());
+    Map<UUID, Account> accounts = new HashMap<>(ids.size());
+    for (Document doc : accountsCollection.find(Filters.in("uuid", ids))) {
+      UUID uuid = UUID.fromString(doc.getString("uuid"));
       Map<String, BigDecimal> balances = new HashMap<>();
       Document balanceDoc = doc.get("balances", Document.class);
       if (balanceDoc != null) {
         for (String key : balanceDoc.keySet()) {
-          balances.put(key, new BigDecimal(balanceDoc.getString(key)));
+          balances.put(key, amount(balanceDoc.get(key)));
         }
       }
-      account = new Account(uuid, playerName, balances);
+      Account account = new Account(uuid, doc.getString("player_name"), balances);
+      account.markPersisted();
+      balances.forEach((currency, amount) -> account.markStored(currency, version(doc, currency), amount, 0));
+      accounts.put(uuid, account);
+    }
+    return accounts;
+  }
+
+  @Override
+  protected Account cacheIfAbsent(Account account) {
+    Account existing = ACCOUNT_CACHE.asMap().putIfAbsent(account.getPlayerUUID(), account);
+    return existing != null ? existing : account;
+  }
+
+  @Override
+  public void saveOrUpdateAccount(Account account) {
+    if (!account.isDirty()) return;
+    Account.Changes changes = account.drainChanges();
+    if (changes.isEmpty()) return;
+    try {
+      Map<Account, Account.Changes> saved = Map.of(account, changes);
+      writeAccounts(saved);
+      saved(saved);
+    } catch (Exception e) {
+      account.restoreChanges(changes);
+      CobbleUtils.LOGGER.error("Error saving account " + account.getPlayerUUID());
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public Collection<Account> getCachedAccounts() {
+    return List.copyOf(ACCOUNT_CACHE.asMap().values());
+  }
+
+  /**
+   * On a replica set or sharded cluster the balances, the invalidations and the legs are written in one transaction.
+   * A standalone server has no transactions, there every document is written on its own, so a failure part way leaves
+   * the earlier documents written.
+   */
+  @Override
+  protected List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) {
+    Attempt attempt;
+    if (transactions) {
+      try (ClientSession session = mongoClient.startSession()) {
+        attempt = session.withTransaction(() -> tryWrite(session, changes, legs));
+      }
     } else {
-      var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
-      if (player != null) {
-        account = new Account(player);
-        saveOrUpdateAccount(account);
-      } else {
-        CobbleUtils.LOGGER.warn("Could not find player with UUID " + uuid);
-        return null;
+      attempt = tryWrite(null, changes, legs);
+    }
+    // Only once the write committed, a transaction that aborted or retried must not leave accounts marked stored
+    attempt.committed().forEach(Runnable::run);
+    return attempt.conflicts();
+  }
+
+  /**
+   * The conflicts of one write and the changes to make to the accounts once it committed
+   */
+  private record Attempt(List<Conflict> conflicts, List<Runnable> committed) {
+  }
+
+  private Attempt tryWrite(@Nullable ClientSession session, Map<Account, Account.Changes> changes, List<TransactionLeg> legs) {
+    List<Conflict> conflicts = new ArrayList<>();
+    List<Runnable> committed = new ArrayList<>();
+    List<Document> invalidations = new ArrayList<>();
+    for (Map.Entry<Account, Account.Changes> entry : changes.entrySet()) {
+      Account account = entry.getKey();
+      Account.Changes accountChanges = entry.getValue();
+      Bson filter = Filters.eq("uuid", account.getPlayerUUID().toString());
+      List<Bson> conditions = new ArrayList<>();
+      List<Bson> sets = new ArrayList<>();
+      Map<String, BigDecimal> written = new HashMap<>();
+      Map<String, Long> expected = new HashMap<>();
+      if (accountChanges.playerName() != null) sets.add(Updates.set("player_name", accountChanges.playerName()));
+      for (Map.Entry<String, BigDecimal> balance : accountChanges.balances().entrySet()) {
+        String currency = balance.getKey();
+        if (isSuperseded(account, currency, accountChanges)) continue;
+        Account.Stored stored = account.getStored(currency);
+        long version = stored != null ? stored.version() : 0;
+        if (stored == null) {
+          conditions.add(Filters.exists("balances." + currency, false));
+        } else if (version == 0) {
+          // Balances written before documents were versioned
+          conditions.add(Filters.or(Filters.exists("versions." + currency, false), Filters.eq("versions." + currency, 0L)));
+        } else {
+          conditions.add(Filters.eq("versions." + currency, version));
+        }
+        sets.add(Updates.set("balances." + currency, new Decimal128(balance.getValue())));
+        written.put(currency, balance.getValue());
+        expected.put(currency, version);
+      }
+      if (sets.isEmpty()) continue;
+
+      if (!account.isPersisted()) {
+        // The document may not exist yet, it is created without comparing and its versions are read back
+        List<Bson> updates = new ArrayList<>(sets);
+        written.keySet().forEach(currency -> updates.add(Updates.inc("versions." + currency, 1L)));
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER);
+        Document after = session == null
+          ? accountsCollection.findOneAndUpdate(filter, Updates.combine(updates), options)
+          : accountsCollection.findOneAndUpdate(session, filter, Updates.combine(updates), options);
+        committed.add(account::markPersisted);
+        if (after != null) {
+          List<Bson> marks = new ArrayList<>();
+          written.forEach((currency, amount) -> {
+            committed.add(() -> account.markStored(currency, version(after, currency), amount, accountChanges.version()));
+            invalidations.add(invalidation(account, currency, version(after, currency)));
+            if (tracksJournal(accountChanges)) marks.add(mark(currency, accountChanges, version(after, currency), amount));
+          });
+          // The versions are only known once the upsert returned. Without a transaction a crash between both writes
+          // leaves the balance without its mark, and a replay treats it like a write that did not land.
+          if (!marks.isEmpty()) {
+            if (session == null) accountsCollection.updateOne(filter, Updates.combine(marks));
+            else accountsCollection.updateOne(session, filter, Updates.combine(marks));
+          }
+        }
+        continue;
       }
+
+      conditions.add(0, filter);
+      // The version moves with the balance, so the next compare-and-set of any node expects the new one. Set rather
+      // than incremented, the filter already pinned the old value and a missing field must become exactly 1.
+      List<Bson> updates = new ArrayList<>(sets);
+      expected.forEach((currency, version) -> updates.add(Updates.set("versions." + currency, version + 1)));
+      if (tracksJournal(accountChanges)) {
+        // Same update as the balances, a replay never finds a landed write without its mark
+        written.forEach((currency, amount) -> updates.add(mark(currency, accountChanges, expected.get(currency) + 1, amount)));
+      }
+      UpdateResult result = session == null
+        ? accountsCollection.updateOne(Filters.and(conditions), Updates.combine(updates))
+        : accountsCollection.updateOne(session, Filters.and(conditions), Updates.combine(updates));
+      if (result.getMatchedCount() == 0) {
+        // One stale balance fails the whole document, the name is kept dirty for the retry
+        if (accountChanges.playerName() != null) {
+          Account.Changes name = new Account.Changes(accountChanges.version(), accountChanges.playerName(), Map.of());
+          committed.add(() -> account.restoreChanges(name));
+        }
+        written.keySet().forEach(currency -> conflicts.add(new Conflict(account, currency)));
+        continue;
+      }
+      written.forEach((currency, amount) -> {
+        committed.add(() -> account.markStored(currency, expected.get(currency) + 1, amount, accountChanges.version()));
+        invalidations.add(invalidation(account, currency, expected.get(currency) + 1));
+      });
     }
+    if (UltraEconomy.config.isInvalidations() && !invalidations.isEmpty()) {
+      if (session == null) invalidationsCollection.insertMany(invalidations);
+      else invalidationsCollection.insertMany(session, invalidations);
+    }
+    if (!legs.isEmpty()) {
+      Date now = Date.from(Instant.now());
+      List<Document> txs = new ArrayList<>(legs.size());
+      for (TransactionLeg leg : legs) {
+        txs.add(new Document("account_uuid", leg.getPlayerUUID().toString())
+          .append("currency_id", leg.getCurrency())
+          .append("amount", leg.getAmount().toPlainString())
+          .append("type", leg.getType().name())
+          .append("processed", true)
+          .append("timestamp", now));
+      }
+      if (session == null) transactionsCollection.insertMany(txs);
+      else transactionsCollection.insertMany(session, txs);
+    }
+    return new Attempt(conflicts, committed);
+  }
 
-    ACCOUNT_CACHE.put(uuid, account);
-    return account;
+  private static Bson mark(String currency, Account.Changes changes, long version, BigDecimal amount) {
+    return Updates.set("journal." + Journal.id() + "." + currency, new Document("sequence", changes.version())
+      .append("version", version)
+      .append("amount", new Decimal128(amount)));
   }
 
   @Override
-  public void saveOrUpdateAccount(Account account) {
-    Document balancesDoc = new Document();
-    account.getBalances().forEach((k, v) -> balancesDoc.put(k, v.toPlainString()));
+  protected Map<UUID, Map<String, JournalMark>> readJournalMarks(String journalId, Collection<UUID> uuids) {
+    Map<UUID, Map<String, JournalMark>> marks = new HashMap<>();
+    List<String> ids = uuids.stream().map(UUID::toString).toList();
+    for (Document doc : accountsCollection.find(Filters.in("uuid", ids)).projection(Projections.include("uuid", "journal." + journalId))) {
+      Document journal = doc.get("journal", Document.class);
+      Document accountMarks = journal != null ? journal.get(journalId, Document.class) : null;
+      if (accountMarks == null) continue;
+      Map<String, JournalMark> byCurrency = marks.computeIfAbsent(UUID.fromString(doc.getString("uuid")), k -> new HashMap<>());
+      accountMarks.forEach((currency, value) -> {
+        Document mark = (Document) value;
+        byCurrency.put(currency, new JournalMark(mark.getLong("sequence"), mark.getLong("version"), amount(mark.get("amount"))));
+      });
+    }
+    return marks;
+  }
+
+  @Override
+  protected Map<Conflict, Account.Stored> readStored(List<Conflict> conflicts) {
+    Map<Conflict, Account.Stored> current = new HashMap<>();
+    Map<Account, Document> documents = new IdentityHashMap<>();
+    for (Conflict conflict : conflicts) {
+      Document doc = documents.computeIfAbsent(conflict.account(), account ->
+        accountsCollection.find(Filters.eq("uuid", account.getPlayerUUID().toString()))
+          .projection(Projections.include("balances", "versions")).first());
+      if (doc == null) continue;
+      Document balances = doc.get("balances", Document.class);
+      Object amount = balances != null ? balances.get(conflict.currency()) : null;
+      if (amount != null) current.put(conflict, new Account.Stored(version(doc, conflict.currency()), amount(amount), 0));
+    }
+    return current;
+  }
+
+  @Override
+  protected List<Invalidation> pollInvalidations() {
+    List<Invalidation> invalidations = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    if (invalidationSince < 0) {
+      // Start at the tail, accounts cached from now on are read fresh anyway
+      invalidationSince = now;
+      return invalidations;
+    }
+    // Inserts of other nodes may carry a slightly older clock, so a window of the tail is read again.
+    // Applying an entry twice changes nothing.
+    Bson filter = Filters.and(
+      Filters.gte("created_at", new Date(invalidationSince - INVALIDATION_OVERLAP_MILLIS)),
+      Filters.ne("node_id", UltraEconomy.NODE_ID.toString()));
+    for (Document doc : invalidationsCollection.find(filter)) {
+      Object version = doc.get("version");
+      invalidations.add(new Invalidation(UUID.fromString(doc.getString("account_uuid")), doc.getString("currency_id"),
+        version instanceof Number number ? number.longValue() : 0));
+    }
+    invalidationSince = now;
+    return invalidations;
+  }
+
+  private static Document invalidation(Account account, String currency, long version) {
+    return new Document("account_uuid", account.getPlayerUUID().toString())
+      .append("currency_id", currency)
+      .append("version", version)
+      .append("node_id", UltraEconomy.NODE_ID.toString())
+      .append("created_at", new Date());
+  }
 
-    Document doc = new Document("uuid", account.getPlayerUUID().toString())
-      .append("player_name", account.getPlayerName())
-      .append("balances", balancesDoc);
+  private static long version(Document doc, String currency) {
+    Document versions = doc.get("versions", Document.class);
+    Object version = versions != null ? versions.get(currency) : null;
+    return version instanceof Number number ? number.longValue() : 0;
+  }
 
-    accountsCollection.replaceOne(
-      Filters.eq("uuid", account.getPlayerUUID().toString()),
-      doc,
-      new ReplaceOptions().upsert(true)
-    );
+  @Override
+  protected void recordDeposit(UUID uuid, String currency, BigDecimal amount) {
+    addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
   }
 
   private void addTransaction(UUID uuid, String currency, BigDecimal amount, TransactionType type, boolean processed) {
@@ -193,6 +513,44 @@ public class MongoDBClient extends DatabaseClient {
     transactionsCollection.insertOne(tx);
   }
 
+  @Override
+  protected void saveBatch(List<TransactionLeg> legs, Collection<Account> accounts) {
+    // Every change of the accounts is written, which covers the legs and anything else still unsaved
+    Map<Account, Account.Changes> drained = new IdentityHashMap<>();
+    for (Account account : accounts) drained.put(account, account.drainChanges());
+    try {
+      writeAccounts(drained, legs);
+      saved(drained);
+    } catch (Exception e) {
+      drained.forEach(Account::restoreChanges);
+      CobbleUtils.LOGGER.error("Error saving batch of " + legs.size() + " legs");
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  protected boolean claimKey(String key, TransactionLeg first) {
+    try {
+      transactionsCollection.insertOne(new Document("account_uuid", first.getPlayerUUID().toString())
+        .append("currency_id", first.getCurrency())
+        .append("amount", first.getAmount().toPlainString())
+        .append("type", first.getType().name())
+        .append("processed", true)
+        .append("timestamp", Date.from(Instant.now()))
+        .append("idempotency_key", key));
+      return true;
+    } catch (MongoWriteException e) {
+      // The unique index on the key rejects a repeat
+      if (e.getError().getCode() == 11000) return false;
+      throw e;
+    }
+  }
+
+  @Override
+  protected void releaseKey(String key) {
+    transactionsCollection.deleteOne(Filters.eq("idempotency_key", key));
+  }
+
   private void checkAndApplyTransactions() {
     if (!runningTransactions) return;
 
@@ -207,20 +565,37 @@ public class MongoDBClient extends DatabaseClient {
         BigDecimal amount = new BigDecimal(tx.getString("amount"));
         TransactionType type = TransactionType.valueOf(tx.getString("type"));
 
+        // Claimed before it is applied, so a document is applied once even if another server polls it too
+        long claimed = transactionsCollection.updateOne(
+          Filters.and(Filters.eq("_id", tx.getObjectId("_id")), Filters.eq("processed", false)),
+          Updates.set("processed", true)
+        ).getModifiedCount();
+        if (claimed == 0) continue;
+
+        BigDecimal previous = account.getBalance(currency);
+        Runnable undo = () -> {
+        };
         switch (type) {
-          case DEPOSIT -> account.addBalance(currency, amount);
-          case WITHDRAW -> account.removeBalance(currency, amount);
-          case SET -> account.setBalance(currency, amount);
+          case DEPOSIT -> {
+            account.addBalance(currency, amount);
+            undo = () -> account.removeBalance(currency, amount);
+          }
+          case WITHDRAW -> {
+            account.removeBalance(currency, amount);
+            undo = () -> account.addBalance(currency, amount);
+          }
+          case SET -> {
+            account.setBalance(currency, amount);
+            undo = () -> account.setBalance(currency, previous);
+          }
+        }
+        if (!persist(account, currency, undo)) {
+          // Handed back, so the next poll applies it again
+          transactionsCollection.updateOne(Filters.eq("_id", tx.getObjectId("_id")), Updates.set("processed", false));
+          continue;
         }
 
-        saveOrUpdateAccount(account);
         ACCOUNT_CACHE.put(uuid, account);
-
-        // marcar procesado
-        transactionsCollection.updateOne(
-          Filters.eq("_id", tx.getObjectId("_id")),
-          Updates.set("processed", true)
-        );
       }
     } catch (Exception e) {
       CobbleUtils.LOGGER.error("Error processing transactions");
@@ -236,7 +611,10 @@ public class MongoDBClient extends DatabaseClient {
       addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, false);
     } else {
       result = account.addBalance(currency, amount);
-      if (result) addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
+      if (result && !DepositCoalescer.offer(uuid, currency, amount)) {
+        result = persist(account, currency, () -> account.removeBalance(currency, amount));
+        if (result) addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
+      }
     }
     return result;
   }
@@ -248,7 +626,7 @@ public class MongoDBClient extends DatabaseClient {
     if (account == null) {
       addTransaction(uuid, currency, amount, TransactionType.WITHDRAW, false);
     } else {
-      result = account.removeBalance(currency, amount);
+      result = account.removeBalance(currency, amount) && persist(account, currency, () -> account.addBalance(currency, amount));
       if (result) addTransaction(uuid, currency, amount, TransactionType.WITHDRAW, true);
     }
     return result;
@@ -260,7 +638,9 @@ public class MongoDBClient extends DatabaseClient {
     if (account == null) {
       addTransaction(uuid, currency, amount, TransactionType.SET, false);
     } else {
+      BigDecimal previous = account.getBalance(currency);
       account.setBalance(currency, amount);
+      if (!persist(account, currency, () -> account.setBalance(currency, previous))) return null;
       addTransaction(uuid, currency, amount, TransactionType.SET, true);
     }
     return amount;
@@ -277,38 +657,210 @@ public class MongoDBClient extends DatabaseClient {
   }
 
   @Override
-  public List<Account> getTopBalances(String currency, int page) {
-    List<Account> topAccounts = new ArrayList<>();
-    int pageSize = UltraEconomy.config.getLimitTopPlayers();
-    int skip = (page - 1) * pageSize;
+  public List<HistoryEntry> getHistory(UUID uuid, String currency, HistoryEntry cursor, int limit) {
+    return readHistory(uuid, currency, cursor, 0, limit);
+  }
 
-    FindIterable<Document> docs = accountsCollection.find()
-      .sort(new Document("balances." + currency, -1))
-      .skip(skip)
-      .limit(pageSize);
+  @Override
+  public List<HistoryEntry> getHistoryAt(UUID uuid, String currency, long offset, int limit) {
+    return readHistory(uuid, currency, null, offset, limit);
+  }
+
+  private List<HistoryEntry> readHistory(UUID uuid, String currency, HistoryEntry cursor, long offset, int limit) {
+    Bson filter = Filters.and(Filters.eq("account_uuid", uuid.toString()), Filters.eq("processed", true));
+    if (currency != null) filter = Filters.and(filter, Filters.eq("currency_id", currency));
+    if (cursor != null) {
+      Date timestamp = Date.from(cursor.timestamp());
+      filter = Filters.and(filter, Filters.or(
+        Filters.lt("timestamp", timestamp),
+        Filters.and(Filters.eq("timestamp", timestamp), Filters.lt("_id", new ObjectId(cursor.id())))
+      ));
+    }
+
+    List<HistoryEntry> rows = new ArrayList<>(limit);
+    FindIterable<Document> docs = transactionsCollection.find(filter)
+      .sort(Sorts.orderBy(Sorts.descending("timestamp"), Sorts.descending("_id")))
+      .skip((int) Math.min(offset, Integer.MAX_VALUE))
+      .limit(limit);
 
     for (Document doc : docs) {
-      UUID uuid = UUID.fromString(doc.getString("uuid"));
-      String playerName = doc.getString("player_name");
+      Date timestamp = doc.getDate("timestamp");
+      rows.add(new HistoryEntry(
+        doc.getObjectId("_id").toHexString(),
+        uuid,
+        doc.getString("currency_id"),
+        new BigDecimal(doc.getString("amount")),
+        TransactionType.valueOf(doc.getString("type")),
+        timestamp == null ? Instant.EPOCH : timestamp.toInstant()
+      ));
+    }
 
-      Map<String, BigDecimal> balances = new HashMap<>();
+    return rows;
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchTopPage(String currency, LeaderboardEntry after, int limit) {
+    String field = "balances." + currency;
+    Bson filter = Filters.exists(field);
+    if (after != null) {
+      Decimal128 amount = new Decimal128(after.amount());
+      filter = Filters.and(filter, Filters.or(
+        Filters.lt(field, amount),
+        Filters.and(Filters.eq(field, amount), Filters.gt("uuid", after.playerUUID().toString()))
+      ));
+    }
+    return readTopPage(currency, accountsCollection.find(filter).limit(limit));
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchTopPageAt(String currency, long offset, int limit) {
+    FindIterable<Document> docs = accountsCollection.find(Filters.exists("balances." + currency))
+      .skip((int) Math.min(offset, Integer.MAX_VALUE))
+      .limit(limit);
+    return readTopPage(currency, docs);
+  }
+
+  private List<LeaderboardEntry> readTopPage(String currency, FindIterable<Document> docs) {
+    String field = "balances." + currency;
+    List<LeaderboardEntry> rows = new ArrayList<>();
+    docs.projection(Projections.include("uuid", "player_name", field))
+      .sort(Sorts.orderBy(Sorts.descending(field), Sorts.ascending("uuid")));
+
+    for (Document doc : docs) {
       Document balanceDoc = doc.get("balances", Document.class);
-      if (balanceDoc != null && balanceDoc.containsKey(currency)) {
-        balances.put(currency, new BigDecimal(balanceDoc.getString(currency)));
-      }
+      rows.add(new LeaderboardEntry(
+        UUID.fromString(doc.getString("uuid")),
+        doc.getString("player_name"),
+        amount(balanceDoc.get(currency)),
+        0
+      ));
+    }
+
+    return rows;
+  }
+
+  @Override
+  public long getRank(UUID uuid, String currency) {
+    // The rebuild may briefly hold a player at two ranks, the better one is the one already rewritten
+    Document doc = ranksCollection.find(Filters.and(Filters.eq("currency_id", currency), Filters.eq("uuid", uuid.toString())))
+      .sort(Sorts.ascending("ranking"))
+      .first();
+    return doc == null ? -1 : doc.getLong("ranking");
+  }
+
+  @Override
+  public Map<UUID, Long> getRanks(Collection<UUID> uuids, String currency) {
+    Map<UUID, Long> ranks = new HashMap<>();
+    List<String> ids = uuids.stream().map(UUID::toString).toList();
+    // Best rank first, so a player the rebuild briefly holds twice keeps the one already rewritten
+    for (Document doc : ranksCollection.find(Filters.and(Filters.eq("currency_id", currency), Filters.in("uuid", ids)))
+      .projection(Projections.include("uuid", "ranking"))
+      .sort(Sorts.ascending("ranking"))) {
+      ranks.putIfAbsent(UUID.fromString(doc.getString("uuid")), doc.getLong("ranking"));
+    }
+    return ranks;
+  }
+
+  @Override
+  public boolean tryLock(String name, String owner, long ttl) {
+    long now = System.currentTimeMillis();
+    try {
+      locksCollection.findOneAndUpdate(
+        Filters.and(Filters.eq("_id", name), Filters.or(Filters.eq("owner", owner), Filters.lt("expires_at", now))),
+        Updates.combine(Updates.set("owner", owner), Updates.set("expires_at", now + ttl)),
+        new FindOneAndUpdateOptions().upsert(true)
+      );
+      return true;
+    } catch (MongoCommandException | MongoWriteException e) {
+      // Another server holds the lock, the upsert collided with its document
+      return false;
+    }
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchRankedPage(String currency, long fromRank, int limit) {
+    List<LeaderboardEntry> rows = new ArrayList<>(limit);
+    FindIterable<Document> docs = ranksCollection.find(Filters.and(
+        Filters.eq("currency_id", currency),
+        Filters.gte("ranking", fromRank),
+        Filters.lt("ranking", fromRank + limit)))
+      .sort(Sorts.ascending("ranking"));
+    for (Document doc : docs) {
+      rows.add(new LeaderboardEntry(
+        UUID.fromString(doc.getString("uuid")),
+        doc.getString("player_name"),
+        amount(doc.get("amount")),
+        doc.getLong("ranking")
+      ));
+    }
+    return rows;
+  }
+
+  @Override
+  protected void writeRanks(String currency, long firstRank, List<LeaderboardEntry> chunk) {
+    List<WriteModel<Document>> writes = new ArrayList<>(chunk.size());
+    long rank = firstRank;
+    for (LeaderboardEntry entry : chunk) {
+      writes.add(new ReplaceOneModel<>(
+        Filters.and(Filters.eq("currency_id", currency), Filters.eq("ranking", rank)),
+        new Document("currency_id", currency)
+          .append("ranking", rank)
+          .append("uuid", entry.playerUUID().toString())
+          .append("player_name", entry.playerName())
+          .append("amount", new Decimal128(entry.amount())),
+        new ReplaceOptions().upsert(true)
+      ));
+      rank++;
+    }
+    ranksCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+  }
+
+  @Override
+  protected void trimRanks(String currency, long fromRank) {
+    ranksCollection.deleteMany(Filters.and(Filters.eq("currency_id", currency), Filters.gte("ranking", fromRank)));
+  }
+
+  @Override
+  public UUID findUUIDByName(String playerName) {
+    Document doc = accountsCollection.find(Filters.eq("player_name", playerName))
+      .collation(NAME_COLLATION)
+      .projection(Projections.include("uuid"))
+      .first();
+    return doc == null ? null : UUID.fromString(doc.getString("uuid"));
+  }
 
-      Account account = new Account(uuid, playerName, balances);
-      topAccounts.add(account);
-      ACCOUNT_CACHE.put(uuid, account);
+  @Override
+  public void forEachPlayerName(BiConsumer<UUID, String> consumer) {
+    FindIterable<Document> docs = accountsCollection.find()
+      .projection(Projections.include("uuid", "player_name"))
+      .batchSize(1_000);
+    for (Document doc : docs) {
+      consumer.accept(UUID.fromString(doc.getString("uuid")), doc.getString("player_name"));
     }
+  }
 
-    return topAccounts;
+  @Override
+  public void forEachBalance(String currency, Consumer<LeaderboardEntry> consumer) {
+    String field = "balances." + currency;
+    FindIterable<Document> docs = accountsCollection.find(Filters.exists(field))
+      .projection(Projections.include("uuid", "player_name", field))
+      .batchSize(1_000);
+    for (Document doc : docs) {
+      Document balanceDoc = doc.get("balances", Document.class);
+      consumer.accept(new LeaderboardEntry(
+        UUID.fromString(doc.getString("uuid")),
+        doc.getString("player_name"),
+        amount(balanceDoc.get(currency)),
+        0
+      ));
+    }
   }
 
   @Override public void flushCache() {
     ACCOUNT_CACHE.invalidateAll();
   }
 
+  @Override
   public Account getCachedAccount(UUID uuid) {
     return ACCOUNT_CACHE.getIfPresent(uuid);
   }
@@ -0,0 +1,112 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
+
+import javax.annotation.Nullable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory name index of every account, seeded from storage and kept up to date on join.
+ * Names are keyed in lower case in a sorted map, so an exact lookup and a prefix scan for tab completion both walk
+ * one ordered structure, and a name missing here costs a single indexed query on the backend.
+ */
+public class PlayerNames {
+  private static final int MAX_SUGGESTIONS = 50;
+  private static final NavigableMap<String, Entry> BY_NAME = new ConcurrentSkipListMap<>();
+  private static final Map<UUID, String> BY_UUID = new ConcurrentHashMap<>();
+
+  /**
+   * Rebuild the index from storage in the background
+   */
+  public static void init() {
+    BY_NAME.clear();
+    BY_UUID.clear();
+    CompletableFuture.runAsync(() -> {
+        long start = System.currentTimeMillis();
+        // Names recorded since the seed started win over the stored ones
+        DatabaseFactory.INSTANCE.forEachPlayerName((uuid, name) -> {
+          if (!BY_UUID.containsKey(uuid)) update(uuid, name);
+        });
+        if (UltraEconomy.config.isDebug()) {
+          CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Indexed " + BY_UUID.size() + " player names in "
+            + (System.currentTimeMillis() - start) + "ms");
+        }
+      }, UltraEconomy.ULTRA_ECONOMY_EXECUTOR)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
+  /**
+   * Record the current name of a player, replacing its previous one
+   *
+   * @param uuid the player's UUID
+   * @param name the player's name
+   */
+  public static void update(UUID uuid, String name) {
+    if (uuid == null || name == null) return;
+    String key = name.toLowerCase(Locale.ROOT);
+    String previous = BY_UUID.put(uuid, key);
+    if (previous != null && !previous.equals(key)) {
+      Entry old = BY_NAME.get(previous);
+      if (old != null && old.uuid().equals(uuid)) BY_NAME.remove(previous, old);
+    }
+    BY_NAME.put(key, new Entry(uuid, name));
+  }
+
+  /**
+   * Resolve a name to a UUID, ignoring case. Misses fall back to the backend's name index.
+   *
+   * @param name the player's name
+   *
+   * @return the UUID, or null if no account has that name
+   */
+  public static @Nullable UUID resolve(String name) {
+    Entry entry = BY_NAME.get(name.toLowerCase(Locale.ROOT));
+    if (entry != null) return entry.uuid();
+    UUID uuid = DatabaseFactory.INSTANCE.findUUIDByName(name);
+    if (uuid != null && !BY_UUID.containsKey(uuid)) update(uuid, name);
+    return uuid;
+  }
+
+  /**
+   * Get the stored name of a player
+   *
+   * @param uuid the player's UUID
+   *
+   * @return the name as last seen, or null if unknown
+   */
+  public static @Nullable String nameOf(UUID uuid) {
+    String key = BY_UUID.get(uuid);
+    if (key == null) return null;
+    Entry entry = BY_NAME.get(key);
+    return entry != null ? entry.name() : null;
+  }
+
+  /**
+   * Suggest the names starting with what was typed so far
+   */
+  public static <S> CompletableFuture<Suggestions> suggest(CommandContext<S> context, SuggestionsBuilder builder) {
+    String prefix = builder.getRemainingLowerCase();
+    int count = 0;
+    for (Map.Entry<String, Entry> entry : BY_NAME.tailMap(prefix, true).entrySet()) {
+      if (!entry.getKey().startsWith(prefix) || count++ >= MAX_SUGGESTIONS) break;
+      builder.suggest(entry.getValue().name());
+    }
+    return builder.buildFuture();
+  }
+
+  private record Entry(UUID uuid, String name) {
+  }
+}
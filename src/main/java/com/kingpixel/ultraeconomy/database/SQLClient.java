@@ -7,25 +7,46 @@ import com.kingpixel.cobbleutils.CobbleUtils;
 import com.kingpixel.cobbleutils.Model.DataBaseConfig;
 import com.kingpixel.cobbleutils.Model.DataBaseType;
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.leaderboard.LeaderboardEntry;
 import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
 import java.math.BigDecimal;
 import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class SQLClient extends DatabaseClient {
 
   private HikariDataSource dataSource;
+  private DataBaseType type;
   private ScheduledExecutorService transactionExecutor;
   private ExecutorService asyncExecutor;
   private boolean runningTransactions = false;
+  private static final int INVALIDATION_PAGE = 1000;
+  private static final int INVALIDATION_OVERLAP = 256;
+  private static final int INVALIDATION_PRUNE_POLLS = 60;
+  // Stays below the bound parameter limit of old SQLite builds
+  private static final int RANK_READ_CHUNK = 500;
+  // MySQL and MariaDB error code for an index name that is already taken
+  private static final int ER_DUP_KEYNAME = 1061;
+  // The expression of idx_balances_currency_sort, SQLite only uses the index for a query on the same expression
+  private static final String SQLITE_SORT_AMOUNT = "CAST(b.amount AS REAL)";
+  private static final DateTimeFormatter SQLITE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+    .withZone(ZoneOffset.UTC);
+  private long invalidationCursor = -1;
+  private int invalidationPolls;
 
   public static final Cache<UUID, Account> ACCOUNT_CACHE = Caffeine.newBuilder()
     .expireAfterAccess(1, TimeUnit.MINUTES)
@@ -41,6 +62,7 @@ public class SQLClient extends DatabaseClient {
   @Override
   public void connect(DataBaseConfig config) {
     try {
+      type = config.getType();
       switch (config.getType()) {
         case SQLITE -> {
           Class.forName("org.sqlite.JDBC");
@@ -109,7 +131,17 @@ public class SQLClient extends DatabaseClient {
   public void disconnect() {
     runningTransactions = false;
     if (transactionExecutor != null) transactionExecutor.shutdownNow();
-    if (asyncExecutor != null) asyncExecutor.shutdownNow();
+    if (asyncExecutor != null) {
+      // Saves still queued get a bounded chance to finish before the pool closes under them
+      asyncExecutor.shutdown();
+      try {
+        if (!asyncExecutor.awaitTermination(UltraEconomy.config.getShutdownFlushTimeout().toMillis(), TimeUnit.MILLISECONDS))
+          CobbleUtils.LOGGER.warn("Pending database writes did not finish before the shutdown timeout");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      asyncExecutor.shutdownNow();
+    }
     if (dataSource != null && !dataSource.isClosed()) dataSource.close();
     CobbleUtils.LOGGER.info("Disconnected from database.");
   }
@@ -124,33 +156,56 @@ public class SQLClient extends DatabaseClient {
     Account cached = ACCOUNT_CACHE.getIfPresent(uuid);
     if (cached != null) return cached;
 
-    try (Connection conn = dataSource.getConnection()) {
-      Account account;
-      try (PreparedStatement stmt = conn.prepareStatement("SELECT uuid, player_name FROM accounts WHERE uuid=?")) {
-        stmt.setString(1, uuid.toString());
-        ResultSet rs = stmt.executeQuery();
-        if (rs.next()) {
-          Map<String, BigDecimal> balances = new HashMap<>();
-          try (PreparedStatement balStmt = conn.prepareStatement("SELECT currency_id, amount FROM balances WHERE account_uuid=?")) {
-            balStmt.setString(1, uuid.toString());
-            ResultSet balRs = balStmt.executeQuery();
-            while (balRs.next())
-              balances.put(balRs.getString("currency_id"), balRs.getBigDecimal("amount"));
+    Account account = AccountLoader.load(uuid).join();
+    if (account != null) return account;
+    var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
+    if (player == null) return null;
+    account = new Account(player);
+    Account winner = cacheIfAbsent(account);
+    if (winner == account) saveOrUpdateAccount(account);
+    return winner;
+  }
+
+  @Override
+  protected Map<UUID, Account> loadAccounts(Collection<UUID> uuids) throws SQLException {
+    Map<UUID, String> names = new HashMap<>();
+    Map<UUID, Map<String, BigDecimal>> balances = new HashMap<>();
+    Map<UUID, Map<String, Long>> versions = new HashMap<>();
+    String placeholders = String.join(",", Collections.nCopies(uuids.size(), "?"));
+    String query = "SELECT a.uuid, a.player_name, b.currency_id, b.amount, b.version FROM accounts a LEFT JOIN balances b ON a.uuid=b.account_uuid WHERE a.uuid IN (" + placeholders + ")";
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      int i = 1;
+      for (UUID uuid : uuids) stmt.setString(i++, uuid.toString());
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          UUID uuid = UUID.fromString(rs.getString("uuid"));
+          names.put(uuid, rs.getString("player_name"));
+          Map<String, BigDecimal> accountBalances = balances.computeIfAbsent(uuid, k -> new HashMap<>());
+          String currency = rs.getString("currency_id");
+          if (currency != null) {
+            accountBalances.put(currency, rs.getBigDecimal("amount"));
+            versions.computeIfAbsent(uuid, k -> new HashMap<>()).put(currency, rs.getLong("version"));
           }
-          account = new Account(uuid, rs.getString("player_name"), balances);
-        } else {
-          var player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
-          if (player != null) {
-            account = new Account(player);
-            saveOrUpdateAccount(account);
-          } else return null;
         }
       }
-      ACCOUNT_CACHE.put(uuid, account);
-      return account;
-    } catch (SQLException e) {
-      throw new RuntimeException("Error fetching account " + uuid, e);
     }
+    Map<UUID, Account> accounts = new HashMap<>(names.size());
+    names.forEach((uuid, name) -> {
+      Map<String, BigDecimal> accountBalances = balances.get(uuid);
+      Account account = new Account(uuid, name, accountBalances);
+      account.markPersisted();
+      versions.getOrDefault(uuid, Map.of()).forEach((currency, version) ->
+        account.markStored(currency, version, accountBalances.get(currency), 0));
+      accounts.put(uuid, account);
+    });
+    return accounts;
+  }
+
+  @Override
+  protected Account cacheIfAbsent(Account account) {
+    Account existing = ACCOUNT_CACHE.asMap().putIfAbsent(account.getPlayerUUID(), account);
+    return existing != null ? existing : account;
   }
 
   public void getAccountAsync(UUID uuid, Consumer<Account> callback) {
@@ -159,30 +214,228 @@ public class SQLClient extends DatabaseClient {
 
   @Override
   public void saveOrUpdateAccount(Account account) {
+    if (!account.isDirty()) return;
     asyncExecutor.submit(() -> {
-      try (Connection conn = dataSource.getConnection()) {
-        conn.setAutoCommit(false);
-        try (PreparedStatement stmt = conn.prepareStatement(
-          "INSERT INTO accounts (uuid, player_name) VALUES (?, ?) ON CONFLICT(uuid) DO UPDATE SET player_name=excluded.player_name")) {
-          stmt.setString(1, account.getPlayerUUID().toString());
-          stmt.setString(2, account.getPlayerName());
-          stmt.executeUpdate();
+      Account.Changes changes = account.drainChanges();
+      if (changes.isEmpty()) return;
+      try {
+        Map<Account, Account.Changes> saved = Map.of(account, changes);
+        writeAccounts(saved);
+        saved(saved);
+      } catch (Exception e) {
+        account.restoreChanges(changes);
+        CobbleUtils.LOGGER.error("Error saving account " + account.getPlayerUUID());
+        e.printStackTrace();
+      }
+    });
+  }
+
+  @Override
+  public Collection<Account> getCachedAccounts() {
+    return List.copyOf(ACCOUNT_CACHE.asMap().values());
+  }
+
+  @Override
+  protected List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) throws SQLException {
+    List<BalanceWrite> updates = new ArrayList<>();
+    List<BalanceWrite> inserts = new ArrayList<>();
+    try (Connection conn = dataSource.getConnection()) {
+      conn.setAutoCommit(false);
+      try (PreparedStatement txStmt = conn.prepareStatement(
+        "INSERT INTO transactions (account_uuid, currency_id, amount, type, processed) VALUES (?, ?, ?, ?, ?)");
+           PreparedStatement accStmt = conn.prepareStatement(type == DataBaseType.SQLITE
+             ? "INSERT INTO accounts (uuid, player_name) VALUES (?, ?) ON CONFLICT(uuid) DO UPDATE SET player_name=excluded.player_name"
+             : "INSERT INTO accounts (uuid, player_name) VALUES (?, ?) ON DUPLICATE KEY UPDATE player_name=VALUES(player_name)");
+           PreparedStatement updateStmt = conn.prepareStatement(
+             "UPDATE balances SET amount=?, version=? WHERE account_uuid=? AND currency_id=? AND version=?");
+           PreparedStatement insertStmt = conn.prepareStatement(type == DataBaseType.SQLITE
+             ? "INSERT OR IGNORE INTO balances (account_uuid, currency_id, amount, version) VALUES (?, ?, ?, 1)"
+             : "INSERT IGNORE INTO balances (account_uuid, currency_id, amount, version) VALUES (?, ?, ?, 1)")) {
+        for (TransactionLeg leg : legs) {
+          txStmt.setString(1, leg.getPlayerUUID().toString());
+          txStmt.setString(2, leg.getCurrency());
+          txStmt.setBigDecimal(3, leg.getAmount());
+          txStmt.setString(4, leg.getType().name());
+          txStmt.setBoolean(5, true);
+          txStmt.addBatch();
+        }
+        for (Map.Entry<Account, Account.Changes> entry : changes.entrySet()) {
+          Account account = entry.getKey();
+          Account.Changes accountChanges = entry.getValue();
+          String uuid = account.getPlayerUUID().toString();
+          if (accountChanges.playerName() != null) {
+            accStmt.setString(1, uuid);
+            accStmt.setString(2, accountChanges.playerName());
+            accStmt.addBatch();
+          }
+          for (Map.Entry<String, BigDecimal> balance : accountChanges.balances().entrySet()) {
+            String currency = balance.getKey();
+            if (isSuperseded(account, currency, accountChanges)) continue;
+            Account.Stored stored = account.getStored(currency);
+            BalanceWrite write = new BalanceWrite(account, currency, balance.getValue(),
+              stored != null ? stored.version() : 0, accountChanges.version());
+            if (stored == null) {
+              insertStmt.setString(1, uuid);
+              insertStmt.setString(2, currency);
+              insertStmt.setBigDecimal(3, write.amount());
+              insertStmt.addBatch();
+              inserts.add(write);
+            } else {
+              updateStmt.setBigDecimal(1, write.amount());
+              updateStmt.setLong(2, write.expected() + 1);
+              updateStmt.setString(3, uuid);
+              updateStmt.setString(4, currency);
+              updateStmt.setLong(5, write.expected());
+              updateStmt.addBatch();
+              updates.add(write);
+            }
+          }
         }
-        for (Map.Entry<String, BigDecimal> entry : account.getBalances().entrySet()) {
-          try (PreparedStatement balStmt = conn.prepareStatement(
-            "INSERT INTO balances (account_uuid, currency_id, amount) VALUES (?, ?, ?) ON CONFLICT(account_uuid,currency_id) DO UPDATE SET amount=excluded.amount")) {
-            balStmt.setString(1, account.getPlayerUUID().toString());
-            balStmt.setString(2, entry.getKey());
-            balStmt.setBigDecimal(3, entry.getValue());
-            balStmt.executeUpdate();
+        accStmt.executeBatch();
+        if (!legs.isEmpty()) txStmt.executeBatch();
+        List<Conflict> conflicts = new ArrayList<>();
+        List<BalanceWrite> written = new ArrayList<>(updates.size() + inserts.size());
+        // A write that touched no row lost its compare-and-set
+        collect(updateStmt.executeBatch(), updates, written, conflicts);
+        collect(insertStmt.executeBatch(), inserts, written, conflicts);
+        if (UltraEconomy.config.isInvalidations() && !written.isEmpty()) {
+          // Same transaction as the balances, so other nodes never see a write without its invalidation
+          try (PreparedStatement invalidationStmt = conn.prepareStatement(
+            "INSERT INTO cache_invalidations (account_uuid, currency_id, version, node_id, created_at) VALUES (?, ?, ?, ?, ?)")) {
+            long now = System.currentTimeMillis();
+            for (BalanceWrite write : written) {
+              invalidationStmt.setString(1, write.account().getPlayerUUID().toString());
+              invalidationStmt.setString(2, write.currency());
+              invalidationStmt.setLong(3, write.expected() + 1);
+              invalidationStmt.setString(4, UltraEconomy.NODE_ID.toString());
+              invalidationStmt.setLong(5, now);
+              invalidationStmt.addBatch();
+            }
+            invalidationStmt.executeBatch();
+          }
+        }
+        List<BalanceWrite> marked = written.stream().filter(write -> tracksJournal(changes.get(write.account()))).toList();
+        if (!marked.isEmpty()) {
+          // Same transaction as the balances, a replay never finds a landed write without its mark
+          try (PreparedStatement markStmt = conn.prepareStatement(type == DataBaseType.SQLITE
+            ? "INSERT INTO journal_marks (journal_id, account_uuid, currency_id, sequence, version, amount) VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT(journal_id, account_uuid, currency_id) DO UPDATE SET sequence=excluded.sequence, version=excluded.version, amount=excluded.amount"
+            : "INSERT INTO journal_marks (journal_id, account_uuid, currency_id, sequence, version, amount) VALUES (?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE sequence=VALUES(sequence), version=VALUES(version), amount=VALUES(amount)")) {
+            String journalId = Journal.id();
+            for (BalanceWrite write : marked) {
+              markStmt.setString(1, journalId);
+              markStmt.setString(2, write.account().getPlayerUUID().toString());
+              markStmt.setString(3, write.currency());
+              markStmt.setLong(4, write.accountVersion());
+              markStmt.setLong(5, write.expected() + 1);
+              markStmt.setBigDecimal(6, write.amount());
+              markStmt.addBatch();
+            }
+            markStmt.executeBatch();
           }
         }
         conn.commit();
+        for (BalanceWrite write : written) {
+          write.account().markStored(write.currency(), write.expected() + 1, write.amount(), write.accountVersion());
+        }
+        return conflicts;
       } catch (SQLException e) {
-        CobbleUtils.LOGGER.error("Error saving account " + account.getPlayerUUID());
-        e.printStackTrace();
+        conn.rollback();
+        throw e;
       }
-    });
+    }
+  }
+
+  private static void collect(int[] counts, List<BalanceWrite> writes, List<BalanceWrite> written, List<Conflict> conflicts) {
+    for (int i = 0; i < writes.size(); i++) {
+      BalanceWrite write = writes.get(i);
+      if (counts[i] == 0) {
+        conflicts.add(new Conflict(write.account(), write.currency()));
+      } else {
+        written.add(write);
+      }
+    }
+  }
+
+  @Override
+  protected Map<Conflict, Account.Stored> readStored(List<Conflict> conflicts) throws SQLException {
+    Map<Conflict, Account.Stored> current = new HashMap<>();
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(
+           "SELECT amount, version FROM balances WHERE account_uuid=? AND currency_id=?")) {
+      for (Conflict conflict : conflicts) {
+        stmt.setString(1, conflict.account().getPlayerUUID().toString());
+        stmt.setString(2, conflict.currency());
+        try (ResultSet rs = stmt.executeQuery()) {
+          if (rs.next()) current.put(conflict, new Account.Stored(rs.getLong("version"), rs.getBigDecimal("amount"), 0));
+        }
+      }
+    }
+    return current;
+  }
+
+  @Override
+  protected Map<UUID, Map<String, JournalMark>> readJournalMarks(String journalId, Collection<UUID> uuids) throws SQLException {
+    Map<UUID, Map<String, JournalMark>> marks = new HashMap<>();
+    String placeholders = String.join(",", Collections.nCopies(uuids.size(), "?"));
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(
+           "SELECT account_uuid, currency_id, sequence, version, amount FROM journal_marks WHERE journal_id=? AND account_uuid IN ("
+             + placeholders + ")")) {
+      stmt.setString(1, journalId);
+      int i = 2;
+      for (UUID uuid : uuids) stmt.setString(i++, uuid.toString());
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          marks.computeIfAbsent(UUID.fromString(rs.getString("account_uuid")), k -> new HashMap<>())
+            .put(rs.getString("currency_id"), new JournalMark(rs.getLong("sequence"), rs.getLong("version"),
+              rs.getBigDecimal("amount")));
+        }
+      }
+    }
+    return marks;
+  }
+
+  @Override
+  protected List<Invalidation> pollInvalidations() throws SQLException {
+    List<Invalidation> invalidations = new ArrayList<>();
+    try (Connection conn = dataSource.getConnection()) {
+      if (invalidationCursor < 0) {
+        // Start at the tail, accounts cached from now on are read fresh anyway
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM cache_invalidations")) {
+          invalidationCursor = rs.next() ? rs.getLong(1) : 0;
+        }
+        return invalidations;
+      }
+      // Ids are taken before commit, so a slow transaction can land behind the cursor. Re-reading a window of the
+      // tail catches it, applying an entry twice changes nothing.
+      try (PreparedStatement stmt = conn.prepareStatement(
+        "SELECT seq, account_uuid, currency_id, version, node_id FROM cache_invalidations WHERE seq > ? ORDER BY seq LIMIT "
+          + INVALIDATION_PAGE)) {
+        stmt.setLong(1, Math.max(0, invalidationCursor - INVALIDATION_OVERLAP));
+        String node = UltraEconomy.NODE_ID.toString();
+        long last = invalidationCursor;
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            last = Math.max(last, rs.getLong("seq"));
+            if (node.equals(rs.getString("node_id"))) continue;
+            invalidations.add(new Invalidation(UUID.fromString(rs.getString("account_uuid")),
+              rs.getString("currency_id"), rs.getLong("version")));
+          }
+        }
+        invalidationCursor = last;
+      }
+      if (++invalidationPolls % INVALIDATION_PRUNE_POLLS == 0) {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM cache_invalidations WHERE created_at < ?")) {
+          stmt.setLong(1, System.currentTimeMillis() - INVALIDATION_RETENTION);
+          stmt.executeUpdate();
+        }
+      }
+    }
+    return invalidations;
+  }
+
+  private record BalanceWrite(Account account, String currency, BigDecimal amount, long expected, long accountVersion) {
   }
 
   @Override
@@ -193,7 +446,10 @@ public class SQLClient extends DatabaseClient {
       addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, false);
     } else {
       result = account.addBalance(currency, amount);
-      if (result) addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
+      if (result && !DepositCoalescer.offer(uuid, currency, amount)) {
+        result = persist(account, currency, () -> account.removeBalance(currency, amount));
+        if (result) addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
+      }
     }
     return result;
   }
@@ -205,7 +461,7 @@ public class SQLClient extends DatabaseClient {
     if (account == null) {
       addTransaction(uuid, currency, amount, TransactionType.WITHDRAW, false);
     } else {
-      result = account.removeBalance(currency, amount);
+      result = account.removeBalance(currency, amount) && persist(account, currency, () -> account.addBalance(currency, amount));
       if (result) addTransaction(uuid, currency, amount, TransactionType.WITHDRAW, true);
     }
     return result;
@@ -217,25 +473,14 @@ public class SQLClient extends DatabaseClient {
     if (account == null) {
       addTransaction(uuid, currency, amount, TransactionType.SET, false);
     } else {
+      BigDecimal previous = account.getBalance(currency);
       account.setBalance(currency, amount);
+      if (!persist(account, currency, () -> account.setBalance(currency, previous))) return null;
       addTransaction(uuid, currency, amount, TransactionType.SET, true);
-      saveBalanceSafe(uuid, currency, amount);
     }
     return amount;
   }
 
-  private void saveBalanceSafe(UUID uuid, String currency, BigDecimal amount) {
-    asyncExecutor.submit(() -> {
-      try {
-        saveBalance(uuid, currency, amount);
-        ACCOUNT_CACHE.invalidate(uuid);
-      } catch (SQLException e) {
-        CobbleUtils.LOGGER.error("Error saving balance for " + uuid);
-        e.printStackTrace();
-      }
-    });
-  }
-
   @Override
   public BigDecimal getBalance(UUID uuid, String currency) {
     return getAccount(uuid).getBalance(currency);
@@ -247,41 +492,385 @@ public class SQLClient extends DatabaseClient {
   }
 
   @Override
-  public List<Account> getTopBalances(String currency, int page) {
-    List<Account> topAccounts = new ArrayList<>();
-    int pageSize = UltraEconomy.config.getLimitTopPlayers();
-    int offset = (page - 1) * pageSize;
+  protected List<LeaderboardEntry> fetchTopPage(String currency, LeaderboardEntry after, int limit) {
+    return readTopPage(currency, after, 0, limit);
+  }
 
-    String query = "SELECT a.uuid, a.player_name, b.amount FROM accounts a JOIN balances b ON a.uuid=b.account_uuid WHERE b.currency_id=? ORDER BY CAST(b.amount AS DECIMAL) DESC LIMIT ? OFFSET ?";
+  @Override
+  protected List<LeaderboardEntry> fetchTopPageAt(String currency, long offset, int limit) {
+    return readTopPage(currency, null, offset, limit);
+  }
+
+  private List<LeaderboardEntry> readTopPage(String currency, LeaderboardEntry after, long offset, int limit) {
+    List<LeaderboardEntry> rows = new ArrayList<>(limit);
+    // SQLite stores amounts as text and sorts on the same expression as idx_balances_currency_sort, MySQL orders the
+    // DECIMAL(36,18) column directly, which must not be cast down to an integer DECIMAL
+    String amount = type == DataBaseType.SQLITE ? SQLITE_SORT_AMOUNT : "b.amount";
+    String query = "SELECT a.uuid, a.player_name, b.amount FROM accounts a JOIN balances b ON a.uuid=b.account_uuid WHERE b.currency_id=?"
+      + (after == null ? "" : " AND (" + amount + " < ? OR (" + amount + " = ? AND b.account_uuid > ?))")
+      + " ORDER BY " + amount + " DESC, b.account_uuid ASC LIMIT ?"
+      + (offset > 0 ? " OFFSET ?" : "");
 
     try (Connection conn = dataSource.getConnection();
          PreparedStatement stmt = conn.prepareStatement(query)) {
-      stmt.setString(1, currency);
-      stmt.setInt(2, pageSize);
-      stmt.setInt(3, offset);
-      ResultSet rs = stmt.executeQuery();
-      while (rs.next()) {
-        UUID uuid = UUID.fromString(rs.getString("uuid"));
-        String playerName = rs.getString("player_name");
-        BigDecimal amount = rs.getBigDecimal("amount");
-
-        Map<String, BigDecimal> balances = new HashMap<>();
-        balances.put(currency, amount);
-        Account account = new Account(uuid, playerName, balances);
-        topAccounts.add(account);
+      int i = 1;
+      stmt.setString(i++, currency);
+      if (after != null) {
+        setSortAmount(stmt, i++, after.amount());
+        setSortAmount(stmt, i++, after.amount());
+        stmt.setString(i++, after.playerUUID().toString());
+      }
+      stmt.setInt(i++, limit);
+      if (offset > 0) stmt.setLong(i, offset);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          rows.add(new LeaderboardEntry(
+            UUID.fromString(rs.getString("uuid")),
+            rs.getString("player_name"),
+            rs.getBigDecimal("amount"),
+            0
+          ));
+        }
       }
     } catch (SQLException e) {
       CobbleUtils.LOGGER.error("Error fetching top balances");
       e.printStackTrace();
     }
 
-    return topAccounts;
+    return rows;
+  }
+
+  /**
+   * The SQLite sort key is a REAL, a cursor bound as text would compare above every number
+   */
+  private void setSortAmount(PreparedStatement stmt, int index, BigDecimal amount) throws SQLException {
+    if (type == DataBaseType.SQLITE) {
+      stmt.setDouble(index, amount.doubleValue());
+    } else {
+      stmt.setBigDecimal(index, amount);
+    }
+  }
+
+  @Override
+  public List<HistoryEntry> getHistory(UUID uuid, String currency, HistoryEntry cursor, int limit) {
+    return readHistory(uuid, currency, cursor, 0, limit);
+  }
+
+  @Override
+  public List<HistoryEntry> getHistoryAt(UUID uuid, String currency, long offset, int limit) {
+    return readHistory(uuid, currency, null, offset, limit);
+  }
+
+  private List<HistoryEntry> readHistory(UUID uuid, String currency, HistoryEntry cursor, long offset, int limit) {
+    List<HistoryEntry> rows = new ArrayList<>(limit);
+    String query = "SELECT id, currency_id, amount, type, timestamp FROM transactions WHERE account_uuid=? AND processed=TRUE"
+      + (currency == null ? "" : " AND currency_id=?")
+      + (cursor == null ? "" : " AND (timestamp < ? OR (timestamp = ? AND id < ?))")
+      + " ORDER BY timestamp DESC, id DESC LIMIT ?"
+      + (offset > 0 ? " OFFSET ?" : "");
+
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      int i = 1;
+      stmt.setString(i++, uuid.toString());
+      if (currency != null) stmt.setString(i++, currency);
+      if (cursor != null) {
+        setTimestamp(stmt, i++, cursor.timestamp());
+        setTimestamp(stmt, i++, cursor.timestamp());
+        stmt.setLong(i++, Long.parseLong(cursor.id()));
+      }
+      stmt.setInt(i++, limit);
+      if (offset > 0) stmt.setLong(i, offset);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          rows.add(new HistoryEntry(
+            String.valueOf(rs.getLong("id")),
+            uuid,
+            rs.getString("currency_id"),
+            rs.getBigDecimal("amount"),
+            TransactionType.valueOf(rs.getString("type")),
+            getTimestamp(rs)
+          ));
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error fetching the history of " + uuid);
+      e.printStackTrace();
+    }
+
+    return rows;
+  }
+
+  /**
+   * SQLite keeps CURRENT_TIMESTAMP as UTC text, the cursor must be bound in that same form to compare in order
+   */
+  private void setTimestamp(PreparedStatement stmt, int index, Instant timestamp) throws SQLException {
+    if (type == DataBaseType.SQLITE) {
+      stmt.setString(index, SQLITE_TIMESTAMP.format(timestamp));
+    } else {
+      stmt.setTimestamp(index, Timestamp.from(timestamp));
+    }
+  }
+
+  private Instant getTimestamp(ResultSet rs) throws SQLException {
+    if (type == DataBaseType.SQLITE) {
+      String timestamp = rs.getString("timestamp");
+      return timestamp == null ? Instant.EPOCH : Instant.from(SQLITE_TIMESTAMP.parse(timestamp));
+    }
+    Timestamp timestamp = rs.getTimestamp("timestamp");
+    return timestamp == null ? Instant.EPOCH : timestamp.toInstant();
+  }
+
+  @Override
+  public long getRank(UUID uuid, String currency) {
+    // The rebuild may briefly hold a player at two ranks, the better one is the one already rewritten
+    String query = "SELECT MIN(ranking) AS ranking FROM balance_ranks WHERE currency_id=? AND account_uuid=?";
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      stmt.setString(1, currency);
+      stmt.setString(2, uuid.toString());
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next()) {
+          long rank = rs.getLong("ranking");
+          if (!rs.wasNull()) return rank;
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error fetching rank for " + uuid);
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  @Override
+  public Map<UUID, Long> getRanks(Collection<UUID> uuids, String currency) {
+    Map<UUID, Long> ranks = new HashMap<>();
+    List<UUID> all = List.copyOf(uuids);
+    try (Connection conn = dataSource.getConnection()) {
+      for (int from = 0; from < all.size(); from += RANK_READ_CHUNK) {
+        List<UUID> chunk = all.subList(from, Math.min(all.size(), from + RANK_READ_CHUNK));
+        String query = "SELECT account_uuid, MIN(ranking) AS ranking FROM balance_ranks WHERE currency_id=? AND account_uuid IN ("
+          + String.join(",", Collections.nCopies(chunk.size(), "?")) + ") GROUP BY account_uuid";
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+          stmt.setString(1, currency);
+          int i = 2;
+          for (UUID uuid : chunk) stmt.setString(i++, uuid.toString());
+          try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) ranks.put(UUID.fromString(rs.getString("account_uuid")), rs.getLong("ranking"));
+          }
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error fetching ranks of " + uuids.size() + " players");
+      e.printStackTrace();
+    }
+    return ranks;
+  }
+
+  @Override
+  public boolean tryLock(String name, String owner, long ttl) {
+    long now = System.currentTimeMillis();
+    String insert = type == DataBaseType.SQLITE
+      ? "INSERT OR IGNORE INTO ultraeconomy_locks (name, owner, expires_at) VALUES (?, '', 0)"
+      : "INSERT IGNORE INTO ultraeconomy_locks (name, owner, expires_at) VALUES (?, '', 0)";
+    try (Connection conn = dataSource.getConnection()) {
+      try (PreparedStatement stmt = conn.prepareStatement(insert)) {
+        stmt.setString(1, name);
+        stmt.executeUpdate();
+      }
+      try (PreparedStatement stmt = conn.prepareStatement(
+        "UPDATE ultraeconomy_locks SET owner=?, expires_at=? WHERE name=? AND (owner=? OR expires_at<?)")) {
+        stmt.setString(1, owner);
+        stmt.setLong(2, now + ttl);
+        stmt.setString(3, name);
+        stmt.setString(4, owner);
+        stmt.setLong(5, now);
+        return stmt.executeUpdate() == 1;
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error acquiring lock " + name);
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchRankedPage(String currency, long fromRank, int limit) {
+    List<LeaderboardEntry> rows = new ArrayList<>(limit);
+    String query = "SELECT r.ranking, r.account_uuid, a.player_name, r.amount FROM balance_ranks r JOIN accounts a ON a.uuid=r.account_uuid WHERE r.currency_id=? AND r.ranking>=? AND r.ranking<? ORDER BY r.ranking";
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      stmt.setString(1, currency);
+      stmt.setLong(2, fromRank);
+      stmt.setLong(3, fromRank + limit);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          rows.add(new LeaderboardEntry(
+            UUID.fromString(rs.getString("account_uuid")),
+            rs.getString("player_name"),
+            rs.getBigDecimal("amount"),
+            rs.getLong("ranking")
+          ));
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error fetching ranked balances");
+      e.printStackTrace();
+    }
+    return rows;
+  }
+
+  @Override
+  protected void writeRanks(String currency, long firstRank, List<LeaderboardEntry> chunk) {
+    String upsert = type == DataBaseType.SQLITE
+      ? "INSERT INTO balance_ranks (currency_id, ranking, account_uuid, amount) VALUES (?, ?, ?, ?) ON CONFLICT(currency_id, ranking) DO UPDATE SET account_uuid=excluded.account_uuid, amount=excluded.amount"
+      : "INSERT INTO balance_ranks (currency_id, ranking, account_uuid, amount) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE account_uuid=VALUES(account_uuid), amount=VALUES(amount)";
+    try (Connection conn = dataSource.getConnection()) {
+      conn.setAutoCommit(false);
+      try (PreparedStatement stmt = conn.prepareStatement(upsert)) {
+        long rank = firstRank;
+        for (LeaderboardEntry entry : chunk) {
+          stmt.setString(1, currency);
+          stmt.setLong(2, rank++);
+          stmt.setString(3, entry.playerUUID().toString());
+          stmt.setBigDecimal(4, entry.amount());
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error writing ranks for " + currency);
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  protected void trimRanks(String currency, long fromRank) {
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement("DELETE FROM balance_ranks WHERE currency_id=? AND ranking>=?")) {
+      stmt.setString(1, currency);
+      stmt.setLong(2, fromRank);
+      stmt.executeUpdate();
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error trimming ranks for " + currency);
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public UUID findUUIDByName(String playerName) {
+    String query = type == DataBaseType.SQLITE
+      ? "SELECT uuid FROM accounts WHERE player_name=? COLLATE NOCASE LIMIT 1"
+      : "SELECT uuid FROM accounts WHERE player_name=? LIMIT 1";
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      stmt.setString(1, playerName);
+      try (ResultSet rs = stmt.executeQuery()) {
+        if (rs.next()) return UUID.fromString(rs.getString("uuid"));
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error finding account by name " + playerName);
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @Override
+  public void forEachPlayerName(BiConsumer<UUID, String> consumer) {
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement("SELECT uuid, player_name FROM accounts")) {
+      stmt.setFetchSize(1_000);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          consumer.accept(UUID.fromString(rs.getString("uuid")), rs.getString("player_name"));
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error reading player names");
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void forEachBalance(String currency, Consumer<LeaderboardEntry> consumer) {
+    String query = "SELECT a.uuid, a.player_name, b.amount FROM balances b JOIN accounts a ON a.uuid=b.account_uuid WHERE b.currency_id=?";
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(query)) {
+      stmt.setFetchSize(1_000);
+      stmt.setString(1, currency);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          consumer.accept(new LeaderboardEntry(
+            UUID.fromString(rs.getString("uuid")),
+            rs.getString("player_name"),
+            rs.getBigDecimal("amount"),
+            0
+          ));
+        }
+      }
+    } catch (SQLException e) {
+      CobbleUtils.LOGGER.error("Error reading balances of " + currency);
+      e.printStackTrace();
+    }
   }
 
   @Override public void flushCache() {
     ACCOUNT_CACHE.invalidateAll();
   }
 
+  @Override
+  protected void saveBatch(List<TransactionLeg> legs, Collection<Account> accounts) {
+    asyncExecutor.submit(() -> {
+      // Every change of the accounts is written, which covers the legs and anything else still unsaved
+      Map<Account, Account.Changes> drained = new IdentityHashMap<>();
+      for (Account account : accounts) drained.put(account, account.drainChanges());
+      try {
+        writeAccounts(drained, legs);
+        saved(drained);
+      } catch (Exception e) {
+        drained.forEach(Account::restoreChanges);
+        CobbleUtils.LOGGER.error("Error saving batch of " + legs.size() + " legs");
+        e.printStackTrace();
+      }
+    });
+  }
+
+  @Override
+  protected boolean claimKey(String key, TransactionLeg first) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(type == DataBaseType.SQLITE
+           ? "INSERT OR IGNORE INTO transactions (account_uuid, currency_id, amount, type, processed, idempotency_key) VALUES (?, ?, ?, ?, TRUE, ?)"
+           : "INSERT IGNORE INTO transactions (account_uuid, currency_id, amount, type, processed, idempotency_key) VALUES (?, ?, ?, ?, TRUE, ?)")) {
+      stmt.setString(1, first.getPlayerUUID().toString());
+      stmt.setString(2, first.getCurrency());
+      stmt.setBigDecimal(3, first.getAmount());
+      stmt.setString(4, first.getType().name());
+      stmt.setString(5, key);
+      // The unique index on the key turns a repeat into an ignored insert
+      return stmt.executeUpdate() > 0;
+    }
+  }
+
+  @Override
+  protected void releaseKey(String key) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
+         PreparedStatement stmt = conn.prepareStatement("DELETE FROM transactions WHERE idempotency_key=?")) {
+      stmt.setString(1, key);
+      stmt.executeUpdate();
+    }
+  }
+
+  @Override
+  protected void recordDeposit(UUID uuid, String currency, BigDecimal amount) {
+    addTransaction(uuid, currency, amount, TransactionType.DEPOSIT, true);
+  }
+
   private void addTransaction(UUID uuid, String currency, BigDecimal amount, TransactionType type, boolean processed) {
     asyncExecutor.submit(() -> {
       String query = "INSERT INTO transactions (account_uuid, currency_id, amount, type, processed) VALUES (?, ?, ?, ?, ?)";
@@ -318,16 +907,36 @@ public class SQLClient extends DatabaseClient {
           BigDecimal amount = rs.getBigDecimal("amount");
           TransactionType type = rs.getString("type") != null ? TransactionType.valueOf(rs.getString("type")) : TransactionType.DEPOSIT;
 
-          switch (type) {
-            case DEPOSIT -> account.addBalance(currency, amount);
-            case WITHDRAW -> account.removeBalance(currency, amount);
-            case SET -> account.setBalance(currency, amount);
+          // Claimed before it is applied, so a row is applied once even if another server polls it too
+          try (PreparedStatement update = conn.prepareStatement("UPDATE transactions SET processed=TRUE WHERE id=? AND processed=FALSE")) {
+            update.setLong(1, id);
+            if (update.executeUpdate() == 0) continue;
           }
-          saveBalanceSafe(uuid, currency, account.getBalance(currency));
 
-          try (PreparedStatement update = conn.prepareStatement("UPDATE transactions SET processed=TRUE WHERE id=?")) {
-            update.setLong(1, id);
-            update.executeUpdate();
+          BigDecimal previous = account.getBalance(currency);
+          Runnable undo = () -> {
+          };
+          switch (type) {
+            case DEPOSIT -> {
+              account.addBalance(currency, amount);
+              undo = () -> account.removeBalance(currency, amount);
+            }
+            case WITHDRAW -> {
+              account.removeBalance(currency, amount);
+              undo = () -> account.addBalance(currency, amount);
+            }
+            case SET -> {
+              account.setBalance(currency, amount);
+              undo = () -> account.setBalance(currency, previous);
+            }
+          }
+          if (!persist(account, currency, undo)) {
+            // Handed back, so the next poll applies it again
+            try (PreparedStatement update = conn.prepareStatement("UPDATE transactions SET processed=FALSE WHERE id=?")) {
+              update.setLong(1, id);
+              update.executeUpdate();
+            }
+            continue;
           }
 
           ACCOUNT_CACHE.put(uuid, account);
@@ -352,21 +961,76 @@ public class SQLClient extends DatabaseClient {
 
       String balanceTable = switch (type) {
         case SQLITE ->
-          "CREATE TABLE IF NOT EXISTS balances (account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, amount TEXT NOT NULL, PRIMARY KEY(account_uuid, currency_id), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
+          "CREATE TABLE IF NOT EXISTS balances (account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, amount TEXT NOT NULL, version INTEGER NOT NULL DEFAULT 0, PRIMARY KEY(account_uuid, currency_id), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
         case MYSQL, MARIADB ->
-          "CREATE TABLE IF NOT EXISTS balances (account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, amount DECIMAL(36,18) NOT NULL, PRIMARY KEY(account_uuid, currency_id), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
+          "CREATE TABLE IF NOT EXISTS balances (account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, amount DECIMAL(36,18) NOT NULL, version BIGINT NOT NULL DEFAULT 0, PRIMARY KEY(account_uuid, currency_id), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
         default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
       };
       stmt.executeUpdate(balanceTable);
+      try {
+        // Tables created before balances were versioned
+        stmt.executeUpdate("ALTER TABLE balances ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+      } catch (SQLException e) {
+        if (!e.getMessage().toLowerCase().contains("duplicate column")) throw e;
+      }
 
       String transactionTable = switch (type) {
         case SQLITE ->
-          "CREATE TABLE IF NOT EXISTS transactions (id INTEGER PRIMARY KEY AUTOINCREMENT, account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, amount TEXT NOT NULL, type TEXT NOT NULL, timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
+          "CREATE TABLE IF NOT EXISTS transactions (id INTEGER PRIMARY KEY AUTOINCREMENT, account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, amount TEXT NOT NULL, type TEXT NOT NULL, timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, idempotency_key TEXT, CONSTRAINT uq_transactions_idempotency UNIQUE (idempotency_key), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
         case MYSQL, MARIADB ->
-          "CREATE TABLE IF NOT EXISTS transactions (id BIGINT AUTO_INCREMENT PRIMARY KEY, account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, amount DECIMAL(36,18) NOT NULL, type VARCHAR(10) NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
+          "CREATE TABLE IF NOT EXISTS transactions (id BIGINT AUTO_INCREMENT PRIMARY KEY, account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, amount DECIMAL(36,18) NOT NULL, type VARCHAR(10) NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, idempotency_key VARCHAR(128), CONSTRAINT uq_transactions_idempotency UNIQUE (idempotency_key), FOREIGN KEY(account_uuid) REFERENCES accounts(uuid) ON DELETE CASCADE)";
         default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
       };
       stmt.executeUpdate(transactionTable);
+      try {
+        // Tables created before calls carried idempotency keys
+        stmt.executeUpdate("ALTER TABLE transactions ADD COLUMN idempotency_key VARCHAR(128)");
+        // Unkeyed rows hold NULL, which a unique index never compares equal
+        createIndex(stmt, type, true, "uq_transactions_idempotency", "transactions(idempotency_key)");
+      } catch (SQLException e) {
+        if (!e.getMessage().toLowerCase().contains("duplicate column")) throw e;
+      }
+
+      String rankTable = switch (type) {
+        case SQLITE ->
+          "CREATE TABLE IF NOT EXISTS balance_ranks (currency_id TEXT NOT NULL, ranking INTEGER NOT NULL, account_uuid TEXT NOT NULL, amount TEXT NOT NULL, PRIMARY KEY(currency_id, ranking))";
+        case MYSQL, MARIADB ->
+          "CREATE TABLE IF NOT EXISTS balance_ranks (currency_id VARCHAR(64) NOT NULL, ranking BIGINT NOT NULL, account_uuid VARCHAR(36) NOT NULL, amount DECIMAL(36,18) NOT NULL, PRIMARY KEY(currency_id, ranking))";
+        default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
+      };
+      stmt.executeUpdate(rankTable);
+      createIndex(stmt, type, false, "idx_balance_ranks_account", "balance_ranks(currency_id, account_uuid)");
+      // MySQL and MariaDB compare with a case-insensitive collation by default, SQLite needs it on the index
+      createIndex(stmt, type, false, "idx_accounts_name", type == DataBaseType.SQLITE
+        ? "accounts(player_name COLLATE NOCASE)"
+        : "accounts(player_name)");
+
+      String lockTable = switch (type) {
+        case SQLITE ->
+          "CREATE TABLE IF NOT EXISTS ultraeconomy_locks (name TEXT PRIMARY KEY, owner TEXT NOT NULL, expires_at INTEGER NOT NULL)";
+        case MYSQL, MARIADB ->
+          "CREATE TABLE IF NOT EXISTS ultraeconomy_locks (name VARCHAR(64) PRIMARY KEY, owner VARCHAR(64) NOT NULL, expires_at BIGINT NOT NULL)";
+        default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
+      };
+      stmt.executeUpdate(lockTable);
+
+      String invalidationTable = switch (type) {
+        case SQLITE ->
+          "CREATE TABLE IF NOT EXISTS cache_invalidations (seq INTEGER PRIMARY KEY AUTOINCREMENT, account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, version INTEGER NOT NULL, node_id TEXT NOT NULL, created_at INTEGER NOT NULL)";
+        case MYSQL, MARIADB ->
+          "CREATE TABLE IF NOT EXISTS cache_invalidations (seq BIGINT AUTO_INCREMENT PRIMARY KEY, account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, version BIGINT NOT NULL, node_id VARCHAR(36) NOT NULL, created_at BIGINT NOT NULL)";
+        default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
+      };
+      stmt.executeUpdate(invalidationTable);
+
+      String journalTable = switch (type) {
+        case SQLITE ->
+          "CREATE TABLE IF NOT EXISTS journal_marks (journal_id TEXT NOT NULL, account_uuid TEXT NOT NULL, currency_id TEXT NOT NULL, sequence INTEGER NOT NULL, version INTEGER NOT NULL, amount TEXT NOT NULL, PRIMARY KEY(journal_id, account_uuid, currency_id))";
+        case MYSQL, MARIADB ->
+          "CREATE TABLE IF NOT EXISTS journal_marks (journal_id VARCHAR(36) NOT NULL, account_uuid VARCHAR(36) NOT NULL, currency_id VARCHAR(64) NOT NULL, sequence BIGINT NOT NULL, version BIGINT NOT NULL, amount DECIMAL(36,18) NOT NULL, PRIMARY KEY(journal_id, account_uuid, currency_id))";
+        default -> throw new IllegalArgumentException("Unsupported database type for table creation: " + type);
+      };
+      stmt.executeUpdate(journalTable);
     }
   }
 
@@ -383,27 +1047,40 @@ public class SQLClient extends DatabaseClient {
   private void createIndexes(DataBaseType type) {
     asyncExecutor.submit(() -> {
       try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
-        stmt.executeUpdate("CREATE INDEX if NOT EXISTS idx_balances_currency_amount ON balances(currency_id, amount DESC)");
-        stmt.executeUpdate("CREATE INDEX if NOT EXISTS idx_transactions_account_processed ON transactions(account_uuid, processed)");
-        stmt.executeUpdate("CREATE INDEX if NOT EXISTS idx_transactions_account_currency ON transactions(account_uuid, currency_id)");
-        stmt.executeUpdate("CREATE INDEX if NOT EXISTS idx_transactions_type_account ON transactions(TYPE, account_uuid)");
-        stmt.executeUpdate("CREATE INDEX if NOT EXISTS idx_transactions_timestamp ON transactions(TIMESTAMP)");
+        createIndex(stmt, type, false, "idx_balances_currency_amount", "balances(currency_id, amount DESC)");
+        if (type == DataBaseType.SQLITE) {
+          createIndex(stmt, type, false, "idx_balances_currency_sort", "balances(currency_id, CAST(amount AS REAL) DESC, account_uuid)");
+        }
+        createIndex(stmt, type, false, "idx_transactions_account_processed", "transactions(account_uuid, processed)");
+        createIndex(stmt, type, false, "idx_transactions_account_currency", "transactions(account_uuid, currency_id)");
+        createIndex(stmt, type, false, "idx_transactions_type_account", "transactions(type, account_uuid)");
+        createIndex(stmt, type, false, "idx_transactions_timestamp", "transactions(timestamp)");
+        createIndex(stmt, type, false, "idx_transactions_history", "transactions(account_uuid, timestamp, id)");
+        createIndex(stmt, type, false, "idx_cache_invalidations_created", "cache_invalidations(created_at)");
       } catch (SQLException e) {
         e.printStackTrace();
       }
     });
   }
 
-  private void saveBalance(UUID uuid, String currency, BigDecimal amount) throws SQLException {
-    try (Connection conn = dataSource.getConnection();
-         PreparedStatement stmt = conn.prepareStatement("INSERT INTO balances (account_uuid, currency_id, amount) VALUES (?, ?, ?) ON CONFLICT(account_uuid,currency_id) DO UPDATE SET amount=excluded.amount")) {
-      stmt.setString(1, uuid.toString());
-      stmt.setString(2, currency);
-      stmt.setBigDecimal(3, amount);
-      stmt.executeUpdate();
+  /**
+   * Creates an index unless it already exists. MySQL has no {@code IF NOT EXISTS} for indexes, so an
+   * existing one is recognised by its duplicate key name error instead.
+   */
+  private static void createIndex(Statement stmt, DataBaseType type, boolean unique, String name, String on) throws SQLException {
+    String kind = unique ? "UNIQUE INDEX " : "INDEX ";
+    if (type == DataBaseType.SQLITE) {
+      stmt.executeUpdate("CREATE " + kind + "IF NOT EXISTS " + name + " ON " + on);
+      return;
+    }
+    try {
+      stmt.executeUpdate("CREATE " + kind + name + " ON " + on);
+    } catch (SQLException e) {
+      if (e.getErrorCode() != ER_DUP_KEYNAME) throw e;
     }
   }
 
+  @Override
   public Account getCachedAccount(UUID uuid) {
     return ACCOUNT_CACHE.getIfPresent(uuid);
   }
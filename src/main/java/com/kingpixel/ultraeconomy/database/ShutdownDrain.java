@@ -0,0 +1,203 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.cobbleutils.util.Utils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.models.Account;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves the cached accounts when the server stops. Only dirty accounts are written, in batches spread over a few
+ * threads, and the whole drain is bounded by the configured timeout. Whatever is still unsaved when the time runs out
+ * is already in the write-ahead {@link Journal} when it is enabled; otherwise it is written to a local snapshot, and
+ * either one is replayed into storage on the next start.
+ */
+public class ShutdownDrain {
+  private static final int BATCH_SIZE = 200;
+  private static final String JOURNAL_PATH = UltraEconomy.PATH + "/journal/";
+
+  /**
+   * Write every dirty cached account, waiting at most the configured timeout
+   */
+  public static void drain() {
+    DatabaseClient client = DatabaseFactory.INSTANCE;
+    if (client == null) return;
+    long start = System.currentTimeMillis();
+    List<Account> dirty = new ArrayList<>();
+    for (Account account : client.getCachedAccounts()) {
+      if (account.isDirty()) dirty.add(account);
+    }
+    if (dirty.isEmpty()) return;
+
+    Drain drain = new Drain(client);
+    int batches = (dirty.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+    int threads = Math.max(1, Math.min(UltraEconomy.config.getShutdownFlushThreads(), batches));
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "UltraEconomy-Drain");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int from = 0; from < dirty.size(); from += BATCH_SIZE) {
+      List<Account> batch = dirty.subList(from, Math.min(dirty.size(), from + BATCH_SIZE));
+      executor.execute(() -> drain.write(batch));
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(UltraEconomy.config.getShutdownFlushTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    drain.close();
+    executor.shutdownNow();
+
+    List<Account> leftover = new ArrayList<>();
+    for (Account account : dirty) {
+      if (account.isDirty()) leftover.add(account);
+    }
+    // Every change is already in the write-ahead journal, whose unconfirmed segments outlive the shutdown
+    if (!leftover.isEmpty() && (Journal.isEnabled() || journal(leftover))) {
+      // They are safe in the journal, so evicting them from the cache must not try to write them again
+      leftover.forEach(Account::drainChanges);
+    }
+    CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Flushed " + drain.written.get() + " of " + dirty.size()
+      + " accounts in " + (System.currentTimeMillis() - start) + "ms"
+      + (leftover.isEmpty() ? "" : ", " + leftover.size() + " left to the local journal"));
+  }
+
+  /**
+   * Write the accounts left in the journal by a previous shutdown into storage, then delete the journal
+   */
+  public static void replay() {
+    DatabaseClient client = DatabaseFactory.INSTANCE;
+    File folder = Utils.getAbsolutePath(JOURNAL_PATH);
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(".json"));
+    if (client == null || files == null || files.length == 0) return;
+    Arrays.sort(files, Comparator.comparing(File::getName));
+    for (File file : files) {
+      try {
+        // Entries hold balances with the stored value they were computed from, so replaying keeps only their changes
+        List<JournaledBalance> balances = new ArrayList<>();
+        Map<UUID, String> names = new HashMap<>();
+        for (JsonElement element : JsonParser.parseString(Files.readString(file.toPath())).getAsJsonArray()) {
+          JsonObject json = element.getAsJsonObject();
+          UUID uuid = UUID.fromString(json.get("playerUUID").getAsString());
+          JsonElement name = json.get("playerName");
+          if (name != null && !name.isJsonNull()) names.put(uuid, name.getAsString());
+          JsonObject bases = json.has("bases") ? json.getAsJsonObject("bases") : new JsonObject();
+          for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("balances").entrySet()) {
+            BigDecimal amount = entry.getValue().getAsBigDecimal();
+            JsonObject base = bases.has(entry.getKey()) ? bases.getAsJsonObject(entry.getKey()) : null;
+            // Without a base the balance only fills in one storage does not have
+            balances.add(new JournaledBalance(uuid, entry.getKey(), amount,
+              base != null ? base.get("version").getAsLong() : -1,
+              base != null ? base.get("amount").getAsBigDecimal() : amount, 0));
+          }
+        }
+        client.restoreBalances(balances, names);
+        Files.delete(file.toPath());
+        CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Replayed " + names.size() + " accounts from journal " + file.getName());
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error replaying journal " + file.getName() + ", it will be retried on the next start");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private static boolean journal(List<Account> accounts) {
+    JsonArray array = new JsonArray();
+    for (Account account : accounts) {
+      JsonObject json = new JsonObject();
+      json.addProperty("playerUUID", account.getPlayerUUID().toString());
+      json.addProperty("playerName", account.getPlayerName());
+      JsonObject balances = new JsonObject();
+      JsonObject bases = new JsonObject();
+      account.getBalances().forEach((currency, amount) -> {
+        balances.addProperty(currency, amount);
+        Account.Stored stored = account.getBase(currency);
+        JsonObject base = new JsonObject();
+        base.addProperty("version", stored.version());
+        base.addProperty("amount", stored.amount());
+        bases.add(currency, base);
+      });
+      json.add("balances", balances);
+      json.add("bases", bases);
+      array.add(json);
+    }
+    File folder = Utils.getAbsolutePath(JOURNAL_PATH);
+    folder.mkdirs();
+    File file = new File(folder, "shutdown-" + System.currentTimeMillis() + ".json");
+    try {
+      // Written on this thread, the JVM is about to exit and would not wait for an async write
+      Files.writeString(file.toPath(), Utils.newWithoutSpacingGson().toJson(array));
+      return true;
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error writing " + accounts.size() + " unsaved accounts to the journal");
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Shared state of one drain. The changes of a batch are tracked while it is being written, so once the timeout
+   * passes the ones still in flight are handed back to their accounts and end up in the journal.
+   */
+  private static final class Drain {
+    private final DatabaseClient client;
+    private final Map<Account, Account.Changes> inFlight = new IdentityHashMap<>();
+    private final AtomicInteger written = new AtomicInteger();
+    private boolean closed;
+
+    private Drain(DatabaseClient client) {
+      this.client = client;
+    }
+
+    private void write(List<Account> batch) {
+      Map<Account, Account.Changes> changes = new IdentityHashMap<>();
+      synchronized (this) {
+        if (closed) return;
+        for (Account account : batch) {
+          Account.Changes drained = account.drainChanges();
+          if (!drained.isEmpty()) changes.put(account, drained);
+        }
+        inFlight.putAll(changes);
+      }
+      boolean saved = false;
+      try {
+        client.writeAccounts(changes);
+        client.saved(changes);
+        saved = true;
+      } catch (Exception e) {
+        CobbleUtils.LOGGER.error("Error saving a batch of " + changes.size() + " accounts on shutdown");
+        e.printStackTrace();
+      }
+      synchronized (this) {
+        for (Map.Entry<Account, Account.Changes> entry : changes.entrySet()) {
+          if (inFlight.remove(entry.getKey()) == null) continue;
+          if (saved) {
+            written.incrementAndGet();
+          } else {
+            entry.getKey().restoreChanges(entry.getValue());
+          }
+        }
+      }
+    }
+
+    private synchronized void close() {
+      closed = true;
+      inFlight.forEach(Account::restoreChanges);
+      inFlight.clear();
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.ultraeconomy.models.Account;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delayed saves of accounts whose currencies use write-behind. An account has at most one save pending, which
+ * writes every change it piled up by then, so many changes inside the interval cost one write.
+ * A change that asks for a shorter interval than the one pending brings the save forward.
+ */
+public class WriteBehind {
+  private static final Map<UUID, Long> DUE = new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "UltraEconomy-WriteBehind");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Save an account once the delay passes, unless a save is already due sooner
+   *
+   * @param account     the changed account
+   * @param delayMillis the longest the change may stay unsaved
+   */
+  public static void schedule(Account account, long delayMillis) {
+    UUID uuid = account.getPlayerUUID();
+    long due = System.currentTimeMillis() + delayMillis;
+    if (DUE.merge(uuid, due, Math::min) != due) return;
+    EXECUTOR.schedule(() -> {
+      // A save brought forward replaced this one, or already ran
+      if (!DUE.remove(uuid, due)) return;
+      DatabaseFactory.INSTANCE.saveOrUpdateAccount(account);
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+}
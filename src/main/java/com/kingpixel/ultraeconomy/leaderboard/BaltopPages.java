@@ -0,0 +1,107 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.kingpixel.cobbleutils.util.AdventureTranslator;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.BalanceSnapshots;
+import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+import net.minecraft.text.Text;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fully rendered baltop pages shared by every player.
+ * A page is rendered once and then refreshed in the background, either after the configured interval or once enough
+ * balances of its currency changed. Players are always served the last rendered snapshot from memory.
+ */
+public class BaltopPages {
+  private static final Map<String, AtomicInteger> CHANGES = new ConcurrentHashMap<>();
+  private static volatile LoadingCache<PageKey, Text> PAGES;
+
+  public static void init() {
+    // Pages of currencies a reload removed must not be refreshed anymore
+    LoadingCache<PageKey, Text> previous = PAGES;
+    if (previous != null) previous.invalidateAll();
+    PAGES = Caffeine.newBuilder()
+      .refreshAfterWrite(Math.max(1, UltraEconomy.config.getBalTopRefresh().toMillis()), TimeUnit.MILLISECONDS)
+      .expireAfterAccess(10, TimeUnit.MINUTES)
+      .maximumSize(1_000)
+      .executor(UltraEconomy.LEADERBOARD_EXECUTOR)
+      .build(BaltopPages::render);
+    CHANGES.clear();
+  }
+
+  /**
+   * Get a rendered page, rendering it on this thread only if nobody asked for it yet
+   *
+   * @param currency the currency
+   * @param page     the page number (starting from 1)
+   *
+   * @return the page
+   */
+  public static Text get(String currency, int page) {
+    return PAGES.get(new PageKey(currency, page));
+  }
+
+  /**
+   * Count a balance change and refresh the currency's pages in the background once enough changes piled up
+   *
+   * @param currency the currency that changed
+   */
+  public static void changed(String currency) {
+    LoadingCache<PageKey, Text> pages = PAGES;
+    if (pages == null) return;
+    int threshold = UltraEconomy.config.getBalTopRefreshChanges();
+    if (threshold <= 0) return;
+    AtomicInteger counter = CHANGES.computeIfAbsent(currency, k -> new AtomicInteger());
+    if (counter.incrementAndGet() < threshold) return;
+    counter.set(0);
+    DatabaseFactory.INSTANCE.clearPageCursors(currency);
+    BalanceSnapshots.refreshRanks(currency);
+    for (PageKey key : pages.asMap().keySet()) {
+      if (key.currency().equals(currency)) pages.refresh(key);
+    }
+  }
+
+  private static Text render(PageKey key) {
+    Currency currency = Currencies.getCurrency(key.currency());
+    if (currency == null) return AdventureTranslator.toNative(UltraEconomy.lang.getMessageCurrencyNotFound());
+    int page = key.page();
+    List<Account> topAccounts = UltraEconomyApi.getTopBalances(currency.getId(), page);
+
+    var lang = UltraEconomy.lang;
+    int limit = UltraEconomy.config.getLimitTopPlayers();
+    StringBuilder sb = new StringBuilder(256);
+    lang.getBalTopHeaderTemplate().render(sb, page == 0 ? 1 : page * limit);
+
+    if (topAccounts.isEmpty()) {
+      lang.getBalTopEmptyTemplate().render(sb.append('\n'));
+    } else {
+      int rank = (page - 1) * limit + 1;
+
+      for (Account account : topAccounts) {
+        lang.getBalTopLineTemplate().render(sb.append('\n'), rank, account.getPlayerName(),
+          currency.format(account.getBalance(currency.getId())));
+        rank++;
+      }
+    }
+
+    int previousPage = Math.max(1, page - 1);
+    int nextPage = page + 1;
+
+    lang.getBalTopFooterTemplate().render(sb.append('\n'), page, currency.getId(), previousPage, nextPage);
+    return AdventureTranslator.toNative(sb.toString());
+  }
+
+  private record PageKey(String currency, int page) {
+  }
+}
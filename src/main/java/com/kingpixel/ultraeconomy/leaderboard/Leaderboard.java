@@ -0,0 +1,195 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Order-statistic treap of the balances of one currency, ordered by amount descending and UUID ascending.
+ * Every node knows the size of its subtree, so updates, rank lookups and locating the start of a page are O(log n).
+ */
+public class Leaderboard {
+  private final Map<UUID, Node> nodes = new HashMap<>();
+  private final SplittableRandom random = new SplittableRandom();
+  private Node root;
+
+  /**
+   * Insert or move a player
+   *
+   * @param uuid   the player's UUID
+   * @param name   the player's name
+   * @param amount the new balance
+   */
+  public synchronized void update(UUID uuid, String name, BigDecimal amount) {
+    Node node = nodes.get(uuid);
+    if (node != null) {
+      if (name != null) node.name = name;
+      if (node.amount.compareTo(amount) == 0) return;
+      detach(node);
+      name = node.name;
+    }
+    insert(new Node(uuid, name, amount, random.nextInt()));
+  }
+
+  /**
+   * Insert a player only if it is not ranked yet. Used while seeding, so values loaded from storage never overwrite
+   * changes that happened after the seed started.
+   */
+  public synchronized void seed(UUID uuid, String name, BigDecimal amount) {
+    if (nodes.containsKey(uuid)) return;
+    insert(new Node(uuid, name, amount, random.nextInt()));
+  }
+
+  public synchronized void remove(UUID uuid) {
+    Node node = nodes.get(uuid);
+    if (node != null) detach(node);
+  }
+
+  public synchronized int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Get the ranked balance of a player
+   *
+   * @param uuid the player's UUID
+   *
+   * @return the balance, or null if the player is not ranked
+   */
+  public synchronized BigDecimal amount(UUID uuid) {
+    Node node = nodes.get(uuid);
+    return node == null ? null : node.amount;
+  }
+
+  /**
+   * Get the rank of a player
+   *
+   * @param uuid the player's UUID
+   *
+   * @return the 1-based rank, or -1 if the player is not ranked
+   */
+  public synchronized long rank(UUID uuid) {
+    Node node = nodes.get(uuid);
+    if (node == null) return -1;
+    return countBefore(node) + 1;
+  }
+
+  /**
+   * Get a page of the leaderboard
+   *
+   * @param page     the page number (starting from 1)
+   * @param pageSize the number of entries per page
+   *
+   * @return the entries of the page, with their ranks
+   */
+  public synchronized List<LeaderboardEntry> page(int page, int pageSize) {
+    int from = Math.max(0, (page - 1) * pageSize);
+    List<LeaderboardEntry> entries = new ArrayList<>(pageSize);
+    if (from >= nodes.size()) return entries;
+    collect(root, from, pageSize, 0, entries);
+    return entries;
+  }
+
+  private void insert(Node node) {
+    int before = countBefore(node);
+    Node[] parts = splitAt(root, before);
+    root = merge(merge(parts[0], node), parts[1]);
+    nodes.put(node.uuid, node);
+  }
+
+  private void detach(Node node) {
+    int before = countBefore(node);
+    Node[] parts = splitAt(root, before);
+    Node[] rest = splitAt(parts[1], 1);
+    root = merge(parts[0], rest[1]);
+    nodes.remove(node.uuid);
+  }
+
+  /**
+   * Number of nodes ordered strictly before the given key
+   */
+  private int countBefore(Node key) {
+    int count = 0;
+    Node current = root;
+    while (current != null) {
+      int cmp = compare(key, current);
+      if (cmp <= 0) {
+        current = current.left;
+      } else {
+        count += size(current.left) + 1;
+        current = current.right;
+      }
+    }
+    return count;
+  }
+
+  private void collect(Node node, int skip, int limit, int offset, List<LeaderboardEntry> out) {
+    if (node == null || out.size() >= limit) return;
+    int leftSize = size(node.left);
+    if (skip < offset + leftSize) collect(node.left, skip, limit, offset, out);
+    if (out.size() >= limit) return;
+    int index = offset + leftSize;
+    if (index >= skip) out.add(new LeaderboardEntry(node.uuid, node.name, node.amount, index + 1L));
+    collect(node.right, skip, limit, index + 1, out);
+  }
+
+  /**
+   * Split a tree so the first part holds the first {@code count} nodes in order
+   */
+  private static Node[] splitAt(Node node, int count) {
+    if (node == null) return new Node[]{null, null};
+    int leftSize = size(node.left);
+    if (count <= leftSize) {
+      Node[] parts = splitAt(node.left, count);
+      node.left = parts[1];
+      node.update();
+      return new Node[]{parts[0], node};
+    }
+    Node[] parts = splitAt(node.right, count - leftSize - 1);
+    node.right = parts[0];
+    node.update();
+    return new Node[]{node, parts[1]};
+  }
+
+  private static Node merge(Node left, Node right) {
+    if (left == null) return right;
+    if (right == null) return left;
+    if (left.priority > right.priority) {
+      left.right = merge(left.right, right);
+      left.update();
+      return left;
+    }
+    right.left = merge(left, right.left);
+    right.update();
+    return right;
+  }
+
+  private static int compare(Node a, Node b) {
+    int cmp = b.amount.compareTo(a.amount);
+    return cmp != 0 ? cmp : a.uuid.compareTo(b.uuid);
+  }
+
+  private static int size(Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static final class Node {
+    private final UUID uuid;
+    private final BigDecimal amount;
+    private final int priority;
+    private String name;
+    private int size = 1;
+    private Node left;
+    private Node right;
+
+    private Node(UUID uuid, String name, BigDecimal amount, int priority) {
+      this.uuid = uuid;
+      this.name = name;
+      this.amount = amount;
+      this.priority = priority;
+    }
+
+    private void update() {
+      size = 1 + Leaderboard.size(left) + Leaderboard.size(right);
+    }
+  }
+}
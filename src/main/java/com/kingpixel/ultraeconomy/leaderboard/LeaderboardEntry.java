@@ -0,0 +1,15 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * One player's position in a currency leaderboard
+ *
+ * @param playerUUID the player's UUID
+ * @param playerName the player's last known name
+ * @param amount     the balance
+ * @param rank       the 1-based rank, or 0 when the entry is not ranked yet
+ */
+public record LeaderboardEntry(UUID playerUUID, String playerName, BigDecimal amount, long rank) {
+}
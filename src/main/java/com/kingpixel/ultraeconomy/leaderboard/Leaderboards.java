@@ -0,0 +1,118 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory leaderboards, one per currency. They are seeded from storage once and then kept up to date by every
+ * balance change, so baltop pages and rank lookups never touch the database.
+ */
+public class Leaderboards {
+  private static final Map<String, Leaderboard> BOARDS = new ConcurrentHashMap<>();
+  private static volatile boolean seeded;
+
+  /**
+   * Rebuild every leaderboard from storage in the background
+   */
+  public static void init() {
+    seeded = false;
+    BOARDS.clear();
+    CompletableFuture.runAsync(() -> {
+        long start = System.currentTimeMillis();
+        for (Currency currency : Currencies.getCurrencies()) {
+          Leaderboard board = board(currency.getId());
+          DatabaseFactory.INSTANCE.forEachBalance(currency.getId(),
+            entry -> board.seed(entry.playerUUID(), entry.playerName(), entry.amount()));
+        }
+        seeded = true;
+        if (UltraEconomy.config.isDebug()) {
+          CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Seeded leaderboards in " + (System.currentTimeMillis() - start) + "ms");
+        }
+      }, UltraEconomy.LEADERBOARD_EXECUTOR)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
+  /**
+   * Check if the leaderboards finished loading from storage and can answer queries
+   *
+   * @return true if seeded
+   */
+  public static boolean isSeeded() {
+    return seeded;
+  }
+
+  /**
+   * Called on every balance change of an account
+   *
+   * @param playerUUID the player's UUID
+   * @param playerName the player's name
+   * @param currency   the currency
+   * @param amount     the new balance
+   */
+  public static void update(UUID playerUUID, String playerName, String currency, BigDecimal amount) {
+    if (amount == null) return;
+    board(currency).update(playerUUID, playerName, amount);
+    BaltopPages.changed(currency);
+  }
+
+  /**
+   * Get a page of the top balances
+   *
+   * @param currency the currency
+   * @param page     the page number (starting from 1)
+   * @param pageSize the page size
+   *
+   * @return the accounts of the page with their rank set
+   */
+  public static List<Account> getTopBalances(String currency, int page, int pageSize) {
+    List<LeaderboardEntry> entries = board(currency).page(page, pageSize);
+    List<Account> accounts = new ArrayList<>(entries.size());
+    for (LeaderboardEntry entry : entries) {
+      Account account = new Account(entry.playerUUID(), entry.playerName(), Map.of(currency, entry.amount()));
+      account.setRank(entry.rank());
+      accounts.add(account);
+    }
+    return accounts;
+  }
+
+  /**
+   * Get the rank of a player
+   *
+   * @param playerUUID the player's UUID
+   * @param currency   the currency
+   *
+   * @return the 1-based rank, or -1 if the player has no stored balance in this currency
+   */
+  public static long getRank(UUID playerUUID, String currency) {
+    return board(currency).rank(playerUUID);
+  }
+
+  /**
+   * Get the last known balance of a player, mirrored from storage without touching it
+   *
+   * @param playerUUID the player's UUID
+   * @param currency   the currency
+   *
+   * @return the balance, or null if the leaderboard is not seeded or the player has no stored balance
+   */
+  public static BigDecimal getBalance(UUID playerUUID, String currency) {
+    if (!seeded) return null;
+    return board(currency).amount(playerUUID);
+  }
+
+  private static Leaderboard board(String currency) {
+    return BOARDS.computeIfAbsent(currency, k -> new Leaderboard());
+  }
+}
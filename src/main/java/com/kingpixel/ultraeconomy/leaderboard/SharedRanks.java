@@ -0,0 +1,65 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.BalanceSnapshots;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.DatabaseClient;
+import com.kingpixel.ultraeconomy.database.DatabaseFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Background job that keeps the materialized rank table up to date when several servers share one database.
+ * Every server runs the schedule, but only the one holding the lock row recomputes, the others just read the table.
+ */
+public class SharedRanks {
+  private static final String LOCK_NAME = "balance_ranks";
+  private static ScheduledExecutorService scheduler;
+
+  public static synchronized void init() {
+    stop();
+    if (!UltraEconomy.config.isSharedRanks()) return;
+    long interval = Math.max(1_000, UltraEconomy.config.getSharedRanksInterval().toMillis());
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "UltraEconomy-Ranks");
+      t.setDaemon(true);
+      return t;
+    });
+    // The lock outlives two runs, so a leader that stops renewing it is replaced within two intervals
+    scheduler.scheduleWithFixedDelay(() -> run(interval * 2), 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public static synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private static void run(long ttl) {
+    try {
+      DatabaseClient client = DatabaseFactory.INSTANCE;
+      if (!client.tryLock(LOCK_NAME, UltraEconomy.NODE_ID, ttl)) return;
+      long start = System.currentTimeMillis();
+      // A long rebuild can outlast the ttl, the lock is renewed before every chunk is written
+      BooleanSupplier renew = () -> client.tryLock(LOCK_NAME, UltraEconomy.NODE_ID, ttl);
+      for (String currency : Currencies.getCurrencyIds()) {
+        if (!client.recomputeRanks(currency, renew)) {
+          CobbleUtils.LOGGER.warn("Lost the shared ranks lock while recomputing " + currency + ", stopping.");
+          return;
+        }
+        BalanceSnapshots.refreshRanks(currency);
+      }
+      if (UltraEconomy.config.isDebug()) {
+        CobbleUtils.LOGGER.info(UltraEconomy.MOD_ID, "Recomputed shared ranks in " + (System.currentTimeMillis() - start) + "ms");
+      }
+    } catch (Exception e) {
+      CobbleUtils.LOGGER.error("Error recomputing shared ranks");
+      e.printStackTrace();
+    }
+  }
+}
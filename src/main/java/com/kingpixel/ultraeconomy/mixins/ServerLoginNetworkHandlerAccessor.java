@@ -0,0 +1,14 @@
+package com.kingpixel.ultraeconomy.mixins;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.server.network.ServerLoginNetworkHandler;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(ServerLoginNetworkHandler.class)
+public interface ServerLoginNetworkHandlerAccessor {
+
+  @Accessor("profile")
+  GameProfile getProfile();
+
+}
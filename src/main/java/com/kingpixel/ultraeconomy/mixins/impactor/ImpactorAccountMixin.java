@@ -1,44 +1,36 @@
 package com.kingpixel.ultraeconomy.mixins.impactor;
 
 import com.kingpixel.ultraeconomy.UltraEconomy;
-import com.kingpixel.ultraeconomy.api.UltraEconomyApi;
+import com.kingpixel.ultraeconomy.bridge.ImpactorBridge;
 import net.impactdev.impactor.api.economy.accounts.Account;
-import net.impactdev.impactor.api.economy.currency.Currency;
 import net.impactdev.impactor.api.economy.transactions.EconomyTransaction;
 import net.impactdev.impactor.api.economy.transactions.EconomyTransferTransaction;
+import net.impactdev.impactor.api.economy.transactions.details.EconomyResultType;
 import net.impactdev.impactor.api.economy.transactions.details.EconomyTransactionType;
 import net.impactdev.impactor.core.economy.accounts.ImpactorAccount;
 import org.spongepowered.asm.mixin.Mixin;
-import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
 
 @Mixin(ImpactorAccount.class)
 public abstract class ImpactorAccountMixin {
 
-  @Unique private final Map<Currency, String> currencyIdCache = new HashMap<>();
-
-  @Unique private String getCurrencyId(Currency currency) {
-    return currencyIdCache.computeIfAbsent(currency, c -> c.key().value().replace("impactor:", ""));
-  }
-
   @Inject(method = "deposit(Ljava/math/BigDecimal;)Lnet/impactdev/impactor/api/economy/transactions" +
     "/EconomyTransaction;", at = @At("HEAD"), cancellable = true, remap = false)
   private void deposit(BigDecimal amount,
                        CallbackInfoReturnable<EconomyTransaction> cir) {
     if (UltraEconomy.migrationDone) {
       ImpactorAccount self = (ImpactorAccount) (Object) this;
-      UltraEconomyApi.deposit(self.owner(), getCurrencyId(self.currency()), amount);
+      EconomyResultType result = ImpactorBridge.deposit(self.owner(), ImpactorBridge.currencyId(self.currency()), amount);
       cir.setReturnValue(EconomyTransaction.compose()
         .account(self)
         .amount(amount)
         .type(EconomyTransactionType.DEPOSIT)
+        .result(result)
         .build());
     }
   }
@@ -49,11 +41,12 @@ public abstract class ImpactorAccountMixin {
                         CallbackInfoReturnable<EconomyTransaction> cir) {
     if (UltraEconomy.migrationDone) {
       ImpactorAccount self = (ImpactorAccount) (Object) this;
-      boolean success = UltraEconomyApi.withdraw(self.owner(), getCurrencyId(self.currency()), amount);
+      EconomyResultType result = ImpactorBridge.withdraw(self.owner(), ImpactorBridge.currencyId(self.currency()), amount);
       cir.setReturnValue(EconomyTransaction.compose()
         .account(self)
         .amount(amount)
         .type(EconomyTransactionType.WITHDRAW)
+        .result(result)
         .build());
     }
   }
@@ -63,11 +56,12 @@ public abstract class ImpactorAccountMixin {
   private void transfer(Account _to, BigDecimal amount, CallbackInfoReturnable<EconomyTransferTransaction> cir) {
     if (UltraEconomy.migrationDone) {
       ImpactorAccount self = (ImpactorAccount) (Object) this;
-      boolean success = UltraEconomyApi.transfer(self.owner(), _to.owner(), getCurrencyId(self.currency()), amount);
+      EconomyResultType result = ImpactorBridge.transfer(self.owner(), _to.owner(), ImpactorBridge.currencyId(self.currency()), amount);
       cir.setReturnValue(EconomyTransferTransaction.compose()
         .from(self)
         .to(_to)
         .amount(amount)
+        .result(result)
         .build());
     }
   }
@@ -76,11 +70,12 @@ public abstract class ImpactorAccountMixin {
   private void set(BigDecimal amount, CallbackInfoReturnable<EconomyTransaction> cir) {
     if (UltraEconomy.migrationDone) {
       ImpactorAccount self = (ImpactorAccount) (Object) this;
-      UltraEconomyApi.setBalance(self.owner(), getCurrencyId(self.currency()), amount);
+      EconomyResultType result = ImpactorBridge.set(self.owner(), ImpactorBridge.currencyId(self.currency()), amount);
       cir.setReturnValue(EconomyTransaction.compose()
         .account(self)
         .amount(amount)
         .type(EconomyTransactionType.SET)
+        .result(result)
         .build());
     }
   }
@@ -88,8 +83,8 @@ public abstract class ImpactorAccountMixin {
   @Inject(method = "save", at = @At("HEAD"), cancellable = true, remap = false)
   private void save(CallbackInfo ci) {
     if (UltraEconomy.migrationDone) {
-      // Do nothing, as UltraEconomyApi methods already save the account
-      UltraEconomyApi.saveAccount(UltraEconomyApi.getAccount(((ImpactorAccount) (Object) this).owner()));
+      // Every UltraEconomy change is already persisted when it happens
+      ci.cancel();
     }
   }
 
@@ -97,8 +92,7 @@ public abstract class ImpactorAccountMixin {
   private void balance(CallbackInfoReturnable<BigDecimal> cir) {
     if (UltraEconomy.migrationDone) {
       ImpactorAccount self = (ImpactorAccount) (Object) this;
-      BigDecimal balance = UltraEconomyApi.getBalance(self.owner(), getCurrencyId(self.currency()));
-      cir.setReturnValue(balance);
+      cir.setReturnValue(ImpactorBridge.balance(self.owner(), ImpactorBridge.currencyId(self.currency())));
     }
   }
 
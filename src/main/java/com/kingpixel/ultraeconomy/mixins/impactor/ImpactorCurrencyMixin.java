@@ -1,6 +1,7 @@
 package com.kingpixel.ultraeconomy.mixins.impactor;
 
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.bridge.ImpactorBridge;
 import com.kingpixel.ultraeconomy.config.Currencies;
 import com.kingpixel.ultraeconomy.models.Currency;
 import net.impactdev.impactor.core.economy.currency.ImpactorCurrency;
@@ -12,9 +13,7 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
 
 /**
  * @author Carlos Varas Alonso - 25/09/2025 2:05
@@ -22,8 +21,6 @@ import java.util.Map;
 @Mixin(ImpactorCurrency.class)
 public abstract class ImpactorCurrencyMixin {
 
-  @Unique private Map<ImpactorCurrency, String> currencyIdCache = new HashMap<>();
-
   @Inject(method = "format", at = @At("RETURN"), cancellable = true, remap = false)
   private void format(BigDecimal amount, boolean condensed, Locale locale, CallbackInfoReturnable<Component> cir) {
     if (UltraEconomy.migrationDone) {
@@ -40,7 +37,7 @@ public abstract class ImpactorCurrencyMixin {
 
   @Unique private String getCurrencyId(ImpactorCurrency currency) {
     if (currency == null) return null;
-    return currencyIdCache.computeIfAbsent(currency, c -> c.key().value().replace("impactor:", ""));
+    return ImpactorBridge.currencyId(currency);
   }
 
   @Inject(method = "symbol", at = @At("RETURN"), cancellable = true, remap = false)
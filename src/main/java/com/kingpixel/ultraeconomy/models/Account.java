@@ -1,76 +1,461 @@
 package com.kingpixel.ultraeconomy.models;
 
 import com.kingpixel.cobbleutils.CobbleUtils;
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.api.BalanceSnapshots;
+import com.kingpixel.ultraeconomy.api.event.EconomyEvents;
 import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.database.Journal;
+import com.kingpixel.ultraeconomy.database.TransactionType;
+import com.kingpixel.ultraeconomy.leaderboard.Leaderboards;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 import net.minecraft.server.network.ServerPlayerEntity;
 
 import java.math.BigDecimal;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Balances are stored as minor units in a primitive array indexed by {@link Currencies#ordinal(String)}.
+ * A slot only falls back to a BigDecimal when its value does not fit a long at the currency's scale.
+ * Currencies the account never touched are not stored at all and read as the currency's default balance. Only with
+ * implicitDefaultBalances disabled, {@link #pinDefaults()} stores that default for accounts storage already holds.
+ * Every change is journaled, takes the journal sequence as the account version and marks its currency dirty, so saves
+ * only write what changed since the last one.
+ */
 @Data
 @ToString
 public class Account {
+  private static final long ABSENT = Long.MIN_VALUE;
+  private static final long[] NO_UNITS = new long[0];
+
   private long rank;
   private UUID playerUUID;
   private String playerName;
-  private final Map<String, BigDecimal> balances;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient long[] units = NO_UNITS;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient BigDecimal[] overflow;
+  @Setter(AccessLevel.NONE)
+  private transient long version;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient BitSet dirty;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient boolean nameDirty;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient Stored[] stored;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient boolean persisted;
+  @ToString.Exclude
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private transient ReentrantLock saveLock;
 
   public Account(ServerPlayerEntity player) {
     this.playerUUID = player.getUuid();
     this.playerName = player.getGameProfile().getName();
-    this.balances = defaultBalances();
+    this.nameDirty = true;
   }
 
   public Account(UUID uuid, Map<String, BigDecimal> balances) {
     ServerPlayerEntity player = CobbleUtils.server.getPlayerManager().getPlayer(uuid);
     if (player != null) this.playerName = player.getGameProfile().getName();
     this.playerUUID = uuid;
-    this.balances = new ConcurrentHashMap<>(balances);
-    fix();
+    balances.forEach(this::put);
   }
 
   public Account(UUID uuid, String playerName, Map<String, BigDecimal> balances) {
     this.playerUUID = uuid;
     this.playerName = playerName;
-    this.balances = new ConcurrentHashMap<>(balances);
-    fix();
+    balances.forEach(this::put);
+  }
+
+  /**
+   * Get the balance of a currency, falling back to its default balance if the account never touched it
+   *
+   * @param currency the currency ID
+   *
+   * @return the balance, or null if the currency is unknown and not stored
+   */
+  public synchronized BigDecimal getBalance(String currency) {
+    int ordinal = Currencies.knownOrdinal(currency);
+    return ordinal < 0 ? null : getOrDefault(ordinal);
   }
 
-  public BigDecimal getBalance(String currency) {
-    return balances.getOrDefault(currency, null);
+  /**
+   * Get a copy of the balances stored in this account. Currencies still at their implicit default are not included.
+   *
+   * @return the stored balances by currency id
+   */
+  public synchronized Map<String, BigDecimal> getBalances() {
+    Map<String, BigDecimal> balances = new HashMap<>();
+    for (int ordinal = 0; ordinal < units.length; ordinal++) {
+      BigDecimal value = get(ordinal);
+      if (value != null) balances.put(Currencies.idOf(ordinal), value);
+    }
+    return balances;
   }
 
-  public boolean addBalance(String currency, BigDecimal amount) {
-    balances.merge(currency, amount, BigDecimal::add);
+  public synchronized boolean addBalance(String currency, BigDecimal amount) {
+    int ordinal = Currencies.ordinal(currency);
+    BigDecimal previous = previous(ordinal);
+    if (!addUnits(ordinal, amount, false)) {
+      BigDecimal current = getOrDefault(ordinal);
+      put(ordinal, current == null ? amount : current.add(amount));
+    }
+    changed(ordinal, TransactionType.DEPOSIT, previous);
     return true;
   }
 
-  public boolean removeBalance(String currency, BigDecimal amount) {
-    balances.merge(currency, amount, BigDecimal::subtract);
+  public synchronized boolean removeBalance(String currency, BigDecimal amount) {
+    int ordinal = Currencies.ordinal(currency);
+    BigDecimal previous = previous(ordinal);
+    if (!addUnits(ordinal, amount, true)) {
+      BigDecimal current = getOrDefault(ordinal);
+      put(ordinal, current == null ? amount.negate() : current.subtract(amount));
+    }
+    changed(ordinal, TransactionType.WITHDRAW, previous);
     return true;
   }
 
-  public BigDecimal setBalance(String currency, BigDecimal amount) {
-    balances.put(currency, amount);
+  public synchronized BigDecimal setBalance(String currency, BigDecimal amount) {
+    int ordinal = Currencies.ordinal(currency);
+    BigDecimal previous = previous(ordinal);
+    put(ordinal, amount);
+    changed(ordinal, TransactionType.SET, previous);
     return amount;
   }
 
+  /**
+   * Store the current default balance of every configured currency the account never touched, so editing a currency's
+   * defaultBalance later does not change this account. With implicitDefaultBalances enabled, the default, nothing is
+   * stored and untouched currencies keep following the configured default. Accounts storage holds no balance of yet
+   * are left alone either way, a player who never used the economy does not cost a row per currency.
+   */
+  public synchronized void pinDefaults() {
+    if (UltraEconomy.config.isImplicitDefaultBalances() || stored == null
+      || Arrays.stream(stored).noneMatch(Objects::nonNull)) return;
+    for (Currency currency : Currencies.getCurrencies()) {
+      int ordinal = Currencies.ordinal(currency.getId());
+      if (get(ordinal) != null) continue;
+      put(ordinal, defaultOf(ordinal));
+      // The balance reads the same as before, so it is only journaled and saved, not published as a change
+      Stored base = baseOf(ordinal);
+      version = Journal.append(playerUUID, playerName, currency.getId(), get(ordinal), base.version(), base.amount());
+      markDirty(ordinal);
+    }
+  }
+
+  public synchronized void setPlayerName(String playerName) {
+    if (Objects.equals(this.playerName, playerName)) return;
+    this.playerName = playerName;
+    nameDirty = true;
+    version = Journal.nextSequence();
+  }
+
+  /**
+   * Check if the account has changes that were not saved yet
+   *
+   * @return true if a save would write something
+   */
+  public synchronized boolean isDirty() {
+    return nameDirty || (dirty != null && !dirty.isEmpty());
+  }
+
+  /**
+   * Take the unsaved changes and mark the account clean. If writing them fails, hand them back with
+   * {@link #restoreChanges(Changes)} so the next save retries them.
+   *
+   * @return the changed name and balances
+   */
+  public synchronized Changes drainChanges() {
+    Map<String, BigDecimal> balances = new HashMap<>();
+    if (dirty != null) {
+      for (int ordinal = dirty.nextSetBit(0); ordinal >= 0; ordinal = dirty.nextSetBit(ordinal + 1)) {
+        BigDecimal value = get(ordinal);
+        if (value != null) balances.put(Currencies.idOf(ordinal), value);
+      }
+      dirty.clear();
+    }
+    String name = nameDirty ? playerName : null;
+    nameDirty = false;
+    return new Changes(version, name, balances);
+  }
+
+  /**
+   * Mark changes dirty again after they failed to save
+   *
+   * @param changes the changes returned by {@link #drainChanges()}
+   */
+  public synchronized void restoreChanges(Changes changes) {
+    if (changes.playerName() != null) nameDirty = true;
+    for (String currency : changes.balances().keySet()) markDirty(Currencies.ordinal(currency));
+  }
+
+  /**
+   * The balance of a currency as storage had it the last time this node read or wrote it
+   *
+   * @param currency the currency ID
+   *
+   * @return the stored version and amount, or null if storage had no balance for it
+   */
+  public synchronized Stored getStored(String currency) {
+    int ordinal = Currencies.knownOrdinal(currency);
+    return stored != null && ordinal >= 0 && ordinal < stored.length ? stored[ordinal] : null;
+  }
+
+  /**
+   * The stored value the current balance of a currency was computed from
+   *
+   * @param currency the currency ID
+   *
+   * @return the stored version and amount, or version -1 and the default balance if storage had none
+   */
+  public synchronized Stored getBase(String currency) {
+    int ordinal = Currencies.knownOrdinal(currency);
+    return ordinal < 0 ? new Stored(-1, BigDecimal.ZERO, 0) : baseOf(ordinal);
+  }
+
+  private Stored baseOf(int ordinal) {
+    Stored base = stored != null && ordinal < stored.length ? stored[ordinal] : null;
+    return base != null ? base : new Stored(-1, defaultOf(ordinal), 0);
+  }
+
+  /**
+   * Remember the version and amount storage holds for a balance after reading or writing it
+   *
+   * @param currency       the currency ID
+   * @param version        the stored version
+   * @param amount         the stored amount
+   * @param accountVersion the account version the amount comes from, 0 if it was read from storage
+   */
+  public synchronized void markStored(String currency, long version, BigDecimal amount, long accountVersion) {
+    setStored(Currencies.ordinal(currency), new Stored(version, amount, accountVersion));
+  }
+
+  /**
+   * Check if storage is known to hold this account, set once it was read from or written to storage
+   */
+  public synchronized boolean isPersisted() {
+    return persisted;
+  }
+
+  public synchronized void markPersisted() {
+    persisted = true;
+  }
+
+  /**
+   * Move the local changes of a balance on top of a newer stored value written by another node. The changes this node
+   * made since it last read or wrote the balance are kept as a delta, so no side loses money.
+   *
+   * @param currency the currency ID
+   * @param current  the value storage holds now, or null if it has none
+   */
+  public synchronized void rebase(String currency, Stored current) {
+    int ordinal = Currencies.ordinal(currency);
+    BigDecimal local = getOrDefault(ordinal);
+    if (local == null) return;
+    BigDecimal initial = defaultOf(ordinal);
+    Stored base = stored != null && ordinal < stored.length ? stored[ordinal] : null;
+    BigDecimal delta = local.subtract(base != null ? base.amount() : initial);
+    BigDecimal previous = previous(ordinal);
+    setStored(ordinal, current == null ? null
+      : new Stored(current.version(), current.amount(), base != null ? base.accountVersion() : 0));
+    put(ordinal, (current != null ? current.amount() : initial).add(delta));
+    if (delta.signum() == 0) {
+      // Nothing local to keep, the account just caught up with storage
+      published(ordinal, TransactionType.SET, previous);
+    } else {
+      changed(ordinal, TransactionType.SET, previous);
+    }
+  }
+
+  /**
+   * Lock held while the account is written, so the writes of one account never overlap
+   */
+  public synchronized ReentrantLock getSaveLock() {
+    if (saveLock == null) saveLock = new ReentrantLock();
+    return saveLock;
+  }
+
   public boolean hasEnoughBalance(String currency, BigDecimal amount) {
     return getBalance(currency).compareTo(amount) >= 0;
   }
 
-  public void fix() {
-    Currencies.CURRENCIES.forEach((k, v) ->
-      balances.putIfAbsent(k, v.getDefaultBalance()));
+  /**
+   * Propagate a balance change to the structures that mirror balances outside the account
+   */
+  private void changed(int ordinal, TransactionType type, BigDecimal previous) {
+    String currency = Currencies.idOf(ordinal);
+    BigDecimal value = get(ordinal);
+    Stored base = baseOf(ordinal);
+    version = Journal.append(playerUUID, playerName, currency, value, base.version(), base.amount());
+    markDirty(ordinal);
+    publish(currency, value, type, previous);
+  }
+
+  /**
+   * Propagate a balance that changed in storage, which needs neither journaling nor saving
+   */
+  private void published(int ordinal, TransactionType type, BigDecimal previous) {
+    publish(Currencies.idOf(ordinal), get(ordinal), type, previous);
+  }
+
+  private void publish(String currency, BigDecimal value, TransactionType type, BigDecimal previous) {
+    Leaderboards.update(playerUUID, playerName, currency, value);
+    BalanceSnapshots.changed(playerUUID, currency, value);
+    if (EconomyEvents.hasListeners()) EconomyEvents.publish(playerUUID, currency, type, previous, value, null);
+  }
+
+  /**
+   * The balance before a change, only read when someone listens for events
+   */
+  private BigDecimal previous(int ordinal) {
+    return EconomyEvents.hasListeners() ? getOrDefault(ordinal) : null;
+  }
+
+  private void setStored(int ordinal, Stored value) {
+    if (stored == null) stored = new Stored[Math.max(ordinal + 1, Currencies.ordinalCount())];
+    if (ordinal >= stored.length) stored = Arrays.copyOf(stored, Math.max(ordinal + 1, Currencies.ordinalCount()));
+    stored[ordinal] = value;
+    if (value != null) persisted = true;
+  }
+
+  private static BigDecimal defaultOf(int ordinal) {
+    Currency currency = Currencies.byOrdinal(ordinal);
+    return currency != null && currency.getDefaultBalance() != null ? currency.getDefaultBalance() : BigDecimal.ZERO;
+  }
+
+  private void markDirty(int ordinal) {
+    if (dirty == null) dirty = new BitSet();
+    dirty.set(ordinal);
+  }
+
+  private void put(String currency, BigDecimal amount) {
+    put(Currencies.ordinal(currency), amount);
+  }
+
+  private BigDecimal getOrDefault(int ordinal) {
+    BigDecimal value = get(ordinal);
+    if (value != null) return value;
+    Currency currency = Currencies.byOrdinal(ordinal);
+    return currency != null ? currency.getDefaultBalance() : null;
+  }
+
+  private BigDecimal get(int ordinal) {
+    if (ordinal >= units.length) return null;
+    if (overflow != null && overflow[ordinal] != null) return overflow[ordinal];
+    long value = units[ordinal];
+    if (value == ABSENT) return null;
+    return BigDecimal.valueOf(value, Currencies.minorScale(ordinal));
+  }
+
+  private void put(int ordinal, BigDecimal amount) {
+    ensureCapacity(ordinal);
+    long value = toUnits(amount, Currencies.minorScale(ordinal));
+    if (value != ABSENT) {
+      units[ordinal] = value;
+      if (overflow != null) overflow[ordinal] = null;
+      return;
+    }
+    if (overflow == null) overflow = new BigDecimal[units.length];
+    units[ordinal] = ABSENT;
+    overflow[ordinal] = amount;
+  }
+
+  /**
+   * Add an amount in place when both the stored value and the amount fit in minor units
+   *
+   * @return false if the slot has to go through BigDecimal instead
+   */
+  private boolean addUnits(int ordinal, BigDecimal amount, boolean subtract) {
+    if (ordinal >= units.length) return false;
+    if (overflow != null && overflow[ordinal] != null) return false;
+    long current = units[ordinal];
+    if (current == ABSENT) return false;
+    long delta = toUnits(amount, Currencies.minorScale(ordinal));
+    if (delta == ABSENT) return false;
+    try {
+      long result = subtract ? Math.subtractExact(current, delta) : Math.addExact(current, delta);
+      if (result == ABSENT) return false;
+      units[ordinal] = result;
+      return true;
+    } catch (ArithmeticException e) {
+      return false;
+    }
+  }
+
+  private void ensureCapacity(int ordinal) {
+    if (ordinal < units.length) return;
+    int size = Math.max(ordinal + 1, Currencies.ordinalCount());
+    int old = units.length;
+    units = Arrays.copyOf(units, size);
+    Arrays.fill(units, old, size, ABSENT);
+    if (overflow != null) overflow = Arrays.copyOf(overflow, size);
+  }
+
+  /**
+   * Convert an amount to minor units of the given scale
+   *
+   * @return the minor units, or {@link #ABSENT} if the amount does not fit exactly
+   */
+  private static long toUnits(BigDecimal amount, int scale) {
+    if (amount == null || scale < 0) return ABSENT;
+    BigDecimal scaled;
+    if (amount.scale() == scale) {
+      scaled = amount;
+    } else if (amount.scale() < scale) {
+      scaled = amount.setScale(scale);
+    } else {
+      try {
+        scaled = amount.setScale(scale, RoundingMode.UNNECESSARY);
+      } catch (ArithmeticException e) {
+        return ABSENT;
+      }
+    }
+    BigInteger unscaled = scaled.unscaledValue();
+    if (unscaled.bitLength() > 63) return ABSENT;
+    return unscaled.longValue();
+  }
+
+  /**
+   * Unsaved changes of an account
+   *
+   * @param version    the account version they bring storage up to
+   * @param playerName the new name, or null if it did not change
+   * @param balances   the changed balances by currency id
+   */
+  public record Changes(long version, String playerName, Map<String, BigDecimal> balances) {
+    public boolean isEmpty() {
+      return playerName == null && balances.isEmpty();
+    }
   }
 
-  private Map<String, BigDecimal> defaultBalances() {
-    Map<String, BigDecimal> defaults = new ConcurrentHashMap<>();
-    Currencies.CURRENCIES.forEach((k, v) -> defaults.put(k, v.getDefaultBalance()));
-    return defaults;
+  /**
+   * A balance as storage holds it
+   *
+   * @param version        the stored version, bumped by every write of any node
+   * @param amount         the stored amount
+   * @param accountVersion the account version this node wrote it from, 0 if it was read from storage
+   */
+  public record Stored(long version, BigDecimal amount, long accountVersion) {
   }
 }
@@ -2,15 +2,20 @@ package com.kingpixel.ultraeconomy.models;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kingpixel.cobbleutils.Model.DurationValue;
 import com.kingpixel.cobbleutils.util.AdventureTranslator;
 import com.kingpixel.ultraeconomy.UltraEconomy;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import net.minecraft.text.Text;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.NumberFormat;
-import java.util.Locale;
+import java.text.DecimalFormatSymbols;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,21 +35,38 @@ public class Currency {
   private String singular;
   private String plural;
   private String[] SUFFIXES;
+  private PersistencePolicy persistence;
+  private DurationValue writeBehindInterval;
 
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
   transient
-  private Cache<BigDecimal, String> formatCache;
+  private Cache<FormatKey, String> formatCache;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
   transient
-  private Cache<BigDecimal, Text> formatTextCache;
+  private Cache<FormatKey, Text> formatTextCache;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  transient
+  private Segment[] segments;
+
+  /**
+   * Decimal and minus characters per locale, shared by every currency
+   */
+  private static final Map<Locale, LocaleSymbols> LOCALE_SYMBOLS = new ConcurrentHashMap<>();
 
   public Currency() {
     this.format = "<symbol>&6<short_amount> <name>";
     this.singular = "Dollar";
     this.plural = "Dollars";
     this.SUFFIXES = new String[]{"", "K", "M", "B", "T"};
+    this.persistence = PersistencePolicy.WRITE_BEHIND;
+    this.writeBehindInterval = DurationValue.parse("10s");
   }
 
   public Currency(boolean primary, byte decimals, String symbol) {
-    super();
+    this();
     this.primary = primary;
     this.transferable = true;
     this.decimals = decimals;
@@ -61,98 +83,141 @@ public class Currency {
       .expireAfterAccess(1, TimeUnit.MINUTES)
       .maximumSize(1_000)
       .build();
+    segments = compile(format, symbol);
   }
 
   public String format(BigDecimal value) {
-    return formatCache.get(value, v -> replace(v, Locale.US));
+    return format(value, Locale.US);
   }
 
   public String format(BigDecimal value, Locale locale) {
-    return formatCache.get(value, v -> replace(v, locale));
+    return formatCache.get(new FormatKey(value, locale), k -> render(k.value(), k.locale()));
   }
 
-
-  private String replace(BigDecimal value, Locale locale) {
-    String amountStr = value.setScale(decimals, RoundingMode.DOWN)
-      .stripTrailingZeros()
-      .toPlainString();
-
-    String nameStr = value.compareTo(BigDecimal.ONE) == 0 ? singular : plural;
-
-    StringBuilder sb = new StringBuilder(
-      format.length() + symbol.length() + amountStr.length() + nameStr.length()
-    );
-
-    for (int i = 0; i < format.length(); i++) {
+  /**
+   * Split the format template into literal and placeholder segments once, so rendering is a single pass.
+   * The symbol never changes and is folded into the surrounding literal text.
+   */
+  private static Segment[] compile(String format, String symbol) {
+    List<Segment> segments = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < format.length()) {
       char c = format.charAt(i);
-
       if (c == '<') {
         if (format.startsWith("<symbol>", i)) {
-          sb.append(this.symbol);
-          i += "<symbol>".length() - 1;
+          literal.append(symbol);
+          i += "<symbol>".length();
           continue;
         }
+        SegmentType type = null;
+        int length = 0;
         if (format.startsWith("<amount>", i)) {
-          sb.append(amountStr);
-          i += "<amount>".length() - 1;
-          continue;
+          type = SegmentType.AMOUNT;
+          length = "<amount>".length();
+        } else if (format.startsWith("<short_amount>", i)) {
+          type = SegmentType.SHORT_AMOUNT;
+          length = "<short_amount>".length();
+        } else if (format.startsWith("<name>", i)) {
+          type = SegmentType.NAME;
+          length = "<name>".length();
         }
-        if (format.startsWith("<short_amount>", i)) {
-          sb.append(formatAmount(value));
-          i += "<short_amount>".length() - 1;
+        if (type != null) {
+          if (!literal.isEmpty()) {
+            segments.add(new Segment(SegmentType.LITERAL, literal.toString()));
+            literal.setLength(0);
+          }
+          segments.add(new Segment(type, null));
+          i += length;
           continue;
         }
-        if (format.startsWith("<name>", i)) {
-          sb.append(nameStr);
-          i += "<name>".length() - 1;
-          continue;
-        }
-
       }
-      sb.append(c);
+      literal.append(c);
+      i++;
     }
+    if (!literal.isEmpty()) segments.add(new Segment(SegmentType.LITERAL, literal.toString()));
+    return segments.toArray(new Segment[0]);
+  }
 
+  private String render(BigDecimal value, Locale locale) {
+    StringBuilder sb = new StringBuilder(format.length() + 16);
+    for (Segment segment : segments) {
+      switch (segment.type()) {
+        case LITERAL -> sb.append(segment.literal());
+        case AMOUNT -> appendPlain(sb, value.setScale(decimals, RoundingMode.DOWN), null);
+        case SHORT_AMOUNT -> appendShortAmount(sb, value, locale);
+        case NAME -> sb.append(value.compareTo(BigDecimal.ONE) == 0 ? singular : plural);
+      }
+    }
     return sb.toString();
   }
 
   /**
-   * Format amount with suffixes (K, M, B, T, etc.)
-   *
-   * @param value the amount to format
+   * Append the amount with suffixes (K, M, B, T, etc.) using a specific locale.
+   * The suffix is picked from the number of integer digits and the value is shifted by powers of 1000 with
+   * {@link BigDecimal#movePointLeft(int)}, so no division is needed.
    *
-   * @return the formatted amount with suffix
+   * @param sb     the builder to append to
+   * @param value  the amount to format
+   * @param locale the locale to use for formatting
    */
-  private String formatAmount(BigDecimal value) {
-    return formatAmount(value, Locale.US);
+  private void appendShortAmount(StringBuilder sb, BigDecimal value, Locale locale) {
+    int suffixIndex = 0;
+    if (value.signum() > 0) {
+      int integerDigits = value.precision() - value.scale();
+      suffixIndex = Math.min(Math.max(integerDigits - 1, 0) / 3, SUFFIXES.length - 1);
+    }
+    if (suffixIndex > 0) {
+      value = value.movePointLeft(suffixIndex * 3).setScale(2, RoundingMode.DOWN);
+    }
+    int maxFractionDigits = Math.max(decimals, UltraEconomy.config.getAdjustmentShortName());
+    if (value.scale() > maxFractionDigits) {
+      value = value.setScale(maxFractionDigits, RoundingMode.HALF_EVEN);
+    }
+    appendPlain(sb, value, LOCALE_SYMBOLS.computeIfAbsent(locale, LocaleSymbols::of));
+    sb.append(SUFFIXES[suffixIndex]);
   }
 
   /**
-   * Format amount with suffixes (K, M, B, T, etc.) using a specific locale
+   * Append a plain representation of the value without trailing fraction zeros
    *
-   * @param value  the amount to format
-   * @param locale the locale to use for formatting
-   *
-   * @return the formatted amount with suffix
+   * @param symbols the locale symbols to use, or null to keep '.' and '-'
    */
-  private String formatAmount(BigDecimal value, Locale locale) {
-    BigDecimal thousand = BigDecimal.valueOf(1000);
-    int suffixIndex = 0;
-
-    // Reducir el número hasta que sea menor que 1000 o lleguemos al último sufijo
-    while (value.compareTo(thousand) >= 0 && suffixIndex < SUFFIXES.length - 1) {
-      value = value.divide(thousand, 2, RoundingMode.DOWN); // división con redondeo inmediato
-      suffixIndex++;
+  private static void appendPlain(StringBuilder sb, BigDecimal value, LocaleSymbols symbols) {
+    String plain = value.toPlainString();
+    int end = plain.length();
+    if (plain.indexOf('.') >= 0) {
+      while (plain.charAt(end - 1) == '0') end--;
+      if (plain.charAt(end - 1) == '.') end--;
+    }
+    if (symbols == null) {
+      sb.append(plain, 0, end);
+      return;
+    }
+    for (int i = 0; i < end; i++) {
+      char c = plain.charAt(i);
+      if (c == '.') sb.append(symbols.decimal());
+      else if (c == '-') sb.append(symbols.minus());
+      else sb.append((char) (symbols.zero() + (c - '0')));
     }
+  }
 
-    // Usar NumberFormat para formatear decimales de forma segura y con separador de miles
-    NumberFormat nf = NumberFormat.getNumberInstance(locale);
-    nf.setMaximumFractionDigits(Math.max(decimals, UltraEconomy.config.getAdjustmentShortName()));
-    nf.setMinimumFractionDigits(0);
-    nf.setGroupingUsed(false); // sin separadores de miles, ya que es un valor reducido
+  private enum SegmentType {
+    LITERAL, AMOUNT, SHORT_AMOUNT, NAME
+  }
 
-    return nf.format(value) + SUFFIXES[suffixIndex];
+  private record Segment(SegmentType type, String literal) {
   }
 
+  private record FormatKey(BigDecimal value, Locale locale) {
+  }
+
+  private record LocaleSymbols(char decimal, char minus, char zero) {
+    private static LocaleSymbols of(Locale locale) {
+      DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+      return new LocaleSymbols(symbols.getDecimalSeparator(), symbols.getMinusSign(), symbols.getZeroDigit());
+    }
+  }
 
   /**
    * Format the value and return it as a Text component
@@ -162,7 +227,7 @@ public class Currency {
    * @return the formatted value as Text
    */
   public Text formatText(BigDecimal value) {
-    return formatTextCache.get(value, v -> AdventureTranslator.toNative(format(v)));
+    return formatText(value, Locale.US);
   }
 
   /**
@@ -174,6 +239,6 @@ public class Currency {
    * @return the formatted value as Text
    */
   public Text formatText(BigDecimal value, Locale locale) {
-    return formatTextCache.get(value, v -> AdventureTranslator.toNative(format(v, locale)));
+    return formatTextCache.get(new FormatKey(value, locale), k -> AdventureTranslator.toNative(format(k.value(), k.locale())));
   }
 }
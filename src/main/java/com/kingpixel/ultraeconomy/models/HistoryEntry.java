@@ -0,0 +1,21 @@
+package com.kingpixel.ultraeconomy.models;
+
+import com.kingpixel.ultraeconomy.database.TransactionType;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * One stored transaction of an account. The last entry of a page is the cursor the next page starts after.
+ *
+ * @param id         the storage ID of the transaction
+ * @param playerUUID the account UUID
+ * @param currency   the currency
+ * @param amount     the amount moved, or the new balance for {@link TransactionType#SET}
+ * @param type       the kind of transaction
+ * @param timestamp  when the transaction was stored
+ */
+public record HistoryEntry(String id, UUID playerUUID, String currency, BigDecimal amount, TransactionType type,
+                           Instant timestamp) {
+}
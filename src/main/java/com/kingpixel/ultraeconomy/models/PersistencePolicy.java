@@ -0,0 +1,21 @@
+package com.kingpixel.ultraeconomy.models;
+
+/**
+ * How eagerly the balance changes of a currency are written to storage
+ */
+public enum PersistencePolicy {
+  /**
+   * Every change is written to storage before the operation returns
+   */
+  SYNC_COMMIT,
+  /**
+   * Changes stay in memory and are written together once the currency's write-behind interval passes
+   */
+  WRITE_BEHIND,
+  /**
+   * Changes only live in memory and the local journal, and reach storage when the account is evicted or the server
+   * stops. Falls back to write-behind when the journal is disabled. The journal is synced every
+   * journalCommitInterval, a crash loses the changes made since the last sync.
+   */
+  JOURNAL
+}
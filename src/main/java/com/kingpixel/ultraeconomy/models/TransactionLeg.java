@@ -0,0 +1,37 @@
+package com.kingpixel.ultraeconomy.models;
+
+import com.kingpixel.ultraeconomy.database.TransactionType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A single movement of a batch: one deposit or withdraw on one account and currency.
+ */
+@Data
+@AllArgsConstructor
+public class TransactionLeg {
+  private UUID playerUUID;
+  private String currency;
+  private BigDecimal amount;
+  private TransactionType type;
+
+  public static TransactionLeg deposit(UUID playerUUID, String currency, BigDecimal amount) {
+    return new TransactionLeg(playerUUID, currency, amount, TransactionType.DEPOSIT);
+  }
+
+  public static TransactionLeg withdraw(UUID playerUUID, String currency, BigDecimal amount) {
+    return new TransactionLeg(playerUUID, currency, amount, TransactionType.WITHDRAW);
+  }
+
+  /**
+   * Signed amount this leg applies to the balance
+   *
+   * @return the amount, negated for withdraws
+   */
+  public BigDecimal delta() {
+    return type == TransactionType.WITHDRAW ? amount.negate() : amount;
+  }
+}
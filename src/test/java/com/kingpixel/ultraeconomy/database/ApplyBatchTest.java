@@ -0,0 +1,202 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.ultraeconomy.UltraEconomy;
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApplyBatchTest {
+  private static final String COINS = "coins";
+  private static final UUID A = new UUID(1, 1);
+  private static final UUID B = new UUID(1, 2);
+
+  @BeforeAll
+  static void currencies() {
+    Currency coins = new Currency(true, (byte) 2, "$");
+    coins.setId(COINS);
+    Currencies.load(List.of(coins));
+  }
+
+  private static BigDecimal amount(String value) {
+    return new BigDecimal(value);
+  }
+
+  private static String key() {
+    return "test-" + UUID.randomUUID();
+  }
+
+  private static void assertBalance(String expected, Account account) {
+    assertEquals(0, amount(expected).compareTo(account.getBalance(COINS)),
+      "expected " + expected + " but was " + account.getBalance(COINS));
+  }
+
+  @Test
+  void appliesEveryLeg() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+    Account b = client.cache(B, Map.of(COINS, amount("0")));
+    List<TransactionLeg> legs = List.of(
+      TransactionLeg.withdraw(A, COINS, amount("30")),
+      TransactionLeg.deposit(B, COINS, amount("30"))
+    );
+
+    assertTrue(client.applyBatch(legs));
+    assertBalance("70", a);
+    assertBalance("30", b);
+    assertEquals(List.of(legs), client.savedBatches);
+  }
+
+  @Test
+  void rejectsWholeBatchWhenOneLegOverdraws() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+    Account b = client.cache(B, Map.of(COINS, amount("10")));
+
+    assertFalse(client.applyBatch(List.of(
+      TransactionLeg.deposit(A, COINS, amount("50")),
+      TransactionLeg.withdraw(B, COINS, amount("20"))
+    )));
+    assertBalance("100", a);
+    assertBalance("10", b);
+    assertTrue(client.savedBatches.isEmpty());
+  }
+
+  @Test
+  void checksLegsInOrder() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("0")));
+
+    assertFalse(client.applyBatch(List.of(
+      TransactionLeg.withdraw(A, COINS, amount("10")),
+      TransactionLeg.deposit(A, COINS, amount("10"))
+    )));
+    assertTrue(client.applyBatch(List.of(
+      TransactionLeg.deposit(A, COINS, amount("10")),
+      TransactionLeg.withdraw(A, COINS, amount("10"))
+    )));
+    assertBalance("0", a);
+  }
+
+  @Test
+  void rejectsInvalidLegs() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+
+    assertFalse(client.applyBatch(List.of(TransactionLeg.deposit(A, "unknown", amount("1")))));
+    assertFalse(client.applyBatch(List.of(TransactionLeg.deposit(A, COINS, amount("-1")))));
+    assertFalse(client.applyBatch(List.of(new TransactionLeg(A, COINS, amount("1"), TransactionType.SET))));
+    assertFalse(client.applyBatch(List.of(
+      TransactionLeg.deposit(A, COINS, amount("1")),
+      TransactionLeg.deposit(B, COINS, amount("1"))
+    )));
+    assertBalance("100", a);
+    assertTrue(client.savedBatches.isEmpty());
+  }
+
+  @Test
+  void keyedCallAppliesOnce() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+    Account b = client.cache(B, Map.of(COINS, amount("0")));
+    List<TransactionLeg> legs = List.of(
+      TransactionLeg.withdraw(A, COINS, amount("30")),
+      TransactionLeg.deposit(B, COINS, amount("30"))
+    );
+    String key = key();
+
+    assertTrue(client.applyBatch(legs, key));
+    assertTrue(client.applyBatch(legs, key));
+    assertBalance("70", a);
+    assertBalance("30", b);
+    assertTrue(client.keys.contains(key));
+    // The first leg is stored together with the key
+    assertEquals(List.of(legs.subList(1, 2)), client.savedBatches);
+  }
+
+  @Test
+  void keyStoredByAnotherServerIsRepeat() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+    String key = key();
+    client.keys.add(key);
+
+    assertTrue(client.applyBatch(List.of(TransactionLeg.withdraw(A, COINS, amount("30"))), key));
+    assertBalance("100", a);
+    assertTrue(client.savedBatches.isEmpty());
+  }
+
+  @Test
+  void rejectedCallNeverClaimsKey() {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("10")));
+    String key = key();
+    List<TransactionLeg> legs = List.of(TransactionLeg.withdraw(A, COINS, amount("30")));
+
+    assertFalse(client.applyBatch(legs, key));
+    assertFalse(client.keys.contains(key));
+
+    a.addBalance(COINS, amount("20"));
+    assertTrue(client.applyBatch(legs, key));
+    assertBalance("0", a);
+  }
+
+  @Test
+  void keyIsReleasedWhenBalanceMovesAfterClaim() {
+    MemoryClient client = new MemoryClient() {
+      @Override
+      protected synchronized boolean claimKey(String key, TransactionLeg first) {
+        // Another caller spends the balance between the check and the locks
+        getCachedAccount(A).removeBalance(COINS, amount("5"));
+        return super.claimKey(key, first);
+      }
+    };
+    Account a = client.cache(A, Map.of(COINS, amount("30")));
+    String key = key();
+    List<TransactionLeg> legs = List.of(TransactionLeg.withdraw(A, COINS, amount("30")));
+
+    assertFalse(client.applyBatch(legs, key));
+    assertEquals(List.of(key), client.releasedKeys);
+    assertFalse(client.keys.contains(key));
+    assertBalance("25", a);
+
+    a.addBalance(COINS, amount("10"));
+    assertTrue(client.applyBatch(legs, key));
+    assertBalance("0", a);
+  }
+
+  @Test
+  void cachedBatchNeedsCachedAccounts() throws Exception {
+    MemoryClient client = new MemoryClient();
+    Account a = client.cache(A, Map.of(COINS, amount("100")));
+    client.store(B, COINS, 1, amount("0"));
+    List<TransactionLeg> legs = List.of(
+      TransactionLeg.withdraw(A, COINS, amount("30")),
+      TransactionLeg.deposit(B, COINS, amount("30"))
+    );
+
+    assertNull(client.applyCachedBatch(legs));
+    assertBalance("100", a);
+
+    Account b = client.getAccount(B);
+    assertEquals(Boolean.TRUE, client.applyCachedBatch(legs));
+    assertEquals(Boolean.FALSE, client.applyCachedBatch(List.of(TransactionLeg.withdraw(B, COINS, amount("31")))));
+    assertBalance("70", a);
+    assertBalance("30", b);
+    // Saved in the background
+    UltraEconomy.ULTRA_ECONOMY_EXECUTOR.submit(() -> {
+    }).get();
+    synchronized (client) {
+      assertEquals(List.of(legs), client.savedBatches);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.ultraeconomy.config.Currencies;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.Currency;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalReplayTest {
+  private static final String COINS = "coins";
+  private static final UUID A = new UUID(2, 1);
+
+  @BeforeAll
+  static void currencies() {
+    Currency coins = new Currency(true, (byte) 2, "$");
+    coins.setId(COINS);
+    Currencies.load(List.of(coins));
+  }
+
+  private static BigDecimal amount(String value) {
+    return new BigDecimal(value);
+  }
+
+  private static JournaledBalance record(String amount, long baseVersion, String baseAmount, long sequence) {
+    return new JournaledBalance(A, COINS, amount(amount), baseVersion, amount(baseAmount), sequence);
+  }
+
+  private static void assertStored(long version, String amount, Account.Stored stored) {
+    assertNotNull(stored);
+    assertEquals(version, stored.version());
+    assertEquals(0, amount(amount).compareTo(stored.amount()), "expected " + amount + " but was " + stored.amount());
+  }
+
+  @Test
+  void recordKeepsItsChangeOnAnotherBase() {
+    JournaledBalance balance = record("130", 1, "100", 20);
+
+    assertEquals(0, amount("30").compareTo(balance.delta()));
+    JournaledBalance moved = balance.withBase(2, amount("80"));
+    assertEquals(2, moved.baseVersion());
+    assertEquals(0, amount("50").compareTo(moved.delta()));
+    assertEquals(20, moved.sequence());
+    assertEquals(2, balance.landedVersion());
+    assertEquals(1, record("10", -1, "0", 0).landedVersion());
+  }
+
+  @Test
+  void createsAccountStorageNeverSaw() throws Exception {
+    MemoryClient client = new MemoryClient();
+
+    client.restoreBalances(List.of(record("50", -1, "0", 10)), Map.of());
+
+    assertStored(1, "50", client.stored(A, COINS));
+    // Without a journaled name the UUID stands in
+    assertEquals(A.toString(), client.names.get(A));
+  }
+
+  @Test
+  void keepsJournaledName() throws Exception {
+    MemoryClient client = new MemoryClient();
+
+    client.restoreBalances(List.of(record("50", -1, "0", 10)), Map.of(A, "Steve"));
+
+    assertEquals("Steve", client.names.get(A));
+  }
+
+  @Test
+  void writesAmountOverUnchangedBase() throws Exception {
+    MemoryClient client = new MemoryClient();
+    client.store(A, COINS, 1, amount("100"));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 20)), Map.of());
+
+    assertStored(2, "130", client.stored(A, COINS));
+  }
+
+  @Test
+  void rebasesOnWriteOfAnotherServer() throws Exception {
+    MemoryClient client = new MemoryClient();
+    client.store(A, COINS, 3, amount("200"));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 20)), Map.of());
+
+    assertStored(4, "230", client.stored(A, COINS));
+  }
+
+  @Test
+  void dropsRecordCoveredByMark() throws Exception {
+    MemoryClient client = new MemoryClient();
+    client.store(A, COINS, 2, amount("130"));
+    client.marks.put(A, new HashMap<>(Map.of(COINS, new JournalMark(20, 2, amount("130")))));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 20)), Map.of());
+
+    assertEquals(0, client.writes);
+    assertStored(2, "130", client.stored(A, COINS));
+  }
+
+  @Test
+  void movesStaleBaseOntoMark() throws Exception {
+    MemoryClient client = new MemoryClient();
+    // A save of this server landed after the record's base was read, the record already holds its change
+    client.store(A, COINS, 2, amount("80"));
+    client.marks.put(A, new HashMap<>(Map.of(COINS, new JournalMark(10, 2, amount("80")))));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 20)), Map.of());
+
+    assertStored(3, "130", client.stored(A, COINS));
+  }
+
+  @Test
+  void rebasesWhenStorageMovesDuringReplay() throws Exception {
+    MemoryClient client = new MemoryClient() {
+      private boolean raced;
+
+      @Override
+      protected synchronized List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) {
+        if (!raced) {
+          raced = true;
+          store(A, COINS, 2, amount("150"));
+        }
+        return super.tryWrite(changes, legs);
+      }
+    };
+    client.store(A, COINS, 1, amount("100"));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 20)), Map.of());
+
+    assertEquals(2, client.writes);
+    assertStored(3, "180", client.stored(A, COINS));
+  }
+
+  @Test
+  void skipsDrainedBalanceThatLanded() throws Exception {
+    MemoryClient client = new MemoryClient();
+    client.store(A, COINS, 2, amount("130"));
+
+    client.restoreBalances(List.of(record("130", 1, "100", 0)), Map.of());
+
+    assertEquals(0, client.writes);
+    assertStored(2, "130", client.stored(A, COINS));
+  }
+}
@@ -0,0 +1,288 @@
+package com.kingpixel.ultraeconomy.database;
+
+import com.kingpixel.cobbleutils.Model.DataBaseConfig;
+import com.kingpixel.ultraeconomy.leaderboard.LeaderboardEntry;
+import com.kingpixel.ultraeconomy.models.Account;
+import com.kingpixel.ultraeconomy.models.HistoryEntry;
+import com.kingpixel.ultraeconomy.models.TransactionLeg;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * In-memory storage with the compare-and-set and journal mark semantics of the real backends, for tests
+ */
+class MemoryClient extends DatabaseClient {
+  final Map<UUID, Account> cache = new ConcurrentHashMap<>();
+  final Map<UUID, String> names = new HashMap<>();
+  final Map<UUID, Map<String, Account.Stored>> balances = new HashMap<>();
+  final Map<UUID, Map<String, JournalMark>> marks = new HashMap<>();
+  final Set<String> keys = new HashSet<>();
+  final List<String> releasedKeys = new ArrayList<>();
+  final List<List<TransactionLeg>> savedBatches = new ArrayList<>();
+  int writes;
+
+  /**
+   * Put a balance in storage as if another server wrote it
+   */
+  synchronized void store(UUID uuid, String currency, long version, BigDecimal amount) {
+    balances.computeIfAbsent(uuid, k -> new HashMap<>()).put(currency, new Account.Stored(version, amount, 0));
+  }
+
+  synchronized @Nullable Account.Stored stored(UUID uuid, String currency) {
+    return balances.getOrDefault(uuid, Map.of()).get(currency);
+  }
+
+  /**
+   * Put an account in the cache, with its balances as storage holds them
+   */
+  Account cache(UUID uuid, Map<String, BigDecimal> values) {
+    Account account = new Account(uuid, uuid.toString(), new HashMap<>(values));
+    values.forEach((currency, amount) -> {
+      store(uuid, currency, 1, amount);
+      account.markStored(currency, 1, amount, 0);
+    });
+    cache.put(uuid, account);
+    return account;
+  }
+
+  @Override
+  public void connect(DataBaseConfig config) {
+  }
+
+  @Override
+  public void disconnect() {
+  }
+
+  @Override
+  public void invalidate(UUID playerUUID) {
+    cache.remove(playerUUID);
+  }
+
+  @Override
+  public boolean isConnected() {
+    return true;
+  }
+
+  @Override
+  public Account getAccount(UUID uuid) {
+    Account account = cache.get(uuid);
+    if (account != null) return account;
+    try {
+      account = loadAccounts(List.of(uuid)).get(uuid);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    return account == null ? null : cacheIfAbsent(account);
+  }
+
+  @Override
+  public @Nullable Account getCachedAccount(UUID uuid) {
+    return cache.get(uuid);
+  }
+
+  @Override
+  protected synchronized Map<UUID, Account> loadAccounts(Collection<UUID> uuids) {
+    Map<UUID, Account> accounts = new HashMap<>();
+    for (UUID uuid : uuids) {
+      Map<String, Account.Stored> stored = balances.get(uuid);
+      if (stored == null && !names.containsKey(uuid)) continue;
+      Map<String, BigDecimal> values = new HashMap<>();
+      if (stored != null) stored.forEach((currency, value) -> values.put(currency, value.amount()));
+      Account account = new Account(uuid, names.get(uuid), values);
+      if (stored != null) stored.forEach((currency, value) -> account.markStored(currency, value.version(), value.amount(), 0));
+      account.markPersisted();
+      accounts.put(uuid, account);
+    }
+    return accounts;
+  }
+
+  @Override
+  protected Account cacheIfAbsent(Account account) {
+    Account winner = cache.putIfAbsent(account.getPlayerUUID(), account);
+    return winner != null ? winner : account;
+  }
+
+  @Override
+  public Collection<Account> getCachedAccounts() {
+    return cache.values();
+  }
+
+  @Override
+  protected List<Invalidation> pollInvalidations() {
+    return List.of();
+  }
+
+  @Override
+  protected synchronized List<Conflict> tryWrite(Map<Account, Account.Changes> changes, List<TransactionLeg> legs) {
+    writes++;
+    List<Conflict> conflicts = new ArrayList<>();
+    for (Map.Entry<Account, Account.Changes> entry : changes.entrySet()) {
+      Account account = entry.getKey();
+      Account.Changes accountChanges = entry.getValue();
+      UUID uuid = account.getPlayerUUID();
+      if (accountChanges.playerName() != null) names.put(uuid, accountChanges.playerName());
+      for (Map.Entry<String, BigDecimal> balance : accountChanges.balances().entrySet()) {
+        String currency = balance.getKey();
+        if (isSuperseded(account, currency, accountChanges)) continue;
+        Account.Stored expected = account.getStored(currency);
+        Account.Stored current = stored(uuid, currency);
+        long expectedVersion = expected != null ? expected.version() : 0;
+        long currentVersion = current != null ? current.version() : 0;
+        if (expectedVersion != currentVersion) {
+          conflicts.add(new Conflict(account, currency));
+          continue;
+        }
+        long version = currentVersion + 1;
+        store(uuid, currency, version, balance.getValue());
+        if (tracksJournal(accountChanges)) {
+          marks.computeIfAbsent(uuid, k -> new HashMap<>())
+            .put(currency, new JournalMark(accountChanges.version(), version, balance.getValue()));
+        }
+        account.markStored(currency, version, balance.getValue(), accountChanges.version());
+      }
+    }
+    return conflicts;
+  }
+
+  @Override
+  protected synchronized Map<Conflict, Account.Stored> readStored(List<Conflict> conflicts) {
+    Map<Conflict, Account.Stored> current = new HashMap<>();
+    for (Conflict conflict : conflicts) {
+      Account.Stored stored = stored(conflict.account().getPlayerUUID(), conflict.currency());
+      if (stored != null) current.put(conflict, stored);
+    }
+    return current;
+  }
+
+  @Override
+  protected synchronized Map<UUID, Map<String, JournalMark>> readJournalMarks(String journalId, Collection<UUID> uuids) {
+    Map<UUID, Map<String, JournalMark>> found = new HashMap<>();
+    for (UUID uuid : uuids) {
+      Map<String, JournalMark> accountMarks = marks.get(uuid);
+      if (accountMarks != null) found.put(uuid, new HashMap<>(accountMarks));
+    }
+    return found;
+  }
+
+  @Override
+  protected void recordDeposit(UUID uuid, String currency, BigDecimal amount) {
+  }
+
+  @Override
+  public void saveOrUpdateAccount(Account account) {
+  }
+
+  @Override
+  public boolean addBalance(UUID uuid, String currency, BigDecimal amount) {
+    return applyBatch(List.of(TransactionLeg.deposit(uuid, currency, amount)));
+  }
+
+  @Override
+  public boolean removeBalance(UUID uuid, String currency, BigDecimal amount) {
+    return applyBatch(List.of(TransactionLeg.withdraw(uuid, currency, amount)));
+  }
+
+  @Override
+  public @Nullable BigDecimal getBalance(UUID uuid, String currency) {
+    Account account = getAccount(uuid);
+    return account == null ? null : account.getBalance(currency);
+  }
+
+  @Override
+  public BigDecimal setBalance(UUID uuid, String currency, BigDecimal amount) {
+    Account account = getAccount(uuid);
+    return account == null ? null : account.setBalance(currency, amount);
+  }
+
+  @Override
+  public boolean hasEnoughBalance(UUID uuid, String currency, BigDecimal amount) {
+    Account account = getAccount(uuid);
+    return account != null && account.hasEnoughBalance(currency, amount);
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchTopPage(String currency, @Nullable LeaderboardEntry after, int limit) {
+    return List.of();
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchTopPageAt(String currency, long offset, int limit) {
+    return List.of();
+  }
+
+  @Override
+  public long getRank(UUID uuid, String currency) {
+    return -1;
+  }
+
+  @Override
+  public Map<UUID, Long> getRanks(Collection<UUID> uuids, String currency) {
+    return Map.of();
+  }
+
+  @Override
+  public boolean tryLock(String name, String owner, long ttl) {
+    return true;
+  }
+
+  @Override
+  protected List<LeaderboardEntry> fetchRankedPage(String currency, long fromRank, int limit) {
+    return List.of();
+  }
+
+  @Override
+  protected void writeRanks(String currency, long firstRank, List<LeaderboardEntry> chunk) {
+  }
+
+  @Override
+  protected void trimRanks(String currency, long fromRank) {
+  }
+
+  @Override
+  public void forEachBalance(String currency, Consumer<LeaderboardEntry> consumer) {
+  }
+
+  @Override
+  public @Nullable UUID findUUIDByName(String playerName) {
+    return null;
+  }
+
+  @Override
+  public void forEachPlayerName(BiConsumer<UUID, String> consumer) {
+  }
+
+  @Override
+  public void flushCache() {
+  }
+
+  @Override
+  public List<HistoryEntry> getHistory(UUID uuid, @Nullable String currency, @Nullable HistoryEntry cursor, int limit) {
+    return List.of();
+  }
+
+  @Override
+  public List<HistoryEntry> getHistoryAt(UUID uuid, @Nullable String currency, long offset, int limit) {
+    return List.of();
+  }
+
+  @Override
+  protected synchronized boolean claimKey(String key, TransactionLeg first) {
+    return keys.add(key);
+  }
+
+  @Override
+  protected synchronized void releaseKey(String key) {
+    keys.remove(key);
+    releasedKeys.add(key);
+  }
+
+  @Override
+  protected synchronized void saveBatch(List<TransactionLeg> legs, Collection<Account> accounts) {
+    savedBatches.add(List.copyOf(legs));
+  }
+}
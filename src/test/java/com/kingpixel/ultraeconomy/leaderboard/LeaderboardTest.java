@@ -0,0 +1,125 @@
+package com.kingpixel.ultraeconomy.leaderboard;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaderboardTest {
+  private static final UUID A = new UUID(0, 1);
+  private static final UUID B = new UUID(0, 2);
+  private static final UUID C = new UUID(0, 3);
+
+  @Test
+  void ordersByAmountDescending() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(A, "a", new BigDecimal("10"));
+    leaderboard.update(B, "b", new BigDecimal("30"));
+    leaderboard.update(C, "c", new BigDecimal("20"));
+
+    assertEquals(1, leaderboard.rank(B));
+    assertEquals(2, leaderboard.rank(C));
+    assertEquals(3, leaderboard.rank(A));
+    assertEquals(List.of(
+      new LeaderboardEntry(B, "b", new BigDecimal("30"), 1),
+      new LeaderboardEntry(C, "c", new BigDecimal("20"), 2),
+      new LeaderboardEntry(A, "a", new BigDecimal("10"), 3)
+    ), leaderboard.page(1, 10));
+  }
+
+  @Test
+  void breaksTiesByUuid() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(C, "c", BigDecimal.ONE);
+    leaderboard.update(A, "a", new BigDecimal("1.00"));
+    leaderboard.update(B, "b", BigDecimal.ONE);
+
+    assertEquals(1, leaderboard.rank(A));
+    assertEquals(2, leaderboard.rank(B));
+    assertEquals(3, leaderboard.rank(C));
+  }
+
+  @Test
+  void updateMovesAndKeepsName() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(A, "a", new BigDecimal("10"));
+    leaderboard.update(B, "b", new BigDecimal("20"));
+    leaderboard.update(A, null, new BigDecimal("50"));
+
+    assertEquals(2, leaderboard.size());
+    assertEquals(1, leaderboard.rank(A));
+    assertEquals(new BigDecimal("50"), leaderboard.amount(A));
+    assertEquals("a", leaderboard.page(1, 1).get(0).playerName());
+  }
+
+  @Test
+  void seedNeverOverwrites() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(A, "a", new BigDecimal("10"));
+    leaderboard.seed(A, "stale", new BigDecimal("99"));
+    leaderboard.seed(B, "b", new BigDecimal("5"));
+
+    assertEquals(new BigDecimal("10"), leaderboard.amount(A));
+    assertEquals(new BigDecimal("5"), leaderboard.amount(B));
+    assertEquals(2, leaderboard.size());
+  }
+
+  @Test
+  void removeDropsRank() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(A, "a", new BigDecimal("10"));
+    leaderboard.update(B, "b", new BigDecimal("20"));
+    leaderboard.remove(B);
+    leaderboard.remove(C);
+
+    assertEquals(-1, leaderboard.rank(B));
+    assertNull(leaderboard.amount(B));
+    assertEquals(1, leaderboard.rank(A));
+    assertEquals(1, leaderboard.size());
+  }
+
+  @Test
+  void pagesMatchSortedOrder() {
+    Leaderboard leaderboard = new Leaderboard();
+    Random random = new Random(42);
+    Map<UUID, BigDecimal> balances = new HashMap<>();
+    for (int i = 0; i < 500; i++) {
+      UUID uuid = new UUID(0, random.nextInt(200));
+      BigDecimal amount = BigDecimal.valueOf(random.nextInt(50));
+      if (random.nextInt(10) == 0) {
+        leaderboard.remove(uuid);
+        balances.remove(uuid);
+      } else {
+        leaderboard.update(uuid, uuid.toString(), amount);
+        balances.put(uuid, amount);
+      }
+    }
+
+    List<UUID> expected = new ArrayList<>(balances.keySet());
+    expected.sort(Comparator.<UUID, BigDecimal>comparing(balances::get).reversed().thenComparing(uuid -> uuid));
+
+    List<UUID> paged = new ArrayList<>();
+    for (int page = 1; ; page++) {
+      List<LeaderboardEntry> entries = leaderboard.page(page, 7);
+      if (entries.isEmpty()) break;
+      for (LeaderboardEntry entry : entries) {
+        assertEquals(paged.size() + 1L, entry.rank());
+        assertEquals(entry.rank(), leaderboard.rank(entry.playerUUID()));
+        paged.add(entry.playerUUID());
+      }
+    }
+    assertEquals(expected, paged);
+    assertEquals(expected.size(), leaderboard.size());
+  }
+
+  @Test
+  void pageOutOfRangeIsEmpty() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.update(A, "a", BigDecimal.ONE);
+
+    assertTrue(leaderboard.page(2, 10).isEmpty());
+    assertEquals(1, leaderboard.page(0, 10).size());
+  }
+}